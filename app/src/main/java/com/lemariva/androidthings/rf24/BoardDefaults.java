@@ -56,6 +56,65 @@ public class BoardDefaults {
         }
     }
 
+    /**
+     * Return the SPI port of the radio number index, for boards with several radios
+     * (see rf24RadioPool). Radios 0 and 1 use getSPIPort0() and getSPIPort1(), the Raspberry Pi 3
+     * has no other SPI port: more radios need GPIO chip selects, see getGPIOcsn(int).
+     */
+    public static String getSPIPort(int index) {
+        switch (Build.DEVICE) {
+            case DEVICE_RPI3:
+                return pick(new String[] {"SPI0.0", "SPI0.1"}, index);
+            default:
+                throw new IllegalStateException("Unknown Build.DEVICE " + Build.DEVICE);
+        }
+    }
+
+    /**
+     * Return the GPIO pin that CE pin of the radio number index is connected.
+     * Radio 0 uses getGPIOce().
+     */
+    public static String getGPIOce(int index) {
+        switch (Build.DEVICE)  {
+            case DEVICE_RPI3:
+                return pick(new String[] {"BCM22", "BCM23", "BCM25", "BCM5", "BCM6"}, index);
+            default:
+                throw new IllegalStateException("Unknown Build.DEVICE " + Build.DEVICE);
+        }
+    }
+
+    /**
+     * Return the number of radios with a hardware chip select (one per SPI port)
+     */
+    public static int getRadioCount() {
+        switch (Build.DEVICE)  {
+            case DEVICE_RPI3:
+                return 2;
+            default:
+                throw new IllegalStateException("Unknown Build.DEVICE " + Build.DEVICE);
+        }
+    }
+
+    /**
+     * Return the GPIO pin driving the CSN pin of the radio number index, for radios sharing the
+     * port getSPIPort1() with GPIO chip selects. The hardware chip select of that port (CE1) must
+     * not be wired to a radio then, see rf24RadioPool.create().
+     */
+    public static String getGPIOcsn(int index) {
+        switch (Build.DEVICE)  {
+            case DEVICE_RPI3:
+                return pick(new String[] {"BCM12", "BCM13", "BCM16", "BCM26", "BCM27"}, index);
+            default:
+                throw new IllegalStateException("Unknown Build.DEVICE " + Build.DEVICE);
+        }
+    }
+
+    private static String pick(String[] names, int index) {
+        if (index < 0 || index >= names.length)
+            throw new IllegalArgumentException("No radio " + index + " on " + Build.DEVICE);
+        return names[index];
+    }
+
     /**
      * Return the GPIO pin that CE pin is connected
      */
@@ -68,6 +127,18 @@ public class BoardDefaults {
         }
     }
 
+    /**
+     * Return the GPIO pin that IRQ pin is connected
+     */
+    public static String getGPIOirq() {
+        switch (Build.DEVICE)  {
+            case DEVICE_RPI3:
+                return "BCM24";
+            default:
+                throw new IllegalStateException("Unknown Build.DEVICE " + Build.DEVICE);
+        }
+    }
+
     /**
      * Return the GPIO pin that CSN pin is connected
      */
@@ -52,6 +52,8 @@ public class MainActivity extends Activity {
     private rf24 radio;
     private rf24Network network;
     private rf24Mesh mesh;
+    private rf24RadioThread radioThread;
+    private final rf24LinkStats linkStats = new rf24LinkStats();
     Thread runner = null;
 
     // database connection
@@ -91,18 +93,31 @@ public class MainActivity extends Activity {
         sqliteconn = new DatabaseHandler(this);
 
         // creating radio, network and mesh objects
-        radio = new rf24((byte) 0, (byte) 1, 12000000);
+        radio = new rf24((byte) 0, (byte) 1, 4000000);
+        try {
+            // highest clock this unit's wiring carries reliably, within the 10MHz of the datasheet
+            int spiSpeed = radio.calibrateSpiSpeed(1000000, 10000000);
+            Log.i(TAG, "SPI clock " + spiSpeed + "Hz");
+        } catch (IOException e) {
+            Log.e(TAG, "Error on calibrating the SPI clock", e);
+        }
+        radio.setRetryTuner(new rf24RetryTuner());     // per node retries, see rf24RetryTuner
+        radio.setLinkStats(linkStats);
         network = new rf24Network(radio);
         mesh = new rf24Mesh(radio, network, sqliteconn);
 
 
+        // the radio thread is the only one touching the SPI bus, this activity exchanges
+        // messages with it through lock-free rings
+        mesh.setNodeID((byte) 0);      // Set the nodeID to 0 for the master node
+        radioThread = new rf24RadioThread(radio, network, mesh);
+        radioThread.start();
+
         runner = new Thread() {
             payload_sensordata_big payload_data_f5529 = new payload_sensordata_big();
             payload_sensordata_big payload_data_tm4c1294 = new payload_sensordata_big();
             payload_sensordata_small payload_data_g2553 = new payload_sensordata_small();
-            payload_empty payload = new payload_empty();
             payload_command payload_cmd = new payload_command();
-            rf24NetworkHeader header_cmd = new rf24NetworkHeader();
 
             long displayTimer = 0;
 
@@ -115,100 +130,85 @@ public class MainActivity extends Activity {
 
             public void run() {
                 /**
-                 * Starting thread with the rf24network communication!
+                 * Starting thread with the application side of the rf24network communication!
                  */
-                try {
-                    // Set the nodeID to 0 for the master node
-                    mesh.setNodeID((byte) 0);
-                    mesh.begin();
-                    radio.printDetails();
-
-                } catch (IOException e) {
-                    if(debug) Log.d(TAG, "Error on initializing radio", e);
-                }
-
-                while (true) {
-                    try {
-
-                        // Call network.update as usual to keep the network updated
-                        mesh.update();
-
-                        // In addition, keep the 'DHCP service' running on the master node so addresses will
-                        // be assigned to the sensor nodes
-                        mesh.DHCP();
-
-                        // Check for incoming data from the sensors
-                        while (network.available()) {
-
-                            if(debug) Log.i(TAG, "Payloads added to database: " + sqliteconn.getNrPayloads());
-
-                            rf24NetworkHeader header = new rf24NetworkHeader();
-                            network.peek(header);
-
-                            switch (header.type) {
-                                // Display the incoming millis() values from the sensor nodes
-                                case 'F':        // F5529 node
-                                    network.read(header, payload_data_f5529, payload_data_f5529.sizeOf());
-                                    if(debug) {
-                                        handle_F5529(header, payload_data_f5529);
-                                        Log.i(TAG, "Rcv from " + Integer.toOctalString(header.from_node));
-                                    }
-                                    break;
-                                case 'T':        // TMC4C1294 node
-                                    network.read(header, payload_data_tm4c1294, payload_data_tm4c1294.sizeOf());
-                                    if(debug) {
-                                        handle_F5529(header, payload_data_tm4c1294);
-                                        Log.i(TAG, "Rcv from " + Integer.toOctalString(header.from_node));
-                                    }
-                                    break;
-                                case 'G':        // G2553 node
-                                    network.read(header, payload_data_g2553, payload_data_g2553.sizeOf());
-                                    if(debug) {
-                                        handle_G2553(header, payload_data_g2553);
-                                        Log.i(TAG, "Rcv from " + Integer.toOctalString(header.from_node));
-                                    }
-                                    savePayload(header, payload_data_g2553);
-                                    break;
-                                default:
-                                    network.read(header, payload, 0);
-                                    if(debug) {
-                                        Log.i(TAG, "Rcv bad type " + header.type + " from " + Integer.toOctalString(header.from_node));
-                                    }
-                                    break;
-                            }
+                while (!isInterrupted()) {
+
+                    // Check for incoming data from the sensors
+                    rf24NetworkFrame frame;
+                    while ((frame = radioThread.receive()) != null) {
+
+                        if(debug) Log.i(TAG, "Payloads added to database: " + sqliteconn.getNrPayloads());
+
+                        rf24NetworkHeader header = frame.header;
+
+                        switch (header.type) {
+                            // Display the incoming millis() values from the sensor nodes
+                            case 'F':        // F5529 node
+                                payload_data_f5529.CastMsg(frame.message_buffer);
+                                if(debug) {
+                                    handle_F5529(header, payload_data_f5529);
+                                    Log.i(TAG, "Rcv from " + Integer.toOctalString(header.from_node));
+                                }
+                                break;
+                            case 'T':        // TMC4C1294 node
+                                payload_data_tm4c1294.CastMsg(frame.message_buffer);
+                                if(debug) {
+                                    handle_F5529(header, payload_data_tm4c1294);
+                                    Log.i(TAG, "Rcv from " + Integer.toOctalString(header.from_node));
+                                }
+                                break;
+                            case 'G':        // G2553 node
+                                payload_data_g2553.CastMsg(frame.message_buffer);
+                                if(debug) {
+                                    handle_G2553(header, payload_data_g2553);
+                                    Log.i(TAG, "Rcv from " + Integer.toOctalString(header.from_node));
+                                }
+                                savePayload(header, payload_data_g2553);
+                                break;
+                            default:
+                                if(debug) {
+                                    Log.i(TAG, "Rcv bad type " + header.type + " from " + Integer.toOctalString(header.from_node));
+                                }
+                                break;
                         }
+                        // the payloads are copied, the frame goes back to the network
+                        radioThread.recycle(frame);
+                    }
 
 
-                        // Update payload in mesh
-                        mesh.updatePayloads();
-
-                        // Updating UI over handler
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                //putting data in ListView
-                                mAdapter = new MyAdapter(mesh.rfNodes);
-                                recyclerView.setAdapter(mAdapter);
-                            }
-                        });
-
-                        delay(2);
-
-                        if (millis() - displayTimer >= 10000) {     // example to send data to a node from node 0
-                            displayTimer = millis();
-                            header_cmd.from_node = 0;               // my address (node 0)
-                            header_cmd.to_node  = 5;                // node address (destination)
-                            payload_cmd.nodeId  = 100;              // payload nodeId
-                            payload_cmd.command = 127;              // payload command
-                            payload_cmd.value = 50;                 // payload value
-                            boolean ok = network.write(header_cmd,payload_cmd.toInt(), (short)payload_cmd.sizeOf());
-                        }
+                    // Update payload of a copy of the address list, the radio thread changes the list
+                    final ArrayList<rf24Node> nodes = mesh.getNodes();
+                    mesh.updatePayloads(nodes);
 
-                    } catch (IOException e) {
-                        if(debug) Log.d(TAG, "Error on initializing radio", e);
+                    // Updating UI over handler, the copy belongs to the UI from here on
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            //putting data in ListView
+                            mAdapter = new MyAdapter(nodes);
+                            recyclerView.setAdapter(mAdapter);
+                        }
+                    });
+
+                    delay(2);
+
+                    if (millis() - displayTimer >= 10000) {     // example to send data to a node from node 0
+                        displayTimer = millis();
+                        rf24NetworkHeader header_cmd = new rf24NetworkHeader();
+                        header_cmd.from_node = 0;               // my address (node 0)
+                        header_cmd.to_node  = 5;                // node address (destination)
+                        payload_cmd.nodeId  = 100;              // payload nodeId
+                        payload_cmd.command = 127;              // payload command
+                        payload_cmd.value = 50;                 // payload value
+                        // rides on the ACK of the next reading of node 05 if ACK payloads are enabled
+                        // (network.enableAckPayloads() here, enableAckPayload() on the node), sent
+                        // right away otherwise
+                        radioThread.writeAckPayload(header_cmd, payload_cmd.toInt(), (short) payload_cmd.sizeOf());
+                        if(debug) Log.d(TAG, "Timer " + rf24Timer.getStats());
+                        if(debug) Log.d(TAG, "Links\n" + linkStats);
                     }
                 }
-                //Looper.loop();
             }
         };
         runner.start();
@@ -219,10 +219,11 @@ public class MainActivity extends Activity {
         super.onDestroy();
         if(debug) Log.d(TAG, "onDestroy");
 
-        // killing thread??
+        // stopping the application and the radio thread
         Thread moribund = runner;
         runner = null;
         moribund.interrupt();
+        radioThread.quit();
     }
 
     /**
@@ -285,31 +286,23 @@ public class MainActivity extends Activity {
      * @param milliseconds Delay in milliseconds
      */
     private void delay(int milliseconds) {
-        long start = millis();
-        long end = 0;
-        do {
-            end = millis();
-        } while (start + milliseconds >= end);
+        rf24Timer.delay(milliseconds);
     }
     /**
      * Delay in microseconds
      * @param microseconds Delay in microseconds
      */
     public void delayMicroseconds(long microseconds) {
-        long start = System.nanoTime();
-        long end = 0;
-        do {
-            end = System.nanoTime();
-        } while (start + microseconds >= end);
+        rf24Timer.delayMicroseconds(microseconds);
     }
 
     /**
-     * Return Milliseconds since Epoch
+     * Return monotonic milliseconds
      * @return long
      */
     private long millis()
     {
-        return System.currentTimeMillis();
+        return rf24Timer.millis();
     }
 
 }
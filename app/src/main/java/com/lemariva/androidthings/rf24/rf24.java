@@ -2,14 +2,12 @@
 
 package com.lemariva.androidthings.rf24;
 
-import com.google.android.things.pio.SpiDevice;
-import com.google.android.things.pio.Gpio;
-import com.google.android.things.pio.PeripheralManager;
-
 import java.io.IOException;
 import android.util.Log;
-
 import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
 
 /*
  Copyright (C) 2011 J. Coliz <maniacbug@ymail.com>
@@ -91,16 +89,8 @@ public class rf24 implements AutoCloseable {
     public static final int child_pipe[] = { nRF24L01.RX_ADDR_P0, nRF24L01.RX_ADDR_P1, nRF24L01.RX_ADDR_P2, nRF24L01.RX_ADDR_P3, nRF24L01.RX_ADDR_P4, nRF24L01.RX_ADDR_P5 };
     public static final int child_payload_size[] = { nRF24L01.RX_PW_P0, nRF24L01.RX_PW_P1, nRF24L01.RX_PW_P2, nRF24L01.RX_PW_P3, nRF24L01.RX_PW_P4, nRF24L01.RX_PW_P5 };
 
-    /*
-     * Android things libraries
-     */
-
-    /** PeripheralManagerService */
-    PeripheralManager pioService;
-    /** SPI device */
-    private SpiDevice mDevice;
-    /** CE (GPIO 'device') */
-    private Gpio mCEpin;
+    /** SPI bus, CE and IRQ pins (Android Things peripherals or emulator) */
+    private final rf24Transport transport;
 
     /** "Chip Enable" pin, activates the RX or TX role */
     private byte ce_pin;
@@ -115,6 +105,155 @@ public class rf24 implements AutoCloseable {
     /** SPI transmit buffer (payload max 32 bytes + 1 byte for the command) */
     byte[] spi_txbuff = new byte[32+1] ;
 
+    /**
+     * Staged TX payload (command byte + payload max 32 bytes). The payload is copied here before
+     * the wait loops run, so the int[], byte[] and ByteBuffer writes share them without allocating.
+     */
+    private final byte[] payload_txbuff = new byte[32+1];
+    /** Number of bytes staged in payload_txbuff, including the command byte and blanks */
+    private int payload_txsize;
+
+    /** Asynchronous writes, the first one is on air, see writeAsync() */
+    private final ArrayDeque<AsyncWrite> tx_async = new ArrayDeque<>();
+    /** The radio was listening when the asynchronous writes started */
+    private boolean tx_async_listening;
+    /** Number of RF channels swept by scanChannels() */
+    public static final int SCAN_CHANNELS = 126;
+    /** Time in us spent on a channel by scanChannels(): 130us RX settling + 40us RPD */
+    private static final int SCAN_DWELL = 170;
+
+    /** Failure causes, see getLastFailure() */
+    public static final int FAILURE_NONE = 0;
+    /** No IRQ/status change within 95ms of a TX or RX operation */
+    public static final int FAILURE_TIMEOUT = 1;
+    /** Registers read all 0x00 or 0xFF: no module, no power or dead SPI bus */
+    public static final int FAILURE_NO_RESPONSE = 2;
+    /** The chip doesn't hold the configuration written by the driver (reset, SPI errors) */
+    public static final int FAILURE_REGISTERS = 3;
+
+    /** SPI clocks tried by calibrateSpiSpeed() between min and max, in Hz */
+    private static final int[] SPI_SPEEDS = {1000000, 2000000, 4000000, 6000000, 8000000, 10000000, 12000000, 16000000, 20000000};
+    /** Pattern rounds per SPI clock in calibrateSpiSpeed() */
+    private static final int SPI_CALIBRATION_ROUNDS = 32;
+
+    /** Power states, see getPowerState() and getStateTime() */
+    public static final int POWER_DOWN = 0;
+    public static final int STANDBY = 1;
+    public static final int RX = 2;
+    public static final int TX = 3;
+    private static final int POWER_STATES = 4;
+    /** Default Tpd2stby in us: 4.5ms worst case (1.0 datasheet, Ls = 90mH) plus margin */
+    public static final int POWER_UP_DELAY = 5000;
+
+    /** Timeout of an asynchronous write in ms (like write()) */
+    private static final int TX_ASYNC_TIMEOUT = 95;
+
+    /** Per destination ARD/ARC controller, null: setRetries() values for all destinations */
+    private rf24RetryTuner retry_tuner;
+    /** Address open for writing (TX_ADDR) as rf24AddressMap key */
+    private long tx_address;
+    /** ARD and ARC set with setRetries() (begin(): 5, 15) */
+    private int retry_delay = 5;
+    private int retry_count = 15;
+    /** The last payload was written without ACK request */
+    private boolean tx_noack;
+
+    /** Link telemetry, null: not collected */
+    private rf24LinkStats link_stats;
+    /** Level of the CE pin and System.nanoTime() of its last rising edge */
+    private boolean ce_level;
+    private long ce_high_ns;
+    /** Recorder of the SPI transactions, null: not recorded */
+    private volatile rf24SpiRecorder spi_recorder;
+
+    /** Check interval of supervise() in ms, 0: failures flagged by the driver only */
+    private int supervise_interval;
+    private long supervise_last;
+    /** rf24Timer.micros() of the first failure not recovered yet, 0: none */
+    private long failure_since;
+    private int last_failure = FAILURE_NONE;
+    private int recoveries;
+    private long last_recovery_time;
+    private long max_recovery_time;
+
+    /** transport.open() succeeded, begin() doesn't open it again */
+    private boolean transport_open;
+    /** Tpd2stby in us: time from PWR_UP to standby, see setPowerUpDelay() */
+    private int powerup_delay = POWER_UP_DELAY;
+    /** rf24Timer.micros() when the radio reaches standby after the last PWR_UP, 0: reached */
+    private long powerup_ready;
+    /** Power state accounted since state_since (rf24Timer.micros()), see getStateTime() */
+    private int power_state = POWER_DOWN;
+    private long state_since;
+    private final long[] state_time = new long[POWER_STATES];
+
+    /** PLOS_CNT at the last link_stats record */
+    private int plos_last;
+    /** SPI buffers of the statistics reads and writes (spi_rxbuff may still hold a payload) */
+    private final byte[] stats_txbuff = new byte[2];
+    private final byte[] stats_rxbuff = new byte[2];
+
+    /** Only thread allowed to use the SPI bus, null: any thread, see setOwnerThread() */
+    private volatile Thread owner_thread;
+
+    /** TX FIFO flushes, see getTxFlushes() */
+    private int tx_flushes;
+
+    /** Single byte SPI buffers used by transfer(byte) */
+    private final byte[] spi_byte_tx = new byte[1];
+    private final byte[] spi_byte_rx = new byte[1];
+
+    /** Number of register addresses (0x00 .. FEATURE) */
+    private static final int REGISTER_COUNT = 0x1E;
+
+    /**
+     * Shadow copy of the single byte configuration registers, indexed by register address.
+     * Writes update the shadow and reads are served from it, so read-modify-write sequences
+     * (e.g. startListening(), stopListening(), setAutoAck()) cost a single SPI transaction.
+     * @see #verifyRegisters()
+     * @see #resyncRegisters()
+     */
+    private final byte[] reg_shadow = new byte[REGISTER_COUNT];
+    /** True if the matching reg_shadow entry mirrors the chip */
+    private final boolean[] reg_shadow_valid = new boolean[REGISTER_COUNT];
+    /** Shadow copy of the 5 byte address registers RX_ADDR_P0, RX_ADDR_P1 and TX_ADDR */
+    private final byte[][] addr_shadow = new byte[3][5];
+    /** True if the matching addr_shadow entry mirrors the chip */
+    private final boolean[] addr_shadow_valid = new boolean[3];
+    /** Status register returned by the last SPI transaction */
+    private byte last_status;
+    /** Register batch returned by batch() */
+    private final RegisterBatch register_batch = new RegisterBatch();
+
+    /** True if the transport watches the IRQ pin, false if the status register is polled */
+    private boolean irq_enabled;
+    /** Monitor used to wake up the threads waiting for an IRQ edge */
+    private final Object irqLock = new Object();
+    /** Number of falling edges seen on the IRQ pin */
+    private volatile int irqEdges;
+    /** Value of irqEdges when the RX FIFO was checked the last time */
+    private int irqEdgesSeen;
+    /** Interrupt mode: the RX FIFO may hold payloads */
+    private boolean rx_pending;
+    /** Interrupt mode: time (millis()) when the RX FIFO was checked the last time */
+    private long rx_checked;
+    /**
+     * Interrupt mode: maximal time (ms) to trust the IRQ line without looking at the chip.
+     * Covers an edge lost while the IRQ line was held low by another status flag.
+     */
+    private static final int IRQ_POLL_INTERVAL = 5;
+
+    /** Counts the IRQ falling edges and wakes up the waiting threads */
+    private final Runnable irqCallback = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (irqLock) {
+                irqEdges++;
+                irqLock.notifyAll();
+            }
+        }
+    };
+
     /** False for RF24L01 and true for RF24L01P */
     boolean p_variant;
     /** Fixed size of payloads */
@@ -177,22 +316,31 @@ public class rf24 implements AutoCloseable {
      * @param _spi_speed For RPi, the SPI speed in MHZ ie: 16000000
      */
     public rf24(byte _cepin, byte _cspin, int _spi_speed) {
+        this(new rf24SpiTransport(_cspin, _spi_speed));
         ce_pin  = _cepin;
         csn_pin = _cspin;
-        spi_speed = _spi_speed;
+    }
+
+    /**
+     * Constructor
+     *
+     * Creates a new instance of this driver on top of a transport, e.g. an emulated radio
+     * {@code
+     * rf24Air air = new rf24Air();
+     * rf24 radio = new rf24(new rf24Emulator(air));
+     * }
+     *
+     * @param _transport SPI bus, CE and IRQ pins used by the driver
+     */
+    public rf24(rf24Transport _transport) {
+        transport = _transport;
+        spi_speed = _transport.getSpeed();
         p_variant = false;
         payload_size = 32;
         dynamic_payloads_enabled = false;
         addr_width = 5;
         csDelay = 5;
         pipe0_reading_address[0]=0;
-
-        try {
-            pioService = PeripheralManager.getInstance();
-        }catch(Exception e)
-        {
-            Log.e(TAG, "Unable to access PeripheralManagerService", e);
-        }
     }
 
     /**
@@ -205,47 +353,25 @@ public class rf24 implements AutoCloseable {
      */
 
     public boolean begin() throws IOException {
-        int setup;
-        String SpiPort = "SPI0.0"; // default
-
-        switch (csn_pin) {     //Ensure valid hardware CS pin
-            case 0:
-                SpiPort = BoardDefaults.getSPIPort0();
-                break;
-            case 1:
-                SpiPort = BoardDefaults.getSPIPort1();
-                break;
-        }
-
-        // Initializing SPI
-        try {
-            mDevice = pioService.openSpiDevice(SpiPort);
-
-            // Low clock, leading edge transfer
-            mDevice.setMode(SpiDevice.MODE0);
-
-            mDevice.setFrequency(spi_speed);     // _spi_speed MHz
-            mDevice.setBitsPerWord(8);           // 8 BPW
-            mDevice.setBitJustification(0);  // MSB first
-
-        } catch (IOException e) {
-            Log.w(TAG, "Unable to access SPI device", e);
+        // Initializing SPI and CE GPIO
+        if (!open_transport())
             return false;
-        }
 
+        return cold_begin();
+    }
 
-        // Initializing CE GPIO
-        try {
-            //TODO: allow other pin selection for CE
-            String pinName = BoardDefaults.getGPIOce();
-            mCEpin = pioService.openGpio(pinName);
-            mCEpin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-            Log.i(TAG, "CE pin initialized!");
+    /**
+     * Power-on configuration of begin(), the transport is open
+     * @return true if correctly configured, false otherwise
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private boolean cold_begin() throws IOException {
+        int setup;
 
-        } catch (IOException e) {
-            Log.e(TAG, "Error on initializing CE pin", e);
-            return false;
-        }
+        // Chip state is unknown until it has been written
+        invalidateRegisterCache();
+        power_state = POWER_DOWN;
+        resetStateTime();
 
         delay(100);
 
@@ -258,56 +384,176 @@ public class rf24 implements AutoCloseable {
         delay(5);
 
         // Reset NRF_CONFIG and enable 16-bit CRC.
-        write_register(nRF24L01.NRF_CONFIG, (0x0C));
-
         // Set 1500uS (minimum for 32B payload in ESB@250KBPS) timeouts, to make testing a little easier
         // WARNING: If this is ever lowered, either 250KBS mode with AA is broken or maximum packet
         // sizes must never be used. See documentation for a more complete explanation.
-        setRetries(5, 15);
+        retry_delay = 5;
+        retry_count = 15;
+        RegisterBatch batch = batch();
+        batch.write(nRF24L01.NRF_CONFIG, 0x0C)
+             .write(nRF24L01.SETUP_RETR, (retry_delay & 0xf) << nRF24L01.ARD | (retry_count & 0xf) << nRF24L01.ARC);
+        int rf_setup = batch.read(nRF24L01.RF_SETUP);
+        batch.flush();
 
         // Reset value is MAX
         //setPALevel( RF24_PA_MAX ) ;
 
         // check for connected module and if this is a p nRF24l01 variant
         //
-        if (setDataRate(rf24_datarate_e.RF24_250KBPS)) {
+        setup = data_rate_setup(batch.value(rf_setup), rf24_datarate_e.RF24_250KBPS);
+        batch = batch();
+        batch.write(nRF24L01.RF_SETUP, setup);
+        rf_setup = batch.read(nRF24L01.RF_SETUP);
+        batch.flush();
+        if (batch.value(rf_setup) == (byte) setup) {
             p_variant = true;
         }
-        setup = read_register(nRF24L01.RF_SETUP);
+        setup = batch.value(rf_setup);
 
         // Then set the data rate to the slowest (and most reliable) speed supported by all
         // hardware.
-        setDataRate(rf24_datarate_e.RF24_1MBPS);
+        batch = batch();
+        batch.command(nRF24L01.ACTIVATE, 0x73);
+        queue_defaults(batch, setup);
+        batch.flush();
+
+        // There must be a delay of Tpd2stby after the nRF24L01+ leaves power down mode, see powerUp()
+        delay(5);
+        powerup_ready = 0;
+        account_state();
+
+        // if setup is 0 or ff then there was no response from module
+        return (setup != 0 && setup != 0xff);
+    }
+
+    /**
+     * Fast begin() for a radio that is already running, e.g. after a restart of the service
+     *
+     * The configuration registers are read once into the shadow copy and the begin()
+     * configuration is applied on top of it: only the registers that differ are written and
+     * the power-on settle delays are skipped. Falls back to begin() if the chip isn't powered
+     * up (power-on reset) or isn't a nRF24L01+. Writes of the network (rf24Network.begin())
+     * that follow only reach the chip for the registers they change too.
+     * {@code
+     * if (!radio.warmBegin())
+     *     Log.e(TAG, "no radio");
+     * network.begin(76, (short) 01);
+     * }
+     * @return true if correctly configured, false otherwise (SPI problems, GPIO problems, etc...)
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public boolean warmBegin() throws IOException {
+        return warm_begin(false);
+    }
+
+    /**
+     * warmBegin(), optionally for a chip that was reset behind the driver's back
+     * @param reset the chip may have been reset while the module kept power (see recover()):
+     *              if it answers, it is configured without the power-on delays and its
+     *              crystal is started without waiting, see powerUpAsync()
+     * @return true if correctly configured, false otherwise
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private boolean warm_begin(boolean reset) throws IOException {
+        if (!open_transport())
+            return false;
+
+        // One pass over the configuration registers, the shadow mirrors the chip afterwards
+        invalidateRegisterCache();
+        resyncRegisters();
+        int config = read_register(nRF24L01.NRF_CONFIG);
+        int rf_setup = read_register(nRF24L01.RF_SETUP) & 0xFF;
+        boolean powered = (config & _BV(nRF24L01.PWR_UP)) != 0;
+        if (isConnected() == 0 || rf_setup == 0 || rf_setup == 0xff || (!powered && !reset)) {
+            return cold_begin();
+        }
+
+        // Only the nRF24L01+ keeps RF_DR_LOW, the ACTIVATE toggle of the others can't be repeated
+        // on a running chip (a reset one has its features off)
+        int setup = data_rate_setup(rf_setup, rf24_datarate_e.RF24_250KBPS);
+        RegisterBatch batch = batch();
+        batch.write(nRF24L01.RF_SETUP, setup);
+        int check = batch.read(nRF24L01.RF_SETUP);
+        batch.flush();
+        p_variant = batch.value(check) == (byte) setup;
+        if (!p_variant && powered) {
+            return cold_begin();
+        }
+
+        ce(LOW);
+        if (!reset) {
+            power_state = STANDBY;
+            resetStateTime();
+        }
+        powerup_ready = 0;
+
+        batch = batch();
+        if (!powered)
+            batch.command(nRF24L01.ACTIVATE, 0x73);
+        queue_defaults(batch, setup);
+        batch.flush();
+        if (!powered) {
+            powerup_ready = rf24Timer.micros() + powerup_delay;
+            if (powerup_ready == 0)
+                powerup_ready = 1;
+        }
+        account_state();
+        return true;
+    }
+
+    /**
+     * Open the transport once, begin() may run again on the same radio
+     * @return false if the transport couldn't be opened
+     */
+    private boolean open_transport() {
+        if (transport_open)
+            return true;
+        if (!transport.open()) {
+            Log.e(TAG, "Error on initializing the transport");
+            return false;
+        }
+        transport_open = true;
+        return true;
+    }
+
+    /**
+     * Queue the begin() configuration: 1Mbps, 16 bit CRC, default retries, no dynamic payloads,
+     * channel 76, flushed FIFOs, powered up in standby-I
+     * @param batch batch to add the registers to
+     * @param setup current RF_SETUP value
+     */
+    private void queue_defaults(RegisterBatch batch, int setup) {
+        retry_delay = 5;
+        retry_count = 15;
+        batch.write(nRF24L01.SETUP_RETR, (retry_delay & 0xf) << nRF24L01.ARD | (retry_count & 0xf) << nRF24L01.ARC);
+        batch.write(nRF24L01.RF_SETUP, data_rate_setup(setup, rf24_datarate_e.RF24_1MBPS));
 
         // Initialize CRC and request 2-byte (16bit) CRC
         //setCRCLength( RF24_CRC_16 ) ;
 
         // Disable dynamic payloads, to match dynamic_payloads_enabled setting - Reset value is 0
-        toggle_features();
-        write_register(nRF24L01.FEATURE, 0);
-        write_register(nRF24L01.DYNPD, 0);
+        batch.write(nRF24L01.FEATURE, 0)
+             .write(nRF24L01.DYNPD, 0);
+        dynamic_payloads_enabled = false;
 
         // Reset current status
         // Notice reset and flush is the last thing we do
-        write_register(nRF24L01.NRF_STATUS, (_BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT)));
+        batch.write(nRF24L01.NRF_STATUS, (_BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT)));
 
         // Set up default configuration.  Callers can always change it later.
         // This channel should be universally safe and not bleed over into adjacent
         // spectrum.
-        setChannel(76);
+        batch.write(nRF24L01.RF_CH, 76);
+        _channel = 76;
 
         // Flush buffers
-        flush_rx();
-        flush_tx();
-
-        powerUp(); //Power up by default when begin() is called
+        batch.command(nRF24L01.FLUSH_RX)
+             .command(nRF24L01.FLUSH_TX);
 
+        // Power up by default when begin() is called.
         // Enable PTX, do not write CE high so radio will remain in standby I mode ( 130us max to transition to RX or TX instead of 1500us from powerUp )
         // PTX should use only 22uA of power
-        write_register(nRF24L01.NRF_CONFIG, ((read_register(nRF24L01.NRF_CONFIG)) & ~_BV(nRF24L01.PRIM_RX)));
-
-        // if setup is 0 or ff then there was no response from module
-        return (setup != 0 && setup != 0xff);
+        batch.write(nRF24L01.NRF_CONFIG, (0x0C | _BV(nRF24L01.PWR_UP)) & ~_BV(nRF24L01.PRIM_RX));
     }
 
     /**
@@ -331,6 +577,7 @@ public class rf24 implements AutoCloseable {
 
         write_register(nRF24L01.NRF_CONFIG, read_register(nRF24L01.NRF_CONFIG) | _BV(nRF24L01.PRIM_RX));
         write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT) );
+        rx_pending = true;  // RX_DR was cleared, the FIFO has to be checked once
         ce(HIGH);
 
         // Restore the pipe0 adddress, if exists
@@ -372,8 +619,6 @@ public class rf24 implements AutoCloseable {
         //flush_rx();
         write_register(nRF24L01.NRF_CONFIG, ( read_register(nRF24L01.NRF_CONFIG) ) & ~_BV(nRF24L01.PRIM_RX) );
         write_register(nRF24L01.EN_RXADDR,read_register(nRF24L01.EN_RXADDR) | _BV(child_pipe_enable[0])); // Enable RX on pipe0
-
-        delayMicroseconds(1000);
     }
 
     /**
@@ -392,7 +637,10 @@ public class rf24 implements AutoCloseable {
      */
     public int available(byte pipe_num) throws IOException {
         byte status;
+        if (rx_idle())
+            return 0;
         status = read_register(nRF24L01.FIFO_STATUS);
+        rx_pending = (status & _BV(nRF24L01.RX_EMPTY)) != _BV(nRF24L01.RX_EMPTY);
         if ((status & _BV(nRF24L01.RX_EMPTY)) != _BV(nRF24L01.RX_EMPTY)) {
             // If the caller wants the pipe number, include that
             status = get_status();
@@ -416,9 +664,42 @@ public class rf24 implements AutoCloseable {
      */
     public boolean available() throws IOException {
         byte status;
+        if (rx_idle())
+            return false;
         status = read_register(nRF24L01.FIFO_STATUS);
+        rx_pending = (status & _BV(nRF24L01.RX_EMPTY)) == 0;
+
+        return rx_pending;
+    }
+
+    /**
+     * Wait until a payload is available to be read
+     *
+     * In interrupt mode the calling thread sleeps until the IRQ pin signals RX ready.
+     * Without IRQ pin this polls {@link #available()} until the timeout expires.
+     *
+     * {@code
+     * if(radio.waitAvailable(100)){
+     *   radio.read(data,data.length);
+     * }
+     * }
+     * @see #enableInterrupts(String)
+     * @param timeout maximal time to wait in milliseconds
+     * @return true if there is a payload available, false if none arrived
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean waitAvailable(int timeout) throws IOException {
+        long start = millis();
 
-        return ((status & _BV(nRF24L01.RX_EMPTY)) == 0);
+        while (true) {
+            int edges = irqEdges;
+            if (available())
+                return true;
+            long remaining = timeout - (millis() - start);
+            if (remaining <= 0)
+                return false;
+            irq_sleep(edges, remaining);
+        }
     }
 
 
@@ -455,6 +736,132 @@ public class rf24 implements AutoCloseable {
 
     }
 
+    /**
+     * Same definition as
+     * @see #read(int[], int)
+     * but the payload is copied into a byte array starting at offset. Nothing is allocated.
+     *
+     * @param buf Byte array where the data should be written
+     * @param offset Index in buf of the first payload byte
+     * @param len Maximum number of bytes to read into the buffer
+     *
+     * {@code
+     * if(radio.available()){
+     *   radio.read(frame, 0, radio.getDynamicPayloadSize());
+     * }
+     * }
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public void read( byte buf[], int offset, int len ) throws IOException {
+
+        len = rf24_min(len, payload_size);
+        read_payload(len);
+        System.arraycopy(spi_rxbuff, 1, buf, offset, len);
+
+        write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.MAX_RT) | _BV(nRF24L01.TX_DS));
+    }
+
+    /**
+     * Same definition as
+     * @see #read(int[], int)
+     * but the payload is put into a ByteBuffer at its current position, which is advanced.
+     * At most buf.remaining() bytes are copied.
+     *
+     * @param buf Buffer where the data should be written (heap or direct)
+     * @param len Maximum number of bytes to read into the buffer
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public void read( ByteBuffer buf, int len ) throws IOException {
+
+        len = rf24_min(rf24_min(len, buf.remaining()), payload_size);
+        read_payload(len);
+        buf.put(spi_rxbuff, 1, len);
+
+        write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.MAX_RT) | _BV(nRF24L01.TX_DS));
+    }
+
+    /**
+     * Drain the RX FIFO (up to 3 payloads) into a ring of payload slots
+     *
+     * Replaces the available(), available(pipe), getDynamicPayloadSize(), read() sequence per
+     * payload: with dynamic payloads every payload costs one R_RX_PL_WID (its status byte carries
+     * the pipe number, RX_P_NO = 7 means the FIFO is empty) and one R_RX_PAYLOAD, with static
+     * payloads only the R_RX_PAYLOAD. RX_DR is cleared once at the end, TX_DS and MAX_RT are
+     * left alone.
+     *
+     * The ring has pipes.length slots, slot n starts at ring[n * 32].
+     *
+     * {@code
+     * int n = radio.readBurst(ring, pipes, lengths, tail, free);
+     * for (int i = 0; i < n; i++) {
+     *   int slot = (tail + i) % pipes.length;
+     *   handle(pipes[slot], ring, slot * 32, lengths[slot]);
+     * }
+     * }
+     * @param ring byte array of at least pipes.length * 32 bytes
+     * @param pipes receives the pipe number of each payload
+     * @param lengths receives the length of each payload
+     * @param first slot for the first payload
+     * @param max maximal number of payloads to read (free slots)
+     * @return number of payloads read
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public int readBurst(byte[] ring, int[] pipes, int[] lengths, int first, int max) throws IOException {
+        int slots = pipes.length;
+        int count = 0;
+        boolean empty = false;
+
+        if (rx_idle())
+            return 0;
+
+        while (count < max) {
+            int pipe;
+            int len;
+            int status;
+
+            if (dynamic_payloads_enabled) {
+                beginTransaction();
+                spi_txbuff[0] = (byte) nRF24L01.R_RX_PL_WID;
+                spi_txbuff[1] = (byte) nRF24L01.NOP;
+                transfer(spi_txbuff, spi_rxbuff, 2);
+                endTransaction();
+
+                pipe = (spi_rxbuff[0] >> nRF24L01.RX_P_NO) & 0x07;
+                len = spi_rxbuff[1] & 0xFF;
+                if (pipe == 0x07) {
+                    empty = true;
+                    break;
+                }
+                if (len > 32) {                     // corrupt payload, see getDynamicPayloadSize()
+                    flush_rx();
+                    empty = true;
+                    break;
+                }
+                read_payload(len);
+            } else {
+                len = payload_size;
+                status = read_payload(len);        // status is shifted out before the payload is popped
+                pipe = (status >> nRF24L01.RX_P_NO) & 0x07;
+                if (pipe == 0x07) {
+                    empty = true;
+                    break;
+                }
+            }
+
+            int slot = (first + count) % slots;
+            System.arraycopy(spi_rxbuff, 1, ring, slot * 32, len);
+            pipes[slot] = pipe;
+            lengths[slot] = len;
+            count++;
+        }
+
+        if (count > 0)
+            write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.RX_DR));
+        rx_pending = !empty;
+
+        return count;
+    }
+
     /**
      * Be sure to call {@link #openWritingPipe(int[])} first to set the destination
      * of where to write to.
@@ -494,17 +901,39 @@ public class rf24 implements AutoCloseable {
      * @return True if the payload was delivered successfully false if not
      * @throws IOException when write/read on spi bus doesn't work
      */
-    //TODO: int or byte, needed?
     public boolean write( byte buf[], int len ) throws IOException {
-        int size = buf.length;
-
-        int[] bufi = new int[size];
+        return write(buf, 0, len);
+    }
 
-        for (int idx = 0; idx < size; idx++) {
-            bufi[idx] = buf[idx];
-        }
+    /**
+     * Same definition as
+     * @see #write(int[], int)
+     * but sending len bytes of buf starting at offset. Nothing is allocated.
+     *
+     * @param buf Byte array containing the payload
+     * @param offset Index in buf of the first payload byte
+     * @param len Number of bytes to be sent
+     * @return True if the payload was delivered successfully false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean write( byte buf[], int offset, int len ) throws IOException {
+        stage_payload(buf, offset, len);
+        return write_staged(false);
+    }
 
-        return write(bufi, len, false);
+    /**
+     * Same definition as
+     * @see #write(int[], int)
+     * but sending the remaining bytes of a ByteBuffer (at most the payload size). The position
+     * is advanced by the number of bytes sent.
+     *
+     * @param buf Buffer containing the payload (heap or direct)
+     * @return True if the payload was delivered successfully false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean write( ByteBuffer buf ) throws IOException {
+        stage_payload(buf, buf.remaining());
+        return write_staged(false);
     }
 
     /**
@@ -525,24 +954,42 @@ public class rf24 implements AutoCloseable {
      */
 
     private boolean write(int buf[], int len, boolean multicast ) throws IOException {
+        stage_payload(buf, len);
+        return write_staged(multicast);
+    }
+
+    /**
+     * Blocking write of the payload staged in payload_txbuff
+     * @see #write(int[], int, boolean)
+     *
+     * @param multicast Request ACK (0), NOACK (1)
+     * @return True if the payload was delivered successfully false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private boolean write_staged( boolean multicast ) throws IOException {
         //Start Writing
-        startFastWrite(buf, len, multicast);
+        start_fast_write(multicast, true);
 
         //Wait until complete or failed
         long timer = millis();
 
         //TODO: check this status
-        while( ((byte)(get_status() & ( _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT) ))) == 0) {
-            long diff = millis() - timer;
+        while (true) {
+            int edges = irqEdges;
+            int status = get_status();
+            if ((status & (_BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT))) != 0)
+                break;
             if((millis() - timer) > 95){
                 errNotify();
                 return false;
             }
+            irq_wait(edges, status, _BV(nRF24L01.RX_DR), 95 - (millis() - timer));
         }
 
         ce(LOW);
 
         byte status = write_register(nRF24L01.NRF_STATUS,_BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT) );
+        record_tx((status & _BV(nRF24L01.MAX_RT)) == 0, 0, ce_high_ns);
 
         //Max retries exceeded
         //TODO: check this status
@@ -593,6 +1040,13 @@ public class rf24 implements AutoCloseable {
         write_register(nRF24L01.RX_ADDR_P0, address, (short) addr_width);
         write_register(nRF24L01.TX_ADDR, address, (short) addr_width);
 
+        tx_address = rf24AddressMap.key(address, addr_width);
+        if (retry_tuner != null) {
+            load_retries(retry_tuner.getDelay(tx_address, retry_delay), retry_tuner.getCount(tx_address, retry_count));
+        } else {
+            load_retries(retry_delay, retry_count);     // tuning switched off
+        }
+
         //const uint8_t max_payload_size = 32;
         //write_register(RX_PW_P0,rf24_min(payload_size,max_payload_size));
         write_register(nRF24L01.RX_PW_P0, payload_size);
@@ -645,19 +1099,60 @@ public class rf24 implements AutoCloseable {
 
         if (child <= 6)
         {
-            // For pipes 2-5, only write the LSB
-            if ( child < 2 )
-                write_register(child_pipe[child], address, (short) addr_width);
-            else
-                write_register(child_pipe[child], address, (short)  1);
-
-            write_register(child_payload_size[child], payload_size);
+            RegisterBatch batch = batch();
+            batch.write(nRF24L01.EN_RXADDR, queue_reading_pipe(batch, child, address, read_register(nRF24L01.EN_RXADDR)));
+            batch.flush();
+        }
+    }
 
-            // Note it would be more efficient to set all of the bits for all open
-            // pipes at once.  However, I thought it would make the calling code
-            // more simple to do it this way.
-            write_register(nRF24L01.EN_RXADDR, read_register(nRF24L01.EN_RXADDR) | _BV(child_pipe_enable[child]));
+    /**
+     * Open several pipes for reading at once
+     *
+     * Same as calling {@link #openReadingPipe(int, int[])} for each pipe, but all registers are
+     * sent in a single {@link RegisterBatch} and the enabled pipes are written only once.
+     *
+     * {@code
+     * int[][] addresses = new int[6][];
+     * ...
+     * radio.openReadingPipes(addresses);
+     * }
+     * @param addresses address of pipe 0 to 5, pipes with a null address are left untouched
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public void openReadingPipes(int[][] addresses) throws IOException {
+        RegisterBatch batch = batch();
+        int en_rxaddr = read_register(nRF24L01.EN_RXADDR);
+
+        for (int child = 0; child < addresses.length && child < 6; child++) {
+            if (addresses[child] == null)
+                continue;
+            if (child == 0)
+                System.arraycopy(addresses[child], 0, pipe0_reading_address, 0, addr_width);
+            en_rxaddr = queue_reading_pipe(batch, child, addresses[child], en_rxaddr);
         }
+        batch.write(nRF24L01.EN_RXADDR, en_rxaddr);
+        batch.flush();
+    }
+
+    /**
+     * Queue the address and payload size of a reading pipe
+     *
+     * @param batch batch to add the registers to
+     * @param child Which pipe# to open, 0-5.
+     * @param address The 24, 32 or 40 bit address of the pipe to open.
+     * @param en_rxaddr current value of the EN_RXADDR register
+     * @return new value for the EN_RXADDR register
+     */
+    private int queue_reading_pipe(RegisterBatch batch, int child, int[] address, int en_rxaddr) {
+        // For pipes 2-5, only write the LSB
+        if ( child < 2 )
+            batch.write(child_pipe[child], address, addr_width);
+        else
+            batch.write(child_pipe[child], address, 1);
+
+        batch.write(child_payload_size[child], payload_size);
+
+        return en_rxaddr | _BV(child_pipe_enable[child]);
     }
 
     /*@}*/
@@ -732,75 +1227,200 @@ public class rf24 implements AutoCloseable {
      * radio.powerDown();
      * radio.powerUp();
      * }
+     * The registers keep their values, startListening() powers the radio up again.
      * @throws IOException when write/read on spi bus doesn't work
      */
-    private void powerDown() throws IOException {
+    public void powerDown() throws IOException {
         ce(LOW); // Guarantee CE is low on powerDown
         write_register(nRF24L01.NRF_CONFIG, (read_register(nRF24L01.NRF_CONFIG) & ~_BV(nRF24L01.PWR_UP)));
+        powerup_ready = 0;
+        account_state();
     }
 
     /**
      * Leave low-power mode - required for normal radio operation after calling powerDown()
      *
      * To return to low power mode, call {@link #powerDown()}.
-     * This will take up to 5ms for maximum compatibility
+     * Blocks for what is left of Tpd2stby (see setPowerUpDelay()) since the radio was powered up,
+     * nothing if powerUpAsync() was called early enough.
+     * @throws IOException when write/read on spi bus doesn't work
      */
+    public void powerUp() throws IOException {
+        powerUpAsync();
+        wait_power_up();
+    }
 
-    private void powerUp() throws IOException {
+    /**
+     * Start leaving low-power mode without waiting for the crystal
+     *
+     * The radio reaches standby Tpd2stby (see setPowerUpDelay()) later. Until then, powerUp()
+     * and every operation raising CE block for the rest of the time. Call it Tpd2stby before
+     * the radio is needed to have it ready without a blind wait.
+     * {@code
+     * radio.powerUpAsync();
+     * // ... other work for at least radio.getPowerUpDelay() us
+     * radio.startListening();   // doesn't wait
+     * }
+     * @return true if the radio was powered down
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean powerUpAsync() throws IOException {
         //Power up now. Radio will not power down unless instructed by MCU for config changes etc.
         byte cfg;
         cfg = read_register(nRF24L01.NRF_CONFIG);
 
-        // if not powered up then power up and wait for the radio to initialize
-        if ((cfg & _BV(nRF24L01.PWR_UP)) !=  _BV(nRF24L01.PWR_UP)){
-            write_register(nRF24L01.NRF_CONFIG, (cfg | _BV(nRF24L01.PWR_UP)));
+        if ((cfg & _BV(nRF24L01.PWR_UP)) ==  _BV(nRF24L01.PWR_UP))
+            return false;
 
-            // For nRF24L01+ to go from power down mode to TX or RX mode it must first pass through stand-by mode.
-            // There must be a delay of Tpd2stby (see Table 16.) after the nRF24L01+ leaves power down mode before
-            // the CEis set high. - Tpd2stby can be up to 5ms per the 1.0 datasheet
-            delay(5);
-        }
+        write_register(nRF24L01.NRF_CONFIG, (cfg | _BV(nRF24L01.PWR_UP)));
+
+        // For nRF24L01+ to go from power down mode to TX or RX mode it must first pass through stand-by mode.
+        // There must be a delay of Tpd2stby (see Table 16.) after the nRF24L01+ leaves power down mode before
+        // the CE is set high, see wait_power_up()
+        powerup_ready = rf24Timer.micros() + powerup_delay;
+        if (powerup_ready == 0)
+            powerup_ready = 1;
+        account_state();
+        return true;
     }
 
     /**
-     * This will not block until the 3 FIFO buffers are filled with data.
-     * Once the FIFOs are full, writeFast will simply wait for success or
-     * timeout, and return 1 or 0 respectively. From a user perspective, just
-     * keep trying to send the same data. The library will keep auto retrying
-     * the current payload using the built in functionality.
-     *
-     * It is important to never keep the nRF24L01 in TX mode and FIFO full for more than 4ms at a time. If the auto
-     * retransmit is enabled, the nRF24L01 is never in TX mode long enough to disobey this rule. Allow the FIFO
-     * to clear by issuing {@link #txStandBy()} or ensure appropriate time between transmissions.
-     *
-     * {@code
-     * Example (Partial blocking):
-     *
-     *			radio.writeFast(buf,32);   // Writes 1 payload to the buffers
-     *			txStandBy();     		   // Returns 0 if failed. 1 if success. Blocks only until MAX_RT timeout or success. Data flushed on fail.
-     *
-     *			radio.writeFast(buf,32);   // Writes 1 payload to the buffers
-     *			txStandBy(1000);		   // Using extended timeouts, returns 1 if success. Retries failed payloads for 1 seconds before returning 0.
-     * }
-     *
-     * @see #txStandBy()
-     * @see #write(int[], int)
-     * @see #writeBlocking(int[], int, int)
-     *
-     * @param buf Integer array of data to be sent
-     * @param len Number of bytes(int) to be sent
-     * @return True if the payload was delivered successfully false if not
-     * @throws IOException when write/read on spi bus doesn't work
+     * Block until Tpd2stby has passed since the radio was powered up
      */
-    public boolean writeFast( int buf[], int len ) throws IOException {
-        return writeFast(buf, len, false);
+    private void wait_power_up() {
+        if (powerup_ready == 0)
+            return;
+        long left = powerup_ready - rf24Timer.micros();
+        if (left > 0)
+            delayMicroseconds(left);
+        powerup_ready = 0;
     }
 
     /**
-     * WriteFast for single NOACK writes. Disables acknowledgements/autoretries for a single write.
+     * Set Tpd2stby, the time the radio needs from power down to standby
      *
-     * {@link #enableDynamicAck()} must be called to enable this feature
-     * @see #enableDynamicAck()
+     * The nRF24L01+ datasheet gives 1.5ms with a crystal of Ls < 30mH and 4.5ms for
+     * Ls = 90mH (Table 16). Measure the module before lowering it.
+     * @param us delay in us, POWER_UP_DELAY by default
+     */
+    public void setPowerUpDelay(int us) {
+        powerup_delay = us;
+    }
+
+    /**
+     * @return Tpd2stby in us, see setPowerUpDelay()
+     */
+    public int getPowerUpDelay() {
+        return powerup_delay;
+    }
+
+    /**
+     * @return true while the radio is powered up (also during Tpd2stby)
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean isPoweredUp() throws IOException {
+        return (read_register(nRF24L01.NRF_CONFIG) & _BV(nRF24L01.PWR_UP)) != 0;
+    }
+
+    /**
+     * Current power state as seen by the driver: POWER_DOWN, STANDBY (also Tpd2stby and
+     * standby-II), RX or TX (CE high)
+     * @return the state
+     */
+    public int getPowerState() {
+        return power_state;
+    }
+
+    /**
+     * Time spent in a power state since begin() or resetStateTime(), useful to estimate the
+     * consumption: about 900nA powered down, 26uA in standby, 13.5mA RX and 11.5mA TX.
+     *
+     * {@code
+     * long rx = radio.getStateTime(rf24.RX);
+     * long total = rx + radio.getStateTime(rf24.STANDBY) + radio.getStateTime(rf24.TX) + radio.getStateTime(rf24.POWER_DOWN);
+     * Log.i(TAG, "RX duty " + (100 * rx / total) + "%");
+     * }
+     * @param state POWER_DOWN, STANDBY, RX or TX
+     * @return time in us, including the current state up to now
+     */
+    public long getStateTime(int state) {
+        long time = state_time[state];
+        if (state == power_state)
+            time += rf24Timer.micros() - state_since;
+        return time;
+    }
+
+    /**
+     * Restart the power state accounting
+     */
+    public void resetStateTime() {
+        Arrays.fill(state_time, 0);
+        state_since = rf24Timer.micros();
+    }
+
+    /**
+     * Account the time of the previous power state and take the new one from PWR_UP,
+     * CE and PRIM_RX (cached registers, no SPI transfer)
+     */
+    private void account_state() {
+        int state;
+        if (!reg_shadow_valid[nRF24L01.NRF_CONFIG])
+            return;
+        int config = reg_shadow[nRF24L01.NRF_CONFIG];
+        if ((config & _BV(nRF24L01.PWR_UP)) == 0)
+            state = POWER_DOWN;
+        else if (!ce_level)
+            state = STANDBY;
+        else
+            state = (config & _BV(nRF24L01.PRIM_RX)) != 0 ? RX : TX;
+
+        if (state != power_state) {
+            long now = rf24Timer.micros();
+            state_time[power_state] += now - state_since;
+            state_since = now;
+            power_state = state;
+        }
+    }
+
+    /**
+     * This will not block until the 3 FIFO buffers are filled with data.
+     * Once the FIFOs are full, writeFast will simply wait for success or
+     * timeout, and return 1 or 0 respectively. From a user perspective, just
+     * keep trying to send the same data. The library will keep auto retrying
+     * the current payload using the built in functionality.
+     *
+     * It is important to never keep the nRF24L01 in TX mode and FIFO full for more than 4ms at a time. If the auto
+     * retransmit is enabled, the nRF24L01 is never in TX mode long enough to disobey this rule. Allow the FIFO
+     * to clear by issuing {@link #txStandBy()} or ensure appropriate time between transmissions.
+     *
+     * {@code
+     * Example (Partial blocking):
+     *
+     *			radio.writeFast(buf,32);   // Writes 1 payload to the buffers
+     *			txStandBy();     		   // Returns 0 if failed. 1 if success. Blocks only until MAX_RT timeout or success. Data flushed on fail.
+     *
+     *			radio.writeFast(buf,32);   // Writes 1 payload to the buffers
+     *			txStandBy(1000);		   // Using extended timeouts, returns 1 if success. Retries failed payloads for 1 seconds before returning 0.
+     * }
+     *
+     * @see #txStandBy()
+     * @see #write(int[], int)
+     * @see #writeBlocking(int[], int, int)
+     *
+     * @param buf Integer array of data to be sent
+     * @param len Number of bytes(int) to be sent
+     * @return True if the payload was delivered successfully false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean writeFast( int buf[], int len ) throws IOException {
+        return writeFast(buf, len, false);
+    }
+
+    /**
+     * WriteFast for single NOACK writes. Disables acknowledgements/autoretries for a single write.
+     *
+     * {@link #enableDynamicAck()} must be called to enable this feature
+     * @see #enableDynamicAck()
      * @see #setAutoAck(boolean)
      *
      * @param buf Integer array of data to be sent
@@ -810,6 +1430,52 @@ public class rf24 implements AutoCloseable {
      */
 
     public boolean writeFast( int buf[], int len, boolean multicast ) throws IOException {
+        stage_payload(buf, len);
+        return write_fast_staged(multicast);
+    }
+
+    /**
+     * Same definition as
+     * @see #writeFast(int[], int, boolean)
+     * but sending len bytes of buf starting at offset. Nothing is allocated.
+     *
+     * @param buf Byte array containing the payload
+     * @param offset Index in buf of the first payload byte
+     * @param len Number of bytes to be sent
+     * @param multicast Request ACK (0) or NOACK (1)
+     * @return True if the payload was loaded into the FIFO, false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean writeFast( byte buf[], int offset, int len, boolean multicast ) throws IOException {
+        stage_payload(buf, offset, len);
+        return write_fast_staged(multicast);
+    }
+
+    /**
+     * Same definition as
+     * @see #writeFast(int[], int, boolean)
+     * but sending the remaining bytes of a ByteBuffer (at most the payload size). The position
+     * is advanced by the number of bytes sent.
+     *
+     * @param buf Buffer containing the payload (heap or direct)
+     * @param multicast Request ACK (0) or NOACK (1)
+     * @return True if the payload was loaded into the FIFO, false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean writeFast( ByteBuffer buf, boolean multicast ) throws IOException {
+        stage_payload(buf, buf.remaining());
+        return write_fast_staged(multicast);
+    }
+
+    /**
+     * Non blocking write of the payload staged in payload_txbuff
+     * @see #writeFast(int[], int, boolean)
+     *
+     * @param multicast Request ACK (0) or NOACK (1)
+     * @return True if the payload was loaded into the FIFO, false if not
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private boolean write_fast_staged( boolean multicast ) throws IOException {
         //Block until the FIFO is NOT full.
         //Keep track of the MAX retries and set auto-retry if seeing failures
         //Return 0 so the user can control the retrys and set a timer or failure counter if required
@@ -819,9 +1485,13 @@ public class rf24 implements AutoCloseable {
 
         //TODO: check this status
 
-        while ((get_status() & _BV(nRF24L01.TX_FULL)) ==  _BV(nRF24L01.TX_FULL)) {   //Blocking only if FIFO is full. This will loop and block until TX is successful or fail
+        while (true) {   //Blocking only if FIFO is full. This will loop and block until TX is successful or fail
+            int edges = irqEdges;
+            int status = get_status();
+            if ((status & _BV(nRF24L01.TX_FULL)) != _BV(nRF24L01.TX_FULL))
+                break;
             //TODO: check this status
-            if ((get_status() & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)) {
+            if ((status & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)) {
                 //reUseTX();										            //Set re-transmit
                 write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.MAX_RT));      //Clear max retry flag
                 return false;                                                   //Return 0. The previous payload has been retransmitted
@@ -831,20 +1501,16 @@ public class rf24 implements AutoCloseable {
                 errNotify();
                 return false;
             }
+            irq_wait(edges, status, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS), 95 - (millis() - timer));
         }
         //Start Writing
-        startFastWrite(buf, len, multicast);
+        start_fast_write(multicast, true);
 
         return true;
     }
 
     public boolean writeFast( byte buf[], int len, boolean multicast ) throws IOException {
-        int[] tmp = new int[len];
-
-        for(int idx=0; idx < len; idx++)
-            tmp[idx] = buf[idx];
-
-        return writeFast( tmp, len, multicast );
+        return writeFast(buf, 0, len, multicast);
     }
 
     /**
@@ -882,24 +1548,31 @@ public class rf24 implements AutoCloseable {
         //This way the FIFO will fill up and allow blocking until packets go through
         //The radio will auto-clear everything in the FIFO as long as CE remains high
 
+        stage_payload(buf, len);
+
         long timer = millis();                              //Get the time that the payload transmission started
 
         //TODO: check this status
-        while ((get_status() & (_BV(nRF24L01.TX_FULL))) == _BV(nRF24L01.TX_FULL)) {          //Blocking only if FIFO is full. This will loop and block until TX is successful or timeout
-            if ((get_status() & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)) {                   //If MAX Retries have been reached
+        while (true) {          //Blocking only if FIFO is full. This will loop and block until TX is successful or timeout
+            int edges = irqEdges;
+            int status = get_status();
+            if ((status & (_BV(nRF24L01.TX_FULL))) != _BV(nRF24L01.TX_FULL))
+                break;
+            if ((status & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)) {                   //If MAX Retries have been reached
                 reUseTX();                                                      //Set re-transmit and clear the MAX_RT interrupt flag
                 if ((millis() - timer) > timeout) {
                     return false;
                 }                  //If this payload has exceeded the user-defined timeout, exit and return 0
+                continue;
             }
             if (millis() - timer > (timeout + 95)) {
                 errNotify();
                 return false;
             }
-
+            irq_wait(edges, status, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS), timeout + 95 - (millis() - timer));
         }
         //Start Writing
-        startFastWrite(buf, len, false);                                  //Write the payload if a buffer is clear
+        start_fast_write(false, true);                                  //Write the payload if a buffer is clear
 
         return true;                                                  //Return 1 to indicate successful transmission
     }
@@ -934,8 +1607,12 @@ public class rf24 implements AutoCloseable {
 
         long timeout = millis();
 
-        while( (read_register(nRF24L01.FIFO_STATUS) & _BV(nRF24L01.TX_EMPTY)) != _BV(nRF24L01.TX_EMPTY)){
-            if( (get_status() & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)){
+        while (true) {
+            int edges = irqEdges;
+            if ((read_register(nRF24L01.FIFO_STATUS) & _BV(nRF24L01.TX_EMPTY)) == _BV(nRF24L01.TX_EMPTY))
+                break;
+            int status = get_status();
+            if( (status & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)){
                 write_register(nRF24L01.NRF_STATUS,_BV(nRF24L01.MAX_RT) );
                 ce(LOW);
                 flush_tx();    //Non blocking, flush the data
@@ -945,6 +1622,7 @@ public class rf24 implements AutoCloseable {
                 errNotify();
                 return false;
             }
+            irq_wait(edges, status, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS), 95 - (millis() - timeout));
         }
 
         ce(LOW);			   //Set STANDBY-I mode
@@ -977,26 +1655,36 @@ public class rf24 implements AutoCloseable {
         }
 
         long start = millis();
+        long started = ce_high_ns;
+        int cycles = 0;
 
         //while( (read_register(nRF24L01.FIFO_STATUS) & _BV(nRF24L01.TX_EMPTY)) == _BV(nRF24L01.TX_EMPTY)){
-        while( (read_register(nRF24L01.FIFO_STATUS) & _BV(nRF24L01.TX_EMPTY)) == 0){
-            if( (get_status() & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)){
+        while (true) {
+            int edges = irqEdges;
+            if ((read_register(nRF24L01.FIFO_STATUS) & _BV(nRF24L01.TX_EMPTY)) != 0)
+                break;
+            int status = get_status();
+            if( (status & _BV(nRF24L01.MAX_RT)) == _BV(nRF24L01.MAX_RT)){
                 write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.MAX_RT) );
+                if(millis() - start >= timeout){
+                    ce(LOW); record_tx(false, cycles, started); flush_tx(); return false;
+                }
                 ce(LOW);										  //Set re-transmit
                 //delayMicroseconds(10);      // needed?
                 ce(HIGH);
-                if(millis() - start >= timeout){
-                    ce(LOW); flush_tx(); return false;
-                }
+                cycles++;
+                continue;
             }
             if( millis() - start > (timeout+95)){
                 flush_tx();    //Non blocking, flush the data
                 errNotify();
                 return false;
             }
+            irq_wait(edges, status, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS), timeout + 95 - (millis() - start));
         }
 
         ce(LOW);				   //Set STANDBY-I mode
+        record_tx(true, cycles, started);
         return true;
 
     }
@@ -1022,6 +1710,284 @@ public class rf24 implements AutoCloseable {
         return txStandBy(timeout, false);
     }
 
+    /**
+     * Streaming write: send a sequence of payloads keeping the 3 level TX FIFO full
+     *
+     * CE stays high for the whole stream, so the radio goes from one payload to the next without
+     * the standby round trip of write()/txStandBy(). The FIFO is refilled as soon as a slot is
+     * free. If a payload fails (MAX_RT) the FIFO is flushed and the payloads behind the failed
+     * one are queued again, so a failure doesn't take its neighbours with it.
+     *
+     * Per payload completion is reported like {@link #whatHappened()}: results[i] is the TX_DS
+     * bit value (0x20) if the payload was sent (acknowledged unless multicast), the MAX_RT bit
+     * value (0x10) if it failed and 0 if the timeout hit before it was sent.
+     *
+     * Call stopListening() and openWritingPipe() first. Multicast (NOACK) payloads need
+     * {@link #enableDynamicAck()}.
+     *
+     * {@code
+     * radio.stopListening();
+     * int sent = radio.writeStream(payloads, lengths, count, false, results, 1000);
+     * }
+     * @param payloads count payloads of up to 32 bytes, payload i starts at payloads[i * 32]
+     * @param lengths length of each payload
+     * @param count number of payloads
+     * @param multicast Request ACK (false) or NOACK (true)
+     * @param results receives the completion of each payload (TX_DS / MAX_RT bit values, 0)
+     * @param timeout timeout for the whole stream in milliseconds
+     * @return number of payloads sent successfully
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public int writeStream(byte[] payloads, int[] lengths, int count, boolean multicast, byte[] results, int timeout) throws IOException {
+        int type = multicast ? nRF24L01.W_TX_PAYLOAD_NO_ACK : nRF24L01.W_TX_PAYLOAD;
+        int loaded = 0;         // payloads written to the FIFO
+        int confirmed = 0;      // payloads with a result
+        int delivered = 0;
+        boolean started = false;
+        long timer = millis();
+
+        for (int idx = 0; idx < count; idx++)
+            results[idx] = 0;
+
+        while (confirmed < count) {
+            int edges = irqEdges;
+            int status = get_status();
+
+            if ((status & _BV(nRF24L01.MAX_RT)) != 0) {
+                // The FIFO stopped on the oldest payload still queued
+                int failed = loaded - tx_fifo_count(status, loaded - confirmed);
+                while (confirmed < failed) {
+                    results[confirmed++] = (byte) _BV(nRF24L01.TX_DS);
+                    delivered++;
+                }
+                results[confirmed++] = (byte) _BV(nRF24L01.MAX_RT);
+
+                flush_tx();
+                write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.MAX_RT) | _BV(nRF24L01.TX_DS));
+                loaded = confirmed;                         // queue the payloads behind the failed one again
+                continue;
+            }
+
+            if ((status & _BV(nRF24L01.TX_FULL)) == 0 && loaded < count) {
+                stage_payload(payloads, loaded * 32, lengths[loaded]);
+                write_payload(type);
+                loaded++;
+                if (!started) {
+                    ce(HIGH);
+                    started = true;
+                }
+                continue;
+            }
+
+            if ((read_register(nRF24L01.FIFO_STATUS) & _BV(nRF24L01.TX_EMPTY)) != 0) {
+                while (confirmed < loaded) {
+                    results[confirmed++] = (byte) _BV(nRF24L01.TX_DS);
+                    delivered++;
+                }
+                continue;
+            }
+
+            long elapsed = millis() - timer;
+            if (elapsed > timeout)
+                break;
+            irq_wait(edges, status, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS), timeout - elapsed);
+        }
+
+        ce(LOW);                                            //Set STANDBY-I mode
+        if (confirmed < count)
+            flush_tx();
+        write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.MAX_RT) | _BV(nRF24L01.TX_DS));
+
+        return delivered;
+    }
+
+    /**
+     * Number of payloads in the TX FIFO while it is stopped by MAX_RT
+     *
+     * The FIFO status only tells empty/full. With 2 or 3 candidates and the FIFO not full a 1 byte
+     * probe payload is written (it's never sent, the FIFO is flushed after MAX_RT; a zero length
+     * payload isn't valid with dynamic payloads): if the FIFO is full afterwards it held 2
+     * payloads.
+     *
+     * @param status status register with MAX_RT set
+     * @param queued number of payloads written and not confirmed yet
+     * @return payloads in the FIFO (1..3)
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private int tx_fifo_count(int status, int queued) throws IOException {
+        if ((status & _BV(nRF24L01.TX_FULL)) != 0)
+            return 3;
+        if (queued <= 1)
+            return 1;
+
+        payload_txbuff[1] = 0;
+        stage_blanks(1);
+        write_payload(nRF24L01.W_TX_PAYLOAD);
+        return (get_status() & _BV(nRF24L01.TX_FULL)) != 0 ? 2 : 1;
+    }
+
+    /**
+     * Asynchronous write: queue a payload and return immediately
+     *
+     * The payload goes on air as soon as the previous asynchronous write is done (one payload is
+     * in flight at a time, so the retry count of OBSERVE_TX belongs to it). The result is
+     * detected by {@link #pollTx()}, which has to be called regularly (rf24Network.update() does
+     * it); the future is completed on the thread calling pollTx(). If the radio was listening it
+     * is switched to TX for the payload and back to RX afterwards.
+     *
+     * Uses the writing pipe open when the payload goes on air. Don't call the blocking writes
+     * while an asynchronous write is pending, see {@link #getPendingWrites()}.
+     *
+     * {@code
+     * radio.writeAsync(data, 0, data.length, false).thenAccept(result -> {
+     *     if (!result.isAcked())
+     *         Log.i(TAG, "Command lost: " + result);
+     * });
+     * while (running) {
+     *     radio.pollTx();
+     *     ...
+     * }
+     * }
+     * @param buf Byte array of data to be sent
+     * @param offset position of the first byte in buf
+     * @param len Number of bytes to be sent
+     * @param multicast Request ACK (false) or NOACK (true)
+     * @return completed with the delivery result and the measured retries
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public CompletableFuture<rf24TxResult> writeAsync( byte buf[], int offset, int len, boolean multicast ) throws IOException {
+        AsyncWrite request = new AsyncWrite(multicast);
+        request.len = Math.min(len, payload_size);
+        System.arraycopy(buf, offset, request.data, 0, request.len);
+        return queue_async(request);
+    }
+
+    /**
+     * Asynchronous write of an integer array
+     * @see #writeAsync(byte[], int, int, boolean)
+     *
+     * @param buf Integer array of data to be sent
+     * @param len Number of bytes(int) to be sent
+     * @param multicast Request ACK (false) or NOACK (true)
+     * @return completed with the delivery result and the measured retries
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public CompletableFuture<rf24TxResult> writeAsync( int buf[], int len, boolean multicast ) throws IOException {
+        AsyncWrite request = new AsyncWrite(multicast);
+        request.len = Math.min(len, payload_size);
+        for (int idx = 0; idx < request.len; idx++)
+            request.data[idx] = (byte) buf[idx];
+        return queue_async(request);
+    }
+
+    /**
+     * Check the asynchronous write in flight and complete its future if the radio is done
+     * (TX_DS, MAX_RT or 95ms without answer). Starts the next queued write.
+     *
+     * Costs one status read while a write is in flight and nothing otherwise.
+     * @return number of asynchronous writes still pending
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public int pollTx() throws IOException {
+        AsyncWrite request = tx_async.peekFirst();
+        if (request == null)
+            return 0;
+
+        int status = get_status();
+        int result;
+        if ((status & _BV(nRF24L01.TX_DS)) != 0) {
+            result = rf24TxResult.ACKED;
+        } else if ((status & _BV(nRF24L01.MAX_RT)) != 0) {
+            result = rf24TxResult.MAX_RETRIES;
+        } else if (rf24Timer.micros() - request.started > TX_ASYNC_TIMEOUT * 1000L) {
+            result = rf24TxResult.TIMEOUT;
+            errNotify();
+        } else {
+            return tx_async.size();
+        }
+
+        ce(LOW);
+        int retries = getARC();
+        if (result != rf24TxResult.TIMEOUT)
+            record_tx(result == rf24TxResult.ACKED, 0, ce_high_ns);
+        write_register(nRF24L01.NRF_STATUS, _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT));
+        if (result != rf24TxResult.ACKED)
+            flush_tx();
+
+        tx_async.pollFirst();
+        if (!tx_async.isEmpty())
+            start_async(tx_async.peekFirst());
+        else if (tx_async_listening)
+            startListening();
+
+        // completed last: callbacks may queue the next write
+        request.future.complete(new rf24TxResult(result, retries, rf24Timer.micros() - request.queued));
+        return tx_async.size();
+    }
+
+    /**
+     * @return number of asynchronous writes queued or in flight
+     */
+    public int getPendingWrites() {
+        return tx_async.size();
+    }
+
+    /**
+     * Auto retransmit count of the last transmission (ARC_CNT of OBSERVE_TX). Reset when a new
+     * payload is sent, equal to the configured retries after MAX_RT.
+     * @return retransmissions 0..15
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public int getARC() throws IOException {
+        return (read_register(nRF24L01.OBSERVE_TX) >> nRF24L01.ARC_CNT) & 0x0F;
+    }
+
+    /**
+     * Queue an asynchronous write, start it if the radio is free
+     * @param request payload and future
+     * @return request.future
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private CompletableFuture<rf24TxResult> queue_async(AsyncWrite request) throws IOException {
+        request.queued = rf24Timer.micros();
+        tx_async.addLast(request);
+        if (tx_async.size() == 1) {
+            tx_async_listening = (read_register(nRF24L01.NRF_CONFIG) & _BV(nRF24L01.PRIM_RX)) != 0;
+            if (tx_async_listening)
+                stopListening();
+            start_async(request);
+        }
+        return request.future;
+    }
+
+    /**
+     * Put an asynchronous write on air (radio in TX mode, CE low)
+     * @param request payload to send
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void start_async(AsyncWrite request) throws IOException {
+        stage_payload(request.data, 0, request.len);
+        start_fast_write(request.multicast, true);
+        request.started = rf24Timer.micros();
+    }
+
+    /**
+     * Asynchronous write request, see writeAsync()
+     */
+    private static final class AsyncWrite {
+        final byte[] data = new byte[32];
+        final boolean multicast;
+        final CompletableFuture<rf24TxResult> future = new CompletableFuture<>();
+        int len;
+        /** rf24Timer.micros() of writeAsync() and of the start of the transmission */
+        long queued;
+        long started;
+
+        AsyncWrite(boolean multicast) {
+            this.multicast = multicast;
+        }
+    }
+
     /**
      * Write an ack payload for the specified pipe
      *
@@ -1059,11 +2025,32 @@ public class rf24 implements AutoCloseable {
         while ( data_len-- > 0){
             ptx[idx + 1] = (byte) (0x000000FF &  buf[idx++]);
         }
-        transfer(spi_txbuff, size);
+        transfer(spi_txbuff, spi_rxbuff, size);
         endTransaction();
 
     }
 
+    /**
+     * Same definition as
+     * @see #writeAckPayload(int, int[], int)
+     * but sending len bytes of buf starting at offset.
+     *
+     * @param pipe Which pipe# (typically 1-5) will get this response.
+     * @param buf Byte array containing the ack payload
+     * @param offset Index in buf of the first payload byte
+     * @param len Length of the data to send, up to 32 bytes max.
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public void writeAckPayload(int pipe, byte buf[], int offset, int len)  throws IOException {
+        int data_len = rf24_min(len,32);
+
+        beginTransaction();
+        spi_txbuff[0] = (byte) (0x000000FF & (nRF24L01.W_ACK_PAYLOAD | ( pipe & 0x07 )));
+        System.arraycopy(buf, offset, spi_txbuff, 1, data_len);
+        transfer(spi_txbuff, spi_rxbuff, data_len + 1);
+        endTransaction();
+    }
+
     /**
      * Determine if an ack payload was received in the most recent call to
      * write(). The regular available() can also be used.
@@ -1089,7 +2076,7 @@ public class rf24 implements AutoCloseable {
      * rx_ready There is a message waiting to be read (RX_DS)
      * @throws IOException when write/read on spi bus doesn't work
      */
-    private boolean[] whatHappened() throws IOException {
+    public boolean[] whatHappened() throws IOException {
         boolean ret[] = new boolean[3];
         // Read the status & reset the status in one easy call
         // Or is that such a good idea?
@@ -1163,12 +2150,24 @@ public class rf24 implements AutoCloseable {
      * @throws IOException when write/read on spi bus doesn't work
      */
     private void startFastWrite(int buf[], int len, boolean multicast, boolean startTx) throws IOException { //TMRh20
-        //write_payload( buf,len);
-        write_payload(buf, len, multicast ? nRF24L01.W_TX_PAYLOAD_NO_ACK : nRF24L01.W_TX_PAYLOAD);
+        stage_payload(buf, len);
+        start_fast_write(multicast, startTx);
+    }
+
+    /**
+     * Write the payload staged in payload_txbuff to the TX FIFO and optionally set CE high
+     * @see #startFastWrite(int[], int, boolean, boolean)
+     *
+     * @param multicast Request ACK (0) or NOACK (1)
+     * @param startTx start transmit -> CE (HIGH)
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void start_fast_write(boolean multicast, boolean startTx) throws IOException {
+        write_payload(multicast ? nRF24L01.W_TX_PAYLOAD_NO_ACK : nRF24L01.W_TX_PAYLOAD);
+        tx_noack = multicast;
         if (startTx) {
             ce(HIGH);
         }
-
     }
 
     /**
@@ -1197,7 +2196,8 @@ public class rf24 implements AutoCloseable {
         //Allows the library to pass all tests
 
         // Send the payload
-        write_payload(buf, len, multicast ? nRF24L01.W_TX_PAYLOAD_NO_ACK : nRF24L01.W_TX_PAYLOAD);
+        stage_payload(buf, len);
+        write_payload(multicast ? nRF24L01.W_TX_PAYLOAD_NO_ACK : nRF24L01.W_TX_PAYLOAD);
         ce(HIGH);
         //#if defined(CORE_TEENSY) || !defined(ARDUINO) || defined (RF24_SPIDEV) || defined (RF24_DUE)
         //delayMicroseconds(10);
@@ -1236,9 +2236,20 @@ public class rf24 implements AutoCloseable {
      * @return Current value of status register
      */
     private byte flush_tx() throws IOException {
+        tx_flushes++;
         return spiTrans((byte) nRF24L01.FLUSH_TX);
     }
 
+    /**
+     * Number of TX FIFO flushes so far. With ACK payloads enabled startListening() and
+     * stopListening() flush the TX FIFO, a changed count tells that loaded ACK payloads are gone.
+     * @see #writeAckPayload(int, int[], int)
+     * @return flush count (wraps around)
+     */
+    public int getTxFlushes() {
+        return tx_flushes;
+    }
+
     /**
      * Test whether there was a carrier on the line for the
      * previous listening period.
@@ -1272,6 +2283,91 @@ public class rf24 implements AutoCloseable {
         return (read_register(nRF24L01.RPD) & 1) == 1;
     }
 
+    /**
+     * Sweep all channels and count on how many samples a carrier (RPD, >= -64dBm) is present
+     *
+     * The radio is put in RX mode on each channel for SCAN_DWELL us (RX settling plus the RPD
+     * measurement time) and the RPD register is read before moving to the next channel; one
+     * sample of every channel is taken per sweep, so interference bursts spread over all
+     * channels instead of hitting a few of them. A sweep takes about 126 * 200us = 25ms.
+     * Channel, mode and CE are restored afterwards. Don't scan while a write is pending.
+     *
+     * {@code
+     * int[] histogram = new int[rf24.SCAN_CHANNELS];
+     * int channel = radio.scanChannels(100, histogram);
+     * radio.setChannel(channel);
+     * }
+     * @param samples number of sweeps
+     * @param histogram receives the number of samples with a carrier, SCAN_CHANNELS entries
+     * @return the quietest channel, see recommendChannel()
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public int scanChannels(int samples, int[] histogram) throws IOException {
+        int channel = read_register(nRF24L01.RF_CH);
+        int config = read_register(nRF24L01.NRF_CONFIG);
+        boolean active = ce_level;
+
+        ce(LOW);
+        powerUp();
+        write_register(nRF24L01.NRF_CONFIG, read_register(nRF24L01.NRF_CONFIG) | _BV(nRF24L01.PRIM_RX));
+
+        Arrays.fill(histogram, 0, SCAN_CHANNELS, 0);
+        for (int sample = 0; sample < samples; sample++) {
+            for (int ch = 0; ch < SCAN_CHANNELS; ch++) {
+                write_register(nRF24L01.RF_CH, ch);
+                ce(HIGH);
+                delayMicroseconds(SCAN_DWELL);
+                if ((read_register(nRF24L01.RPD) & 1) != 0)
+                    histogram[ch]++;
+                ce(LOW);
+            }
+        }
+
+        write_register(nRF24L01.RF_CH, channel);
+        write_register(nRF24L01.NRF_CONFIG, config);
+        if (active)
+            ce(HIGH);
+
+        return recommendChannel(histogram, 0, SCAN_CHANNELS - 1);
+    }
+
+    /**
+     * Occupancy score of a channel: carrier samples on the channel and its neighbours, weighted
+     * 4-2-1 by distance (a 1/2Mbps link and Wi-Fi leak into the adjacent channels)
+     * @param histogram scanChannels() result
+     * @param channel channel 0..125
+     * @return score, lower is quieter
+     */
+    public static int channelScore(int[] histogram, int channel) {
+        int score = 4 * histogram[channel];
+        for (int distance = 1; distance <= 2; distance++) {
+            int weight = distance == 1 ? 2 : 1;
+            score += weight * histogram[Math.max(0, channel - distance)];
+            score += weight * histogram[Math.min(SCAN_CHANNELS - 1, channel + distance)];
+        }
+        return score;
+    }
+
+    /**
+     * Quietest channel of a scan
+     * @param histogram scanChannels() result
+     * @param first lowest channel allowed
+     * @param last highest channel allowed (mind the local regulations above channel 83)
+     * @return channel with the lowest channelScore(), the lowest one if several are equal
+     */
+    public static int recommendChannel(int[] histogram, int first, int last) {
+        int best = first;
+        int bestScore = Integer.MAX_VALUE;
+        for (int ch = first; ch <= last; ch++) {
+            int score = channelScore(histogram, ch);
+            if (score < bestScore) {
+                bestScore = score;
+                best = ch;
+            }
+        }
+        return best;
+    }
+
 
     /**
      * Test whether this is a real radio, or a mock shim for
@@ -1291,7 +2387,7 @@ public class rf24 implements AutoCloseable {
      * @return true if chip is connected, false if not
      */
     public boolean isChipConnected() throws IOException {
-        short setup = read_register(nRF24L01.SETUP_AW);
+        short setup = read_register_direct(nRF24L01.SETUP_AW);
         if (setup >= 1 && setup <= 3) {
             return true;
         } else {
@@ -1302,11 +2398,453 @@ public class rf24 implements AutoCloseable {
     public int isConnected() throws IOException
     {
         short aw;
-        aw = read_register(nRF24L01.SETUP_AW);
+        aw = read_register_direct(nRF24L01.SETUP_AW);
         return (int)(aw & 0x0E);
         //return((aw & 0xFC) == 0x00 && (aw & 0x03) != 0x00);
     }
 
+    /**
+     * Forget the shadow copy of the registers
+     *
+     * The next read of every configuration register goes to the chip again. Use it if the chip
+     * could have been reset or reconfigured behind the driver's back.
+     */
+    public void invalidateRegisterCache() {
+        Arrays.fill(reg_shadow_valid, false);
+        Arrays.fill(addr_shadow_valid, false);
+    }
+
+    /**
+     * Reload the shadow copy of all configuration and address registers from the chip
+     *
+     * {@code
+     * radio.resyncRegisters();
+     * radio.printDetails();
+     * }
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public void resyncRegisters() throws IOException {
+        int[] addr = new int[5];
+
+        for (int reg = 0; reg < REGISTER_COUNT; reg++) {
+            if (is_shadowed(reg))
+                resync_register(reg);
+        }
+        read_register(nRF24L01.RX_ADDR_P0, addr, addr_width);
+        read_register(nRF24L01.RX_ADDR_P1, addr, addr_width);
+        read_register(nRF24L01.TX_ADDR, addr, addr_width);
+    }
+
+    /**
+     * Compare the shadow copy of the registers against the chip
+     *
+     * The shadow is left untouched, it still holds the configuration written by the driver.
+     * A mismatch usually means that the chip was reset (e.g. brown-out) or the SPI bus is corrupting data.
+     *
+     * {@code
+     * if(!radio.verifyRegisters()){
+     *     radio.begin();
+     * }
+     * }
+     * @return true if every valid shadow entry matches the chip
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public boolean verifyRegisters() throws IOException {
+        boolean result = true;
+
+        for (int reg = 0; reg < REGISTER_COUNT; reg++) {
+            if (!is_shadowed(reg) || !reg_shadow_valid[reg])
+                continue;
+            byte value = read_register_direct(reg);
+            if (value != reg_shadow[reg]) {
+                Log.e(TAG, "Register 0x" + Integer.toHexString(reg) + " is 0x" + Integer.toHexString(0xFF & value)
+                        + ", expected 0x" + Integer.toHexString(0xFF & reg_shadow[reg]));
+                result = false;
+            }
+        }
+
+        int[] addr = new int[5];
+        for (int a = 0; a < addr_shadow.length; a++) {
+            if (!addr_shadow_valid[a])
+                continue;
+            byte[] expected = Arrays.copyOf(addr_shadow[a], addr_width);
+            read_register(addr_shadow_register(a), addr, addr_width);  // refreshes the shadow
+            if (!addr_shadow_equals(a, expected)) {
+                Log.e(TAG, "Address register 0x" + Integer.toHexString(addr_shadow_register(a)) + " doesn't match");
+                System.arraycopy(expected, 0, addr_shadow[a], 0, addr_width);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Find the highest reliable SPI clock of this unit
+     *
+     * The clock is stepped up from min to max (SPI_SPEEDS in between). At every step test
+     * patterns are written into TX_ADDR and RX_ADDR_P0 and read back SPI_CALIBRATION_ROUNDS
+     * times, up to the first step with an error. The clock is set one step below the highest step
+     * that passed as safety margin: a step passing 32 rounds next to the limit of the wiring (or
+     * below an untested limit if every step passed) may still fail on a warmer day. With only min
+     * passing min is set. The addresses are restored afterwards. Can be called
+     * before begin(), the registers are accessible while the radio is powered down.
+     * {@code
+     * radio = new rf24((byte) 0, (byte) 1, 4000000);
+     * int hz = radio.calibrateSpiSpeed(1000000, 10000000);   // 8MHz if every step passes
+     * Log.i(TAG, "SPI clock " + hz + "Hz");
+     * mesh.begin();
+     * }
+     * @param min lowest SPI clock in Hz
+     * @param max highest SPI clock in Hz (the nRF24L01+ is specified up to 10MHz)
+     * @return the clock set in Hz, 0 if not even min is reliable (min is set then)
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public int calibrateSpiSpeed(int min, int max) throws IOException {
+        if (min <= 0 || max < min)
+            throw new IllegalArgumentException("Invalid SPI clock range " + min + ".." + max + "Hz");
+        if (!open_transport())
+            return 0;
+
+        int[] steps = new int[SPI_SPEEDS.length + 2];
+        int count = 0;
+        steps[count++] = min;
+        for (int hz : SPI_SPEEDS) {
+            if (hz > min && hz < max)
+                steps[count++] = hz;
+        }
+        if (max > min)
+            steps[count++] = max;
+
+        // Registers the test overwrites, read twice at the lowest clock to trust them
+        set_spi_speed(min);
+        int[] tx_addr = new int[5];
+        int[] rx_addr = new int[5];
+        int[] check = new int[5];
+        read_register(nRF24L01.TX_ADDR, tx_addr, addr_width);
+        read_register(nRF24L01.RX_ADDR_P0, rx_addr, addr_width);
+        read_register(nRF24L01.TX_ADDR, check, addr_width);
+
+        int best = -1;
+        boolean failed = !Arrays.equals(tx_addr, check);
+        for (int step = 0; step < count && !failed; step++) {
+            set_spi_speed(steps[step]);
+            if (spi_pattern_test())
+                best = step;
+            else
+                failed = true;
+        }
+
+        int hz;
+        if (best < 0) {
+            hz = 0;
+            set_spi_speed(min);
+            Log.e(TAG, "SPI not reliable at " + min + "Hz");
+        } else {
+            // one step of safety margin below the highest step that passed
+            if (best > 0)
+                best--;
+            hz = steps[best];
+            set_spi_speed(hz);
+        }
+
+        spi_address_write(nRF24L01.TX_ADDR, tx_addr);
+        spi_address_write(nRF24L01.RX_ADDR_P0, rx_addr);
+        return hz;
+    }
+
+    /**
+     * @return SPI clock in Hz
+     */
+    public int getSpiSpeed() {
+        return spi_speed;
+    }
+
+    /**
+     * Set the SPI clock of the transport
+     * @param hz SPI clock in Hz
+     * @throws IOException when the SPI device rejects the clock
+     */
+    private void set_spi_speed(int hz) throws IOException {
+        transport.setSpeed(hz);
+        spi_speed = hz;
+    }
+
+    /**
+     * Write and read back test patterns into the address registers at the current SPI clock
+     * @return true if every pattern was read back unchanged
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private boolean spi_pattern_test() throws IOException {
+        int[] pattern = new int[5];
+        int[] read = new int[5];
+        int seed = 0x5A;
+
+        for (int round = 0; round < SPI_CALIBRATION_ROUNDS; round++) {
+            for (int i = 0; i < addr_width; i++) {
+                switch (round % 4) {
+                    case 0:  pattern[i] = ((round + i) & 1) == 0 ? 0x55 : 0xAA; break;   // alternating bits
+                    case 1:  pattern[i] = 1 << ((round + i) % 8); break;                 // walking one
+                    case 2:  pattern[i] = ~(1 << ((round + i) % 8)) & 0xFF; break;       // walking zero
+                    default: seed = (seed * 73 + 41) & 0xFF; pattern[i] = seed; break;
+                }
+            }
+            for (int reg : new int[] {nRF24L01.TX_ADDR, nRF24L01.RX_ADDR_P0}) {
+                spi_address_write(reg, pattern);
+                read_register(reg, read, addr_width);
+                for (int i = 0; i < addr_width; i++) {
+                    if ((read[i] & 0xFF) != pattern[i])
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write an address register even if the shadow copy holds the same value
+     * @param reg TX_ADDR or RX_ADDR_P0
+     * @param address addr_width bytes, LSB first
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void spi_address_write(int reg, int[] address) throws IOException {
+        addr_shadow_valid[addr_shadow_index(reg)] = false;
+        write_register(reg, address, (short) addr_width);
+    }
+
+    /**
+     * Watch the radio and recover it when it fails, call it regularly from the radio loop
+     * (rf24Network.update() does)
+     *
+     * A failure flagged by the driver (TX/RX timeouts, see failureDetected) is handled on the
+     * next call. The registers are checked with checkHealth() every setSupervision() interval.
+     * A failed radio is brought back with recover(); if that fails too, it is retried on the
+     * next call.
+     * @return true if the radio is working
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public boolean supervise() throws IOException {
+        if (!failureDetected) {
+            if (supervise_interval == 0 || millis() - supervise_last < supervise_interval)
+                return true;
+            supervise_last = millis();
+            if (checkHealth())
+                return true;
+        }
+        return recover();
+    }
+
+    /**
+     * Set how often supervise() checks the registers of the chip
+     * {@code
+     * radio.setSupervision(1000);
+     * ...
+     * Log.i(TAG, radio.getRecoveries() + " recoveries, last took " + radio.getLastRecoveryTime() + "us");
+     * }
+     * @param interval interval in ms, 0 to only act on failures flagged by the driver
+     */
+    public void setSupervision(int interval) {
+        supervise_interval = interval;
+    }
+
+    /**
+     * Check that the chip answers and still holds the configuration written by the driver
+     *
+     * Detects a dead SPI bus or an unpowered module (registers reading all 0x00 or all 0xFF),
+     * a chip that was reset, e.g. by a brown-out, and SPI corruption (shadow mismatch).
+     * Sets failureDetected if the check fails.
+     * @return true if the radio looks healthy
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public boolean checkHealth() throws IOException {
+        int setup_aw = read_register_direct(nRF24L01.SETUP_AW) & 0xFF;
+        int rf_setup = read_register_direct(nRF24L01.RF_SETUP) & 0xFF;
+        if (setup_aw == 0 || setup_aw == 0xFF || rf_setup == 0xFF) {
+            fail(FAILURE_NO_RESPONSE);
+            return false;
+        }
+        if (!verifyRegisters()) {
+            fail(FAILURE_REGISTERS);
+            return false;
+        }
+        return !failureDetected;
+    }
+
+    /**
+     * Re-initialize the chip and replay the configuration of the driver
+     *
+     * The register shadow holds everything the driver wrote: channel, data rate, CRC, retries,
+     * pipe addresses and widths, the pipe0 reading address, dynamic and ACK payloads. The chip
+     * is brought up like warmBegin(), also without the power-on delays if it was reset but
+     * answers (brown-out), begin() if it doesn't. The shadow is written back on top and the
+     * listening state is restored, the FIFOs are lost.
+     * @return true if the chip holds the configuration again
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public boolean recover() throws IOException {
+        if (failure_since == 0)
+            failure_since = rf24Timer.micros();
+
+        byte[] regs = reg_shadow.clone();
+        boolean[] regs_valid = reg_shadow_valid.clone();
+        byte[][] addrs = new byte[addr_shadow.length][];
+        boolean[] addrs_valid = addr_shadow_valid.clone();
+        for (int a = 0; a < addr_shadow.length; a++)
+            addrs[a] = addr_shadow[a].clone();
+        boolean listening = ce_level && (regs[nRF24L01.NRF_CONFIG] & _BV(nRF24L01.PRIM_RX)) != 0;
+        int channel = _channel;
+        boolean dynamic_payloads = dynamic_payloads_enabled;
+        int retry_d = retry_delay, retry_c = retry_count, tx_delay = txDelay;
+        int width = addr_width;
+
+        if (!warm_begin(true))
+            return false;
+
+        // FEATURE enables what DYNPD refers to, CONFIG (power, role) goes last
+        RegisterBatch batch = batch();
+        if (regs_valid[nRF24L01.FEATURE])
+            batch.write(nRF24L01.FEATURE, regs[nRF24L01.FEATURE]);
+        for (int reg = 0; reg < REGISTER_COUNT; reg++) {
+            if (is_shadowed(reg) && regs_valid[reg] && reg != nRF24L01.NRF_CONFIG && reg != nRF24L01.FEATURE)
+                batch.write(reg, regs[reg]);
+        }
+        int[] address = new int[5];
+        for (int a = 0; a < addrs.length; a++) {
+            if (!addrs_valid[a])
+                continue;
+            for (int i = 0; i < width; i++)
+                address[i] = addrs[a][i];
+            batch.write(addr_shadow_register(a), address, width);
+        }
+        if (regs_valid[nRF24L01.NRF_CONFIG])
+            batch.write(nRF24L01.NRF_CONFIG, regs[nRF24L01.NRF_CONFIG] & ~_BV(nRF24L01.PRIM_RX));
+        batch.write(nRF24L01.NRF_STATUS, _BV(nRF24L01.RX_DR) | _BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT));
+        batch.flush();
+        flush_rx();
+        flush_tx();
+
+        _channel = channel;
+        dynamic_payloads_enabled = dynamic_payloads;
+        retry_delay = retry_d;
+        retry_count = retry_c;
+        txDelay = tx_delay;
+        addr_width = width;
+
+        if (listening)
+            startListening();
+
+        if (!verifyRegisters()) {
+            Log.e(TAG, "Radio recovery failed");
+            return false;
+        }
+
+        failureDetected = false;
+        last_recovery_time = rf24Timer.micros() - failure_since;
+        max_recovery_time = Math.max(max_recovery_time, last_recovery_time);
+        failure_since = 0;
+        recoveries++;
+        Log.w(TAG, "Radio recovered in " + last_recovery_time + "us, cause " + last_failure);
+        return true;
+    }
+
+    /**
+     * @return number of successful recover() runs
+     */
+    public int getRecoveries() {
+        return recoveries;
+    }
+
+    /**
+     * @return cause of the last failure: FAILURE_TIMEOUT, FAILURE_NO_RESPONSE or
+     * FAILURE_REGISTERS, FAILURE_NONE if none happened
+     */
+    public int getLastFailure() {
+        return last_failure;
+    }
+
+    /**
+     * @return time from the detection of the last failure to the recovered radio, in us
+     */
+    public long getLastRecoveryTime() {
+        return last_recovery_time;
+    }
+
+    /**
+     * @return longest time to recover, in us
+     */
+    public long getMaxRecoveryTime() {
+        return max_recovery_time;
+    }
+
+    /**
+     * Flag a failure, the downtime counts from the first one
+     * @param cause FAILURE_TIMEOUT, FAILURE_NO_RESPONSE or FAILURE_REGISTERS
+     */
+    private void fail(int cause) {
+        if (failure_since == 0)
+            failure_since = rf24Timer.micros();
+        last_failure = cause;
+        failureDetected = true;
+    }
+
+    /**
+     * Switch to interrupt mode
+     *
+     * The IRQ pin of the module is opened as GPIO and its falling edge wakes up the threads
+     * waiting in {@link #write(int[], int)}, {@link #writeFast(int[], int)}, {@link #txStandBy(int)}
+     * and {@link #waitAvailable(int)}, instead of polling the status register over SPI.
+     * {@link #available()} only asks the chip after an IRQ edge.
+     * All three events (TX ok, TX failed, RX ready) are routed to the IRQ pin, use
+     * {@link #maskIRQ(boolean, boolean, boolean)} to change that.
+     *
+     * If the IRQ pin can't be opened the radio stays in polling mode.
+     *
+     * {@code
+     * radio.begin();
+     * radio.enableInterrupts(BoardDefaults.getGPIOirq());
+     * }
+     * @param pinName GPIO connected to the IRQ pin of the module
+     * @return true if interrupt mode is active
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public boolean enableInterrupts(String pinName) throws IOException {
+        disableInterrupts();
+
+        if (!transport.openIrq(pinName, irqCallback)) {
+            Log.e(TAG, "Error on initializing IRQ pin, polling the status register");
+            return false;
+        }
+        irq_enabled = true;
+
+        maskIRQ(false, false, false);
+        rx_pending = true;
+
+        return true;
+    }
+
+    /**
+     * Leave interrupt mode and go back to polling the status register
+     *
+     * @see #enableInterrupts(String)
+     */
+    public void disableInterrupts() {
+        if (irq_enabled) {
+            transport.closeIrq();
+            irq_enabled = false;
+        }
+        // wake up the waiting threads, they go back to polling
+        synchronized (irqLock) {
+            irqEdges++;
+            irqLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if the IRQ pin is used instead of polling the status register
+     */
+    public boolean isInterruptMode() {
+        return irq_enabled;
+    }
 
     /**
      * Close a pipe after it has been previously opened.
@@ -1315,7 +2853,7 @@ public class rf24 implements AutoCloseable {
      * @throws IOException when write / read on spi doesn't work
      */
 
-    private void closeReadingPipe( int pipe ) throws IOException {
+    public void closeReadingPipe( int pipe ) throws IOException {
         write_register(nRF24L01.EN_RXADDR,read_register(nRF24L01.EN_RXADDR) & ~_BV(child_pipe_enable[pipe]));
     }
 
@@ -1348,18 +2886,132 @@ public class rf24 implements AutoCloseable {
 //        }
     }
 
-
+
+    /**
+     * Set the number and delay of retries upon failed submit
+     *
+     * @param delay How long to wait between each retry, in multiples of 250us,
+     * max is 15.  0 means 250us, 15 means 4000us.
+     * @param count How many retries before giving up, max 15
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public void setRetries(int delay, int count) throws IOException
+    {
+        retry_delay = delay & 0xf;
+        retry_count = count & 0xf;
+        write_register(nRF24L01.SETUP_RETR,((delay&0xf)<<nRF24L01.ARD | (count&0xf)<<nRF24L01.ARC));
+    }
+
+    /**
+     * Tune the auto retransmit delay and count per destination from the retries measured after
+     * each transmission (ARC_CNT of OBSERVE_TX). The values set with setRetries() are the start
+     * values; the tuned ones are loaded by openWritingPipe().
+     *
+     * {@code
+     * radio.setRetryTuner(new rf24RetryTuner(0.95));
+     * }
+     * @param tuner controller, null to use the setRetries() values for every destination
+     */
+    public void setRetryTuner(rf24RetryTuner tuner)
+    {
+        retry_tuner = tuner;
+    }
+
+    /**
+     * @return per destination retry controller, null if not tuning
+     */
+    public rf24RetryTuner getRetryTuner() {
+        return retry_tuner;
+    }
+
+    /**
+     * Collect link telemetry: retries, lost packets and latency per TX address after each
+     * acknowledged transmission and the RPD per RX pipe after each received payload. Costs one
+     * extra register read per payload.
+     *
+     * {@code
+     * rf24LinkStats stats = new rf24LinkStats();
+     * radio.setLinkStats(stats);
+     * }
+     * @param stats statistics to fill, null to stop collecting
+     */
+    public void setLinkStats(rf24LinkStats stats)
+    {
+        link_stats = stats;
+    }
+
+    /**
+     * @return link statistics collected, null if not collecting
+     */
+    public rf24LinkStats getLinkStats() {
+        return link_stats;
+    }
+
+    /**
+     * Write SETUP_RETR if it changes, the configured retry_delay/retry_count are kept
+     * @param delay ARD (0..15)
+     * @param count ARC (0..15)
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void load_retries(int delay, int count) throws IOException
+    {
+        int value = (delay&0xf)<<nRF24L01.ARD | (count&0xf)<<nRF24L01.ARC;
+        if ((read_register(nRF24L01.SETUP_RETR) & 0xFF) != value)
+            write_register(nRF24L01.SETUP_RETR, value);
+    }
+
+    /**
+     * Report a finished acknowledged transmission to the retry tuner
+     * @param delivered true if the payload was acknowledged
+     * @param cycles MAX_RT cycles restarted before (txStandBy() with timeout)
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void record_tx(boolean delivered, int cycles, long started) throws IOException
+    {
+        if ((retry_tuner == null && link_stats == null) || tx_noack || (read_register(nRF24L01.EN_AA) & _BV(nRF24L01.ENAA_P0)) == 0)
+            return;
+        long latency = System.nanoTime() - started;
+        int observe = read_register(nRF24L01.OBSERVE_TX);
+        int count = (read_register(nRF24L01.SETUP_RETR) >> nRF24L01.ARC) & 0x0F;
+        int retries = cycles * count + ((observe >> nRF24L01.ARC_CNT) & 0x0F);
+
+        if (retry_tuner != null)
+            retry_tuner.record(tx_address, delivered, retries);
+
+        if (link_stats != null) {
+            int plos = (observe >> nRF24L01.PLOS_CNT) & 0x0F;
+            int lost = plos >= plos_last ? plos - plos_last : plos;     // reset by a RF_CH write
+            plos_last = plos;
+            if (plos == 15) {
+                // PLOS_CNT saturates, writing RF_CH resets it (write_register() skips unchanged values)
+                int channel = read_register(nRF24L01.RF_CH);
+                beginTransaction();
+                stats_txbuff[0] = (byte) (nRF24L01.W_REGISTER | nRF24L01.RF_CH);
+                stats_txbuff[1] = (byte) channel;
+                transfer(stats_txbuff, stats_rxbuff, 2);
+                endTransaction();
+                plos_last = 0;
+            }
+            link_stats.recordTx(tx_address, delivered, retries, latency, lost);
+        }
+    }
+
     /**
-     * Set the number and delay of retries upon failed submit
-     *
-     * @param delay How long to wait between each retry, in multiples of 250us,
-     * max is 15.  0 means 250us, 15 means 4000us.
-     * @param count How many retries before giving up, max 15
+     * Report a received payload to the link statistics, with the RPD latched for it
+     * @param status status register shifted out with the payload
      * @throws IOException when write / read on spi doesn't work
      */
-    public void setRetries(int delay, int count) throws IOException
+    private void record_rx(int status) throws IOException
     {
-        write_register(nRF24L01.SETUP_RETR,((delay&0xf)<<nRF24L01.ARD | (count&0xf)<<nRF24L01.ARC));
+        int pipe = (status >> nRF24L01.RX_P_NO) & 0x07;
+        if (pipe >= rf24LinkStats.PIPES)
+            return;
+        beginTransaction();
+        stats_txbuff[0] = (byte) (nRF24L01.R_REGISTER | (nRF24L01.REGISTER_MASK & nRF24L01.RPD));
+        stats_txbuff[1] = (byte) nRF24L01.NOP;
+        transfer(stats_txbuff, stats_rxbuff, 2);
+        endTransaction();
+        link_stats.recordRx(pipe, (stats_rxbuff[1] & 1) != 0);
     }
 
     /**
@@ -1378,8 +3030,9 @@ public class rf24 implements AutoCloseable {
      * Get RF communication channel
      *
      * @return The currently configured RF Channel
+     * @throws IOException when write / read on spi doesn't work
      */
-    private byte getChannel() throws IOException
+    public byte getChannel() throws IOException
     {
         return read_register(nRF24L01.RF_CH);
     }
@@ -1643,8 +3296,25 @@ public class rf24 implements AutoCloseable {
      */
     public boolean setDataRate(rf24_datarate_e speed) throws IOException {
         boolean result = false;
-        byte setup = read_register(nRF24L01.RF_SETUP);
+        byte setup = (byte) data_rate_setup(read_register(nRF24L01.RF_SETUP), speed);
+
+        write_register(nRF24L01.RF_SETUP, setup);
+
+        // Verify our result (the shadow already holds the written value, ask the chip)
+        if (resync_register(nRF24L01.RF_SETUP) == setup) {
+            result = true;
+        }
+        return result;
+    }
 
+    /**
+     * Calculate the RF_SETUP value for a data rate and update the TX delay accordingly
+     *
+     * @param setup current value of the RF_SETUP register
+     * @param speed RF24_250KBPS for 250kbs, RF24_1MBPS for 1Mbps, or RF24_2MBPS for 2Mbps
+     * @return RF_SETUP value with the data rate bits set
+     */
+    private int data_rate_setup(int setup, rf24_datarate_e speed) {
         // HIGH and LOW '00' is 1Mbs - our default
         setup &= ~(_BV(nRF24L01.RF_DR_LOW) | _BV(nRF24L01.RF_DR_HIGH));
 
@@ -1662,14 +3332,7 @@ public class rf24 implements AutoCloseable {
                 txDelay = 190;
                 break;
         }
-
-        write_register(nRF24L01.RF_SETUP, setup);
-
-        // Verify our result
-        if (read_register(nRF24L01.RF_SETUP) == setup) {
-            result = true;
-        }
-        return result;
+        return 0xFF & setup;
     }
 
     /**
@@ -1775,7 +3438,7 @@ public class rf24 implements AutoCloseable {
      * @param rx    Mask payload received interrupts
      * @throws IOException when write / read on spi doesn't work
      */
-    private void maskIRQ(boolean tx, boolean fail, boolean rx) throws IOException {
+    public void maskIRQ(boolean tx, boolean fail, boolean rx) throws IOException {
         int itx = 0, ifail = 0, irx = 0;
         if (tx) itx = 1;
         if (fail) ifail = 1;
@@ -1892,21 +3555,23 @@ public class rf24 implements AutoCloseable {
      */
     private void ce(boolean level)
     {
-        if (mCEpin == null) {
-            return;
-        }
-        try {
-            // Toggle the GPIO state
-            mCEpin.setValue(level);
-
-        } catch (IOException e) {
-            Log.e(TAG, "Error on PeripheralIO API", e);
-        }
+        if (level)
+            wait_power_up();
+        if (level && !ce_level)
+            ce_high_ns = System.nanoTime();
+        ce_level = level;
+        transport.ce(level);
+        rf24SpiRecorder recorder = spi_recorder;
+        if (recorder != null)
+            recorder.recordCe(level);
+        account_state();
     }
 
     /**
      * Read a chunk of data in from a register
      *
+     * The chip is always asked, the address shadow is refreshed with the result.
+     *
      * @param reg Which register. Use constants from nRF24L01.h
      * @param buf Where to put the data
      * @param len How many bytes of data to transfer
@@ -1916,6 +3581,7 @@ public class rf24 implements AutoCloseable {
     private byte read_register(int reg, int[] buf, int len) throws IOException
     {
         byte status;
+        int count = len;
 
         beginTransaction(); //configures the spi settings for RPi, locks mutex and setting csn low
         byte[] prx = spi_rxbuff;
@@ -1938,17 +3604,61 @@ public class rf24 implements AutoCloseable {
         while ( --size > 0 ){ buf[idx] = prx[++idx]; }
         endTransaction(); //unlocks mutex and setting csn high
 
+        int a = addr_shadow_index(nRF24L01.REGISTER_MASK & reg);
+        if (a >= 0 && count == addr_width) {
+            for (int i = 0; i < count; i++)
+                addr_shadow[a][i] = (byte) buf[i];
+            addr_shadow_valid[a] = true;
+        }
+
         return status;
     }
 
     /**
      * Read single byte from a register
      *
+     * Configuration registers are served from the shadow copy once it is valid. Status registers
+     * (NRF_STATUS, OBSERVE_TX, RPD, FIFO_STATUS) are always read from the chip.
+     *
      * @param reg Which register. Use constants from nRF24L01.h
      * @return Current value of register @p reg
      * @throws IOException when write / read on spi doesn't work
      */
     private byte read_register(int reg) throws IOException {
+        reg = nRF24L01.REGISTER_MASK & reg;
+
+        if (is_shadowed(reg) && reg_shadow_valid[reg])
+            return reg_shadow[reg];
+
+        return resync_register(reg);
+    }
+
+    /**
+     * Read single byte from a register and refresh its shadow copy
+     *
+     * @param reg Which register. Use constants from nRF24L01.h
+     * @return Current value of register @p reg read from the chip
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private byte resync_register(int reg) throws IOException {
+        reg = nRF24L01.REGISTER_MASK & reg;
+        byte result = read_register_direct(reg);
+
+        if (is_shadowed(reg)) {
+            reg_shadow[reg] = result;
+            reg_shadow_valid[reg] = true;
+        }
+        return result;
+    }
+
+    /**
+     * Read single byte from a register bypassing the shadow copy
+     *
+     * @param reg Which register. Use constants from nRF24L01.h
+     * @return Current value of register @p reg read from the chip
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private byte read_register_direct(int reg) throws IOException {
         byte result;
 
         beginTransaction();
@@ -1970,6 +3680,8 @@ public class rf24 implements AutoCloseable {
     /**
      * Write a chunk of data to a register
      *
+     * Writing an address register with the value already held by the shadow copy is skipped.
+     *
      * @param reg Which register. Use constants from nRF24L01.h
      * @param buf Where to get the data
      * @param len How many bytes of data to transfer
@@ -1977,6 +3689,17 @@ public class rf24 implements AutoCloseable {
      * @throws IOException when write / read on spi doesn't work
      */
     private byte write_register(int reg, int[] buf, short len) throws IOException {
+        reg = nRF24L01.REGISTER_MASK & reg;
+
+        if (len == 1 && is_shadowed(reg))
+            return write_register(reg, buf[0]);
+
+        int a = addr_shadow_index(reg);
+        if (a >= 0 && len == addr_width) {
+            if (addr_shadow_valid[a] && addr_shadow_equals(a, buf, len))
+                return last_status;
+        }
+
         byte status;
         beginTransaction();
         byte[] prx = spi_rxbuff;
@@ -1993,12 +3716,21 @@ public class rf24 implements AutoCloseable {
         status = prx[0]; // status is 1st byte of receive buffer
         endTransaction();
 
+        if (a >= 0 && idx == addr_width) {
+            for (int i = 0; i < idx; i++)
+                addr_shadow[a][i] = (byte) buf[i];
+            addr_shadow_valid[a] = true;
+        }
+
         return status;
     }
 
     /**
      * Write a single byte to a register
      *
+     * Writing a configuration register with the value already held by the shadow copy is skipped,
+     * the status of the last SPI transaction is returned instead.
+     *
      * @param reg Which register. Use constants from nRF24L01.h
      * @param value The new value to write
      * @return Current value of status register
@@ -2006,6 +3738,12 @@ public class rf24 implements AutoCloseable {
      */
     private byte write_register(int reg, int value) throws IOException
     {
+        reg = nRF24L01.REGISTER_MASK & reg;
+        boolean shadowed = is_shadowed(reg);
+
+        if (shadowed && reg_shadow_valid[reg] && reg_shadow[reg] == (byte) value)
+            return last_status;
+
         byte status;
 
         beginTransaction();
@@ -2019,46 +3757,89 @@ public class rf24 implements AutoCloseable {
         status = prx[0]; // status is 1st byte of receive buffer
         endTransaction();
 
+        if (shadowed) {
+            reg_shadow[reg] = (byte) value;
+            reg_shadow_valid[reg] = true;
+        }
+
         return status;
     }
 
     /**
-     * Write the transmit payload
+     * Copy a transmit payload into payload_txbuff
      *
-     * The size of data written is the fixed payload size, see getPayloadSize()
+     * The size of data staged is limited to the payload size, see getPayloadSize(). Without
+     * dynamic payloads the rest of the fixed payload is filled with zeroes.
      *
      * @param buf Where to get the data
      * @param data_len Number of bytes to be sent
-     * @return Current value of status register
-     * @throws IOException when write / read on spi doesn't work
      */
-    private int write_payload(int buf[], int data_len, int writeType) throws IOException {
-        byte status;
-        //const uint8_t* current = reinterpret_cast<const uint8_t*>(buf);
+    private void stage_payload(int buf[], int data_len) {
+        data_len = rf24_min(data_len, payload_size);
+        for (int idx = 0; idx < data_len; idx++)
+            payload_txbuff[idx + 1] = (byte)(0x000000FF & buf[idx]);
+
+        stage_blanks(data_len);
+    }
+
+    /**
+     * Copy a transmit payload into payload_txbuff
+     * @see #stage_payload(int[], int)
+     *
+     * @param buf Where to get the data
+     * @param offset Index in buf of the first payload byte
+     * @param data_len Number of bytes to be sent
+     */
+    private void stage_payload(byte buf[], int offset, int data_len) {
+        data_len = rf24_min(data_len, payload_size);
+        System.arraycopy(buf, offset, payload_txbuff, 1, data_len);
 
+        stage_blanks(data_len);
+    }
+
+    /**
+     * Copy a transmit payload into payload_txbuff, advancing the buffer position
+     * @see #stage_payload(int[], int)
+     *
+     * @param buf Where to get the data
+     * @param data_len Number of bytes to be sent
+     */
+    private void stage_payload(ByteBuffer buf, int data_len) {
         data_len = rf24_min(data_len, payload_size);
+        buf.get(payload_txbuff, 1, data_len);
+
+        stage_blanks(data_len);
+    }
+
+    /**
+     * Zero the unused part of a fixed size payload and set payload_txsize
+     * @param data_len Number of payload bytes staged
+     */
+    private void stage_blanks(int data_len) {
         int blank_len = dynamic_payloads_enabled ? 0 : payload_size - data_len;
 
-        //printf("[Writing %u bytes %u blanks]",data_len,blank_len);
         //IF_SERIAL_DEBUG( printf_P("[Writing %u bytes %u blanks]\n",data_len,blank_len); );
+        for (int idx = 0; idx < blank_len; idx++)
+            payload_txbuff[data_len + 1 + idx] = 0;
 
-        beginTransaction();
-        byte[] prx = spi_rxbuff;
-        byte[] ptx = spi_txbuff;
-        int size;
-        size = data_len + blank_len + 1 ; // Add register value to transmit buffer
+        payload_txsize = data_len + blank_len + 1; // Add register value to transmit buffer
+    }
 
-        ptx[0] =  (byte) (0x000000FF & writeType);
-        int idx = 0;
-        while ( data_len-- > 0)
-            ptx[idx + 1] = (byte)(0x000000FF & buf[idx++]);
+    /**
+     * Write the transmit payload staged in payload_txbuff
+     *
+     * @param writeType W_TX_PAYLOAD or W_TX_PAYLOAD_NO_ACK
+     * @return Current value of status register
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private byte write_payload(int writeType) throws IOException {
+        byte status;
 
-        idx = 0;
-        while ( blank_len-- > 0)
-            ptx[idx++] =  0;
+        beginTransaction();
+        payload_txbuff[0] = (byte) (0x000000FF & writeType);
 
-        transfer(spi_txbuff, spi_rxbuff, size);
-        status = prx[0]; // status is 1st byte of receive buffer
+        transfer(payload_txbuff, spi_rxbuff, payload_txsize);
+        status = spi_rxbuff[0]; // status is 1st byte of receive buffer
 
         endTransaction();
 
@@ -2077,9 +3858,25 @@ public class rf24 implements AutoCloseable {
      */
     private byte read_payload(int buf[], int data_len) throws IOException {
         byte status;
-        //uint8_t* current = reinterpret_cast<uint8_t*>(buf);
 
         if (data_len > payload_size) data_len = payload_size;
+        status = read_payload(data_len);
+
+        for (int idx = 0; idx < data_len; idx++)
+            buf[idx] = spi_rxbuff[idx + 1];
+
+        return status;
+    }
+
+    /**
+     * Read the receive payload into spi_rxbuff (payload starts at index 1)
+     *
+     * @param data_len Number of bytes to read, at most the payload size
+     * @return Current value of status register
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private byte read_payload(int data_len) throws IOException {
+        byte status;
         int blank_len = dynamic_payloads_enabled ? 0 : payload_size - data_len;
 
         //printf("[Reading %u bytes %u blanks]",data_len,blank_len);
@@ -2102,16 +3899,11 @@ public class rf24 implements AutoCloseable {
 
         status = prx[0]; // 1st byte is status
 
-        idx = 0;
-        if (data_len > 0) {
-            while (--data_len >= 0) // Decrement before to skip 1st status byte
-                buf[idx] = prx[++idx];
-
-            //buf[idx] = prx[idx + 1];
-
-        }
         endTransaction();
 
+        if (link_stats != null)
+            record_rx(status);
+
         return status;
     }
 
@@ -2138,6 +3930,135 @@ public class rf24 implements AutoCloseable {
     }
 
 
+    /**
+     * Interrupt mode: true if nothing can be in the RX FIFO
+     *
+     * The RX FIFO has to be checked if it held payloads the last time, if the IRQ pin fell since
+     * then or if it wasn't checked for IRQ_POLL_INTERVAL ms.
+     * @return always false in polling mode
+     */
+    private boolean rx_idle() {
+        if (!irq_enabled)
+            return false;
+
+        int edges = irqEdges;
+        long now = millis();
+        if (!rx_pending && edges == irqEdgesSeen && now - rx_checked < IRQ_POLL_INTERVAL)
+            return true;
+
+        irqEdgesSeen = edges;
+        rx_checked = now;
+        return false;
+    }
+
+    /**
+     * Interrupt mode: wait for the next status flag while transmitting
+     *
+     * The IRQ pin only falls if it was released, so the status flags the caller isn't waiting for
+     * are cleared first (a cleared RX_DR is remembered in rx_pending). Returns immediately in polling
+     * mode or if a flag showed up in the meantime.
+     *
+     * @param edges value of irqEdges read before @p status
+     * @param status last status register read by the caller
+     * @param release status flags to clear (RX_DR, TX_DS)
+     * @param timeout maximal time to sleep in milliseconds
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void irq_wait(int edges, int status, int release, long timeout) throws IOException {
+        if (!irq_enabled)
+            return;
+
+        release &= status;
+        if (release != 0) {
+            if ((release & _BV(nRF24L01.RX_DR)) != 0)
+                rx_pending = true;
+            status = write_register(nRF24L01.NRF_STATUS, release);
+            if ((status & ~release & (_BV(nRF24L01.TX_DS) | _BV(nRF24L01.MAX_RT))) != 0)
+                return;
+        }
+        irq_sleep(edges, timeout);
+    }
+
+    /**
+     * Interrupt mode: sleep until the IRQ pin falls, at most IRQ_POLL_INTERVAL ms
+     *
+     * @param edges value of irqEdges read before the chip was checked the last time
+     * @param timeout maximal time to sleep in milliseconds
+     */
+    private void irq_sleep(int edges, long timeout) {
+        if (!irq_enabled || timeout <= 0)
+            return;
+
+        synchronized (irqLock) {
+            if (irqEdges != edges)
+                return;
+            try {
+                irqLock.wait(Math.min(timeout, IRQ_POLL_INTERVAL));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Registers holding status or measurements change on their own and are never shadowed.
+     * The 5 byte address registers have their own shadow.
+     *
+     * @param reg register address
+     * @return true if the register is a single byte register that only changes when written
+     */
+    private static boolean is_shadowed(int reg) {
+        switch (reg) {
+            case nRF24L01.NRF_STATUS:
+            case nRF24L01.OBSERVE_TX:
+            case nRF24L01.RPD:
+            case nRF24L01.RX_ADDR_P0:
+            case nRF24L01.RX_ADDR_P1:
+            case nRF24L01.TX_ADDR:
+            case nRF24L01.FIFO_STATUS:
+                return false;
+            default:
+                return (reg >= 0 && reg < nRF24L01.FIFO_STATUS) || reg == nRF24L01.DYNPD || reg == nRF24L01.FEATURE;
+        }
+    }
+
+    /**
+     * @param reg register address
+     * @return index into addr_shadow or -1 if @p reg isn't a 5 byte address register
+     */
+    private static int addr_shadow_index(int reg) {
+        switch (reg) {
+            case nRF24L01.RX_ADDR_P0: return 0;
+            case nRF24L01.RX_ADDR_P1: return 1;
+            case nRF24L01.TX_ADDR: return 2;
+            default: return -1;
+        }
+    }
+
+    /**
+     * @param index index into addr_shadow
+     * @return register address of the shadowed address register
+     */
+    private static int addr_shadow_register(int index) {
+        return index == 0 ? nRF24L01.RX_ADDR_P0 : (index == 1 ? nRF24L01.RX_ADDR_P1 : nRF24L01.TX_ADDR);
+    }
+
+    private boolean addr_shadow_equals(int index, int[] buf, int len) {
+        for (int i = 0; i < len; i++) {
+            if (addr_shadow[index][i] != (byte) buf[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean addr_shadow_equals(int index, byte[] buf) {
+        for (int i = 0; i < addr_width; i++) {
+            if (addr_shadow[index][i] != buf[i])
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Decode and print the given status to stdout
      *
@@ -2202,7 +4123,7 @@ public class rf24 implements AutoCloseable {
         String tmp = name;
 
         while (qty-- > 0)
-            tmp += " " + Integer.toString(read_register(reg++));
+            tmp += " " + Integer.toString(read_register_direct(reg++));
 
         Log.i(TAG, tmp);
     }
@@ -2241,8 +4162,9 @@ public class rf24 implements AutoCloseable {
      */
     private void toggle_features() throws IOException {
         beginTransaction();
-        transfer((byte) nRF24L01.ACTIVATE);
-        transfer((byte) 0x73);
+        spi_txbuff[0] = (byte) nRF24L01.ACTIVATE;
+        spi_txbuff[1] = (byte) 0x73;
+        transfer(spi_txbuff, spi_rxbuff, 2);          // ACTIVATE and its data byte need the same CSN frame
         endTransaction();
     }
 
@@ -2262,7 +4184,7 @@ public class rf24 implements AutoCloseable {
 
     private void errNotify(){
         Log.e(TAG, "RF24 HARDWARE FAIL: Radio not responding, verify pin connections, wiring, etc.");
-        failureDetected = true;
+        fail(FAILURE_TIMEOUT);
     }
 
 
@@ -2299,31 +4221,24 @@ public class rf24 implements AutoCloseable {
      * @param milliseconds Delay in milliseconds
      */
     private void delay(int milliseconds) {
-        long start = millis();
-        long end = 0;
-        do {
-            end = millis();
-        } while (start + milliseconds >= end);
+        rf24Timer.delay(milliseconds);
     }
     /**
      * Delay in microseconds
+     * @see rf24Timer#delayMicroseconds(long)
      * @param microseconds Delay in microseconds
      */
     public void delayMicroseconds(long microseconds) {
-        long start = System.nanoTime();
-        long end = 0;
-        do {
-            end = System.nanoTime();
-        } while (start + microseconds >= end);
+        rf24Timer.delayMicroseconds(microseconds);
     }
 
     /**
-     * Return Milliseconds since Epoch
+     * Return monotonic milliseconds
      * @return long
      */
     private long millis()
     {
-        return System.currentTimeMillis();
+        return rf24Timer.millis();
     }
 
     /*
@@ -2349,34 +4264,11 @@ public class rf24 implements AutoCloseable {
      * @throws IOException when write / read on spi doesn't work
      */
     private byte transfer(byte buffer) throws IOException {
-        // Shift data out to slave
-        byte[] send = new byte[1];
-        send[0] = buffer;
-
-        // Shift data out to slave
-        mDevice.write(send, 1);
-
-        // Read the response
-        byte[] tmp = new byte[1];
-        mDevice.read(tmp, 1);
-
-        return tmp[0];
-    }
-
-    /**
-     * Transfer and receive data over SPI (received data is discarded)
-     * @param buffer byte array of data to be send
-     * @param size buffer size
-     * @throws IOException when write / read on spi doesn't work
-     */
-    private void transfer(byte[] buffer, int size) throws IOException {
-        // Shift data out to slave
-        mDevice.write(buffer, size);
-
-        // Read the response
-        byte[] tmp = new byte[32];
-        mDevice.read(tmp, tmp.length);
+        // Shift data out to slave, the status byte is shifted in at the same time
+        spi_byte_tx[0] = buffer;
+        transfer(spi_byte_tx, spi_byte_rx, 1);
 
+        return spi_byte_rx[0];
     }
 
     //
@@ -2389,8 +4281,14 @@ public class rf24 implements AutoCloseable {
      * @throws IOException when write/read on spi bus doesn't work
      */
     private void transfer(byte[] buffer, byte[] response, int size) throws IOException {
-        //byte[] tmp = new byte[buffer.length];
-        mDevice.transfer(buffer, response, size);
+        Thread owner = owner_thread;
+        if (owner != null && owner != Thread.currentThread())
+            throw new IllegalStateException("rf24 used by " + Thread.currentThread().getName() + ", owned by " + owner.getName());
+        transport.transfer(buffer, response, size);
+        last_status = response[0];
+        rf24SpiRecorder recorder = spi_recorder;
+        if (recorder != null)
+            recorder.record(buffer, response, size);
     }
 
 
@@ -2398,22 +4296,237 @@ public class rf24 implements AutoCloseable {
     // Closing devices
     @Override
     public void close() throws IOException {
-        // closing spi
-        if (mDevice != null) {
-            try {
-                mDevice.close();
-            } finally {
-                mDevice = null;
+        // closing IRQ pin
+        disableInterrupts();
+
+        // closing spi and CE pin
+        transport.close();
+        transport_open = false;
+    }
+
+    /**
+     * Record every SPI transaction and CE edge, see rf24SpiRecorder and rf24ReplayTransport.
+     * Set it before begin() to capture a trace the replay can run from the start.
+     * @param recorder recorder, null to stop recording
+     */
+    public void setSpiRecorder(rf24SpiRecorder recorder) {
+        spi_recorder = recorder;
+    }
+
+    /**
+     * @return transport used by this radio
+     */
+    public rf24Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Bind the radio to one thread. The buffers and the register shadow aren't synchronized, so
+     * every SPI transaction from another thread throws an IllegalStateException instead of
+     * corrupting a transaction in progress.
+     * @see rf24RadioThread
+     * @param owner thread allowed to use the radio, null to allow any thread
+     */
+    public void setOwnerThread(Thread owner) {
+        owner_thread = owner;
+    }
+
+    /**
+     * @return thread allowed to use the radio, null if any thread may use it
+     */
+    public Thread getOwnerThread() {
+        return owner_thread;
+    }
+
+    /**
+     * Start a new register batch
+     *
+     * The returned batch is owned by this radio and reused, so it must be flushed before
+     * the next call to batch().
+     *
+     * {@code
+     * rf24.RegisterBatch batch = radio.batch();
+     * batch.write(rf24.child_payload_size[1], 32)
+     *      .write(rf24.child_payload_size[2], 32);
+     * byte[] status = batch.flush();
+     * }
+     * @return empty register batch
+     */
+    public RegisterBatch batch() {
+        register_batch.clear();
+        return register_batch;
+    }
+
+    /**
+     * Register batch builder
+     *
+     * Queues register writes, register reads and commands and sends them all with {@link #flush()}.
+     * The nRF24L01 takes a single command per CSN frame, so every operation that reaches the chip is
+     * a single SPI transfer. The batch keeps that number low:
+     * - a configuration register written again later in the same batch is only sent once (the last value),
+     * - a write that doesn't change the shadow copy of a register is not sent at all.
+     * Reads always go to the chip and refresh the shadow copy of the register.
+     * Commands (FLUSH_TX, FLUSH_RX, ACTIVATE, ...) are sent in order and are never coalesced.
+     */
+    public class RegisterBatch {
+        /** Maximal number of queued operations */
+        private static final int MAX_OPS = 48;
+
+        private static final int OP_WRITE = 0;
+        private static final int OP_READ = 1;
+        private static final int OP_COMMAND = 2;
+
+        private final int[] op_kind = new int[MAX_OPS];
+        private final int[] op_reg = new int[MAX_OPS];
+        private final int[] op_len = new int[MAX_OPS];
+        private final int[][] op_data = new int[MAX_OPS][5];
+        private final byte[] op_status = new byte[MAX_OPS];
+        private final byte[] op_value = new byte[MAX_OPS];
+        private int count;
+
+        private RegisterBatch() { }
+
+        private void clear() {
+            count = 0;
+        }
+
+        private int add(int kind, int reg, int len) {
+            if (count == MAX_OPS)
+                throw new IllegalStateException("Register batch is full (" + MAX_OPS + " operations)");
+            op_kind[count] = kind;
+            op_reg[count] = reg;
+            op_len[count] = len;
+            return count++;
+        }
+
+        /**
+         * Queue a single byte register write
+         * @param reg register address
+         * @param value new value
+         * @return this batch
+         */
+        public RegisterBatch write(int reg, int value) {
+            int idx = add(OP_WRITE, nRF24L01.REGISTER_MASK & reg, 1);
+            op_data[idx][0] = value;
+            return this;
+        }
+
+        /**
+         * Queue a multi byte register write (e.g. pipe address)
+         * @param reg register address
+         * @param buf register content, LSB first
+         * @param len number of bytes to write (max 5)
+         * @return this batch
+         */
+        public RegisterBatch write(int reg, int[] buf, int len) {
+            int idx = add(OP_WRITE, nRF24L01.REGISTER_MASK & reg, len);
+            System.arraycopy(buf, 0, op_data[idx], 0, len);
+            return this;
+        }
+
+        /**
+         * Queue a single byte register read
+         * @param reg register address
+         * @return index to get the value with {@link #value(int)} after {@link #flush()}
+         */
+        public int read(int reg) {
+            return add(OP_READ, nRF24L01.REGISTER_MASK & reg, 1);
+        }
+
+        /**
+         * Queue a command without data (e.g. FLUSH_TX)
+         * @param cmd command byte
+         * @return this batch
+         */
+        public RegisterBatch command(int cmd) {
+            add(OP_COMMAND, cmd, 0);
+            return this;
+        }
+
+        /**
+         * Queue a command with one data byte (e.g. ACTIVATE 0x73)
+         * @param cmd command byte
+         * @param data data byte
+         * @return this batch
+         */
+        public RegisterBatch command(int cmd, int data) {
+            int idx = add(OP_COMMAND, cmd, 1);
+            op_data[idx][0] = data;
+            return this;
+        }
+
+        /**
+         * @param idx index returned by {@link #read(int)}
+         * @return register value read by the last {@link #flush()}
+         */
+        public byte value(int idx) {
+            return op_value[idx];
+        }
+
+        /**
+         * @return number of queued operations
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Send all queued operations
+         *
+         * Operations that didn't need an SPI transfer report the status of the previous transfer.
+         * @return status register for each queued operation, in queue order
+         * @throws IOException when write/read on spi bus doesn't work
+         */
+        public byte[] flush() throws IOException {
+            for (int idx = 0; idx < count; idx++) {
+                int reg = op_reg[idx];
+                switch (op_kind[idx]) {
+                    case OP_WRITE:
+                        if (overwritten(idx)) {
+                            op_status[idx] = last_status;
+                        } else if (op_len[idx] == 1 && addr_shadow_index(reg) < 0) {
+                            op_status[idx] = write_register(reg, op_data[idx][0]);
+                        } else {
+                            op_status[idx] = write_register(reg, op_data[idx], (short) op_len[idx]);
+                        }
+                        break;
+                    case OP_READ:
+                        op_value[idx] = resync_register(reg);
+                        op_status[idx] = last_status;
+                        break;
+                    case OP_COMMAND:
+                        beginTransaction();
+                        spi_txbuff[0] = (byte) reg;
+                        spi_txbuff[1] = (byte) op_data[idx][0];
+                        transfer(spi_txbuff, spi_rxbuff, op_len[idx] + 1);
+                        endTransaction();
+                        op_status[idx] = spi_rxbuff[0];
+                        break;
+                }
             }
+            return Arrays.copyOf(op_status, count);
         }
 
-        // closing mCEpin
-        if (mCEpin != null) {
-            try {
-                mCEpin.close();
-            } finally {
-                mCEpin = null;
+        /**
+         * A configuration register write is superseded by a later write to the same register,
+         * as long as no read of that register or command is queued in between.
+         */
+        private boolean overwritten(int idx) {
+            int reg = op_reg[idx];
+            if (!is_shadowed(reg) && addr_shadow_index(reg) < 0)
+                return false;
+
+            for (int next = idx + 1; next < count; next++) {
+                if (op_kind[next] == OP_COMMAND)
+                    return false;
+                if (op_reg[next] != reg)
+                    continue;
+                if (op_kind[next] == OP_READ)
+                    return false;
+                if (op_len[next] == op_len[idx])
+                    return true;
             }
+            return false;
         }
     }
 
@@ -0,0 +1,161 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Open addressing hash map from a pipe address (up to 40 bits, LSB first like the radio) to an
+ * int, without boxing. Used to keep per destination state in primitive arrays, and for other
+ * non-negative keys (e.g. sender and message id in rf24Reassembler).
+ *
+ * {@code
+ * rf24AddressMap map = new rf24AddressMap(16);
+ * int slot = map.get(address, -1);
+ * if (slot < 0)
+ *     map.put(address, slot = count++);
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.util.Arrays;
+
+@SuppressWarnings("WeakerAccess")
+public final class rf24AddressMap {
+
+    /** Marks a free slot, pipe addresses are never negative */
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Constructor
+     * @param expected expected number of entries, the map grows if needed
+     */
+    public rf24AddressMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Pipe address of a byte/int array (LSB first) as map key
+     * @param address address bytes
+     * @param width address width (3..5)
+     * @return key
+     */
+    public static long key(int[] address, int width) {
+        long key = 0;
+        for (int idx = width - 1; idx >= 0; idx--)
+            key = (key << 8) | (0xFF & address[idx]);
+        return key;
+    }
+
+    /**
+     * @param key pipe address
+     * @param missing returned if the address isn't in the map
+     * @return value stored for the address
+     */
+    public int get(long key, int missing) {
+        int slot = find(key);
+        return keys[slot] == EMPTY ? missing : values[slot];
+    }
+
+    /**
+     * Store a value for an address
+     * @param key pipe address (not negative)
+     * @param value value to store
+     */
+    public void put(long key, int value) {
+        if (key < 0)
+            throw new IllegalArgumentException("address " + key);
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Remove an address, the following entries of its probe sequence are moved up
+     * @param key pipe address
+     */
+    public void remove(long key) {
+        int slot = find(key);
+        if (keys[slot] == EMPTY)
+            return;
+        keys[slot] = EMPTY;
+        size--;
+        int mask = keys.length - 1;
+        for (int next = (slot + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            long moved = keys[next];
+            keys[next] = EMPTY;
+            int to = find(moved);
+            keys[to] = moved;
+            values[to] = values[next];
+        }
+    }
+
+    /**
+     * @return number of addresses in the map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all addresses
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Slot holding the key or the free slot where it belongs (linear probing)
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int idx = 0; idx < oldKeys.length; idx++) {
+            if (oldKeys[idx] != EMPTY) {
+                int slot = find(oldKeys[idx]);
+                keys[slot] = oldKeys[idx];
+                values[slot] = oldValues[idx];
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Simulated air medium shared by {@link rf24Emulator} radios.
+ *
+ * Packets are delivered synchronously while the sender's SPI transaction (or CE edge) is
+ * processed. All radios attached to one medium share a single lock, so the emulators can be
+ * driven from several threads. Optional packet loss (seeded, reproducible) exercises the
+ * retry, PID duplicate detection and network ACK paths; in real time mode every transmission
+ * books its air time on the channel and the sender waits for the end of it, outside the lock,
+ * so throughput and latency numbers are comparable with hardware while the other radios keep
+ * using their SPI.
+ *
+ * {@code
+ * rf24Air air = new rf24Air();
+ * air.setLossRate(0.05);
+ * rf24 master = new rf24(new rf24Emulator(air));
+ * rf24 node = new rf24(new rf24Emulator(air));
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24Air {
+
+    /** Number of RF channels (0..125) */
+    public static final int CHANNELS = 126;
+    /** Time after a transmission in ns during which the channel is seen as busy (RPD) */
+    private static final long CARRIER_TIME = 1000000;
+
+    /** Lock shared by all radios of this medium */
+    final Object lock = new Object();
+
+    /** Radios attached to this medium */
+    private final ArrayList<rf24Emulator> radios = new ArrayList<>();
+    /** Packet loss generator */
+    private final Random random;
+    /** Probability that a packet or an ACK is lost */
+    private double lossRate;
+    /** Block the sender for the air time of each transmission */
+    private boolean realTime;
+    /** System.nanoTime() when the last transmission per channel ends, 0 = never */
+    private final long[] busy_until = new long[CHANNELS];
+    /** External noise per channel (0 = none, 1 = always busy) */
+    private final double[] noise = new double[CHANNELS];
+
+    /** Statistics */
+    private long packets;
+    private long lost;
+
+    /**
+     * Constructor, loss generator with a fixed seed
+     */
+    public rf24Air() {
+        this(1);
+    }
+
+    /**
+     * Constructor
+     * @param seed seed of the packet loss generator
+     */
+    public rf24Air(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Set the probability that a packet or an ACK is lost
+     * @param rate 0 (no loss) .. 1 (nothing gets through)
+     */
+    public void setLossRate(double rate) {
+        synchronized (lock) {
+            lossRate = rate;
+        }
+    }
+
+    /**
+     * Block the sender for the air time of each transmission (including retries)
+     * @param enable true for real time, false to deliver instantly
+     */
+    public void setRealTime(boolean enable) {
+        synchronized (lock) {
+            realTime = enable;
+        }
+    }
+
+    /**
+     * Simulate an external transmitter (WiFi, other networks) on a channel. Packets on the
+     * channel are lost with this probability and the receivers see a carrier (RPD).
+     * @param channel RF channel 0..125
+     * @param level 0 (quiet) .. 1 (always busy)
+     */
+    public void setNoise(int channel, double level) {
+        synchronized (lock) {
+            noise[channel] = level;
+        }
+    }
+
+    /**
+     * @return number of packets put on air (each retry counts)
+     */
+    public long getPacketCount() {
+        synchronized (lock) {
+            return packets;
+        }
+    }
+
+    /**
+     * @return number of packets and ACKs lost by the medium
+     */
+    public long getLostCount() {
+        synchronized (lock) {
+            return lost;
+        }
+    }
+
+    void attach(rf24Emulator radio) {
+        synchronized (lock) {
+            if (!radios.contains(radio))
+                radios.add(radio);
+        }
+    }
+
+    void detach(rf24Emulator radio) {
+        synchronized (lock) {
+            radios.remove(radio);
+        }
+    }
+
+    /**
+     * Find the radio receiving a packet (lock held)
+     * @return first listening radio with an enabled pipe matching the address, null if none
+     */
+    rf24Emulator receiver(rf24Emulator sender, int channel, int rate, byte[] address, int aw) {
+        for (int idx = 0; idx < radios.size(); idx++) {
+            rf24Emulator radio = radios.get(idx);
+            if (radio != sender && radio.listening(channel, rate) && radio.pipe_match(address, aw) >= 0)
+                return radio;
+        }
+        return null;
+    }
+
+    /**
+     * Find all radios receiving a packet sent without ACK request (lock held)
+     * @return listening radios with an enabled pipe matching the address
+     */
+    List<rf24Emulator> receivers(rf24Emulator sender, int channel, int rate, byte[] address, int aw) {
+        List<rf24Emulator> listeners = new ArrayList<>();
+        for (int idx = 0; idx < radios.size(); idx++) {
+            rf24Emulator radio = radios.get(idx);
+            if (radio != sender && radio.listening(channel, rate) && radio.pipe_match(address, aw) >= 0)
+                listeners.add(radio);
+        }
+        return listeners;
+    }
+
+    /**
+     * Count a packet (or an ACK) and decide if it gets lost (lock held)
+     * @return true if lost
+     */
+    boolean lose(int channel) {
+        packets++;
+        double p = lossRate + noise[channel] - lossRate * noise[channel];
+        if (p > 0 && random.nextDouble() < p) {
+            lost++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Random number of the medium, for the faults of the radios (lock held)
+     * @return uniformly distributed in [0, 1)
+     */
+    double random() {
+        return random.nextDouble();
+    }
+
+    /**
+     * Book the air time of a transmission on the channel (lock held). In real time mode the
+     * transmission starts when the channel is free, the sender waits for the returned time
+     * after releasing the lock, see waitAir().
+     * @param channel RF channel
+     * @param airtime air time of the transmission in ns
+     * @return System.nanoTime() when the transmission ends, 0 if not in real time mode
+     */
+    long transmitted(int channel, long airtime) {
+        long now = System.nanoTime();
+        if (!realTime) {
+            busy_until[channel] = now;
+            return 0;
+        }
+        busy_until[channel] = Math.max(now, busy_until[channel]) + airtime;
+        return busy_until[channel];
+    }
+
+    /**
+     * Wait for the end of a transmission, lock not held
+     * @param until time returned by transmitted(), 0 for no wait
+     */
+    static void waitAir(long until) {
+        long left = until - System.nanoTime();
+        if (until != 0 && left > 0)
+            rf24Timer.delayNanos(left);
+    }
+
+    /**
+     * @return true if a carrier is present on the channel right now (lock held)
+     */
+    boolean carrier(int channel) {
+        if (noise[channel] > 0 && random.nextDouble() < noise[channel])
+            return true;
+        return busy_until[channel] != 0 && System.nanoTime() - busy_until[channel] < CARRIER_TIME;
+    }
+}
@@ -0,0 +1,705 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * In-process nRF24L01+ emulator, used as {@link rf24Transport} so the driver, network and mesh
+ * run without radio hardware.
+ *
+ * The SPI command set, the register map (reset values, STATUS, FIFO_STATUS, OBSERVE_TX, RPD),
+ * the 3 level RX/TX FIFOs, dynamic payloads, auto-ack with retries (ARD/ARC, PID duplicate
+ * detection), NO_ACK payloads, ACK payloads and the IRQ line are emulated. Radios exchange
+ * packets through a {@link rf24Air} medium when they share channel, data rate, address width
+ * and address. Timing (PLL settling, Tpd2stby) is not emulated, transmissions complete
+ * synchronously unless the medium runs in real time mode.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24Emulator implements rf24Transport {
+
+    /* Commands */
+    private static final int W_REGISTER = 0x20;
+    private static final int REGISTER_MASK = 0x1F;
+    private static final int ACTIVATE = 0x50;
+    private static final int R_RX_PL_WID = 0x60;
+    private static final int R_RX_PAYLOAD = 0x61;
+    private static final int W_TX_PAYLOAD = 0xA0;
+    private static final int W_ACK_PAYLOAD = 0xA8;
+    private static final int W_TX_PAYLOAD_NO_ACK = 0xB0;
+    private static final int FLUSH_TX = 0xE1;
+    private static final int FLUSH_RX = 0xE2;
+    private static final int REUSE_TX_PL = 0xE3;
+
+    /* Registers */
+    private static final int CONFIG = 0x00;
+    private static final int EN_AA = 0x01;
+    private static final int EN_RXADDR = 0x02;
+    private static final int SETUP_AW = 0x03;
+    private static final int SETUP_RETR = 0x04;
+    private static final int RF_CH = 0x05;
+    private static final int RF_SETUP = 0x06;
+    private static final int STATUS = 0x07;
+    private static final int OBSERVE_TX = 0x08;
+    private static final int RPD = 0x09;
+    private static final int RX_ADDR_P0 = 0x0A;
+    private static final int RX_ADDR_P1 = 0x0B;
+    private static final int RX_ADDR_P2 = 0x0C;
+    private static final int TX_ADDR = 0x10;
+    private static final int RX_PW_P0 = 0x11;
+    private static final int FIFO_STATUS = 0x17;
+    private static final int DYNPD = 0x1C;
+    private static final int FEATURE = 0x1D;
+    private static final int REGISTER_COUNT = 0x1E;
+
+    /* Bits */
+    private static final int PRIM_RX = 0x01;
+    private static final int PWR_UP = 0x02;
+    private static final int CRCO = 0x04;
+    private static final int EN_CRC = 0x08;
+    private static final int RX_DR = 0x40;
+    private static final int TX_DS = 0x20;
+    private static final int MAX_RT = 0x10;
+    private static final int IRQ_FLAGS = RX_DR | TX_DS | MAX_RT;
+    private static final int TX_FULL = 0x01;
+    private static final int EN_DYN_ACK = 0x01;
+    private static final int EN_ACK_PAY = 0x02;
+    private static final int EN_DPL = 0x04;
+    private static final int RF_DR_LOW = 0x20;
+    private static final int RF_DR_HIGH = 0x08;
+
+    /** FIFO depth and maximal payload */
+    private static final int FIFO_DEPTH = 3;
+    private static final int PAYLOAD_MAX = 32;
+    /** Data rate codes */
+    private static final int RATE_1MBPS = 0;
+    private static final int RATE_2MBPS = 1;
+    private static final int RATE_250KBPS = 2;
+    /** PLL settling time before every packet in ns */
+    private static final long SETTLE_TIME = 130000;
+
+    /** Medium shared with the other radios */
+    private final rf24Air air;
+
+    /** Single byte registers */
+    private final byte[] regs = new byte[REGISTER_COUNT];
+    /** 5 byte addresses of pipe 0, pipe 1 and TX, LSB first */
+    private final byte[][] rx_addr = new byte[2][5];
+    private final byte[] tx_addr = new byte[5];
+
+    /** RX FIFO */
+    private final byte[][] rx_data = new byte[FIFO_DEPTH][PAYLOAD_MAX];
+    private final int[] rx_len = new int[FIFO_DEPTH];
+    private final int[] rx_pipe = new int[FIFO_DEPTH];
+    private int rx_head;
+    private int rx_count;
+
+    /** TX FIFO, tx_ackpipe is the pipe of an ACK payload or -1 for a TX payload */
+    private final byte[][] tx_data = new byte[FIFO_DEPTH][PAYLOAD_MAX];
+    private final int[] tx_len = new int[FIFO_DEPTH];
+    private final boolean[] tx_noack = new boolean[FIFO_DEPTH];
+    private final int[] tx_pid = new int[FIFO_DEPTH];
+    private final int[] tx_ackpipe = new int[FIFO_DEPTH];
+    private int tx_head;
+    private int tx_count;
+    private boolean tx_reuse;
+
+    /** STATUS interrupt flags */
+    private int flags;
+    /** OBSERVE_TX counters */
+    private int plos_cnt;
+    private int arc_cnt;
+    /** End of the air time booked by pump(), real time mode */
+    private long air_end;
+    /** Received power detector latch */
+    private boolean rpd;
+    /** Packet id of the last TX payload */
+    private int pid;
+    /** PID and checksum of the last packet per pipe, for duplicate detection */
+    private final int[] last_pid = new int[6];
+    private final int[] last_crc = new int[6];
+
+    private boolean opened;
+    private boolean ce_level;
+    private int spi_speed;
+    /** Highest SPI clock the simulated wiring carries without errors, 0: unlimited */
+    private int spi_limit;
+    private boolean irq_asserted;
+    private Runnable irqHandler;
+
+    /**
+     * Constructor, attaches a radio in reset state to the medium
+     * @param _air simulated air medium
+     */
+    public rf24Emulator(rf24Air _air) {
+        this(_air, 10000000);
+    }
+
+    /**
+     * Constructor, attaches a radio in reset state to the medium
+     * @param _air simulated air medium
+     * @param _spi_speed SPI speed reported to the driver in Hz
+     */
+    public rf24Emulator(rf24Air _air, int _spi_speed) {
+        air = _air;
+        spi_speed = _spi_speed;
+        reset();
+        air.attach(this);
+    }
+
+    /**
+     * Power-on reset: registers get their datasheet reset values and the FIFOs are emptied
+     */
+    public void reset() {
+        synchronized (air.lock) {
+            Arrays.fill(regs, (byte) 0);
+            regs[CONFIG] = 0x08;
+            regs[EN_AA] = 0x3F;
+            regs[EN_RXADDR] = 0x03;
+            regs[SETUP_AW] = 0x03;
+            regs[SETUP_RETR] = 0x03;
+            regs[RF_CH] = 0x02;
+            regs[RF_SETUP] = 0x0E;
+            for (int pipe = 2; pipe < 6; pipe++)
+                regs[RX_ADDR_P2 + pipe - 2] = (byte) (0xC1 + pipe);
+            Arrays.fill(rx_addr[0], (byte) 0xE7);
+            Arrays.fill(rx_addr[1], (byte) 0xC2);
+            Arrays.fill(tx_addr, (byte) 0xE7);
+            Arrays.fill(last_pid, -1);
+
+            rx_head = rx_count = 0;
+            tx_head = tx_count = 0;
+            tx_reuse = false;
+            flags = 0;
+            plos_cnt = arc_cnt = 0;
+            rpd = false;
+            irq_asserted = false;
+        }
+    }
+
+    /**
+     * @return simulated air medium of this radio
+     */
+    public rf24Air getAir() {
+        return air;
+    }
+
+    @Override
+    public boolean open() {
+        synchronized (air.lock) {
+            opened = true;
+            air.attach(this);
+        }
+        return true;
+    }
+
+    @Override
+    public void transfer(byte[] tx, byte[] rx, int len) throws IOException {
+        if (len <= 0)
+            return;
+
+        long wait_until;
+        synchronized (air.lock) {
+            if (!opened)
+                throw new IOException("emulated radio is closed");
+
+            rx[0] = (byte) status();
+            int cmd = tx[0] & 0xFF;
+
+            if (cmd < W_REGISTER) {
+                read_register(cmd & REGISTER_MASK, rx, len);
+            } else if (cmd < ACTIVATE) {
+                write_register(cmd & REGISTER_MASK, tx, len);
+            } else if (cmd == R_RX_PL_WID) {
+                if (len > 1)
+                    rx[1] = (byte) (rx_count > 0 ? rx_len[rx_head] : 0);
+            } else if (cmd == R_RX_PAYLOAD) {
+                read_payload(rx, len);
+            } else if (cmd == W_TX_PAYLOAD) {
+                write_payload(tx, len, false, -1);
+            } else if (cmd == W_TX_PAYLOAD_NO_ACK) {
+                if ((regs[FEATURE] & EN_DYN_ACK) != 0)
+                    write_payload(tx, len, true, -1);
+            } else if ((cmd & ~0x07) == W_ACK_PAYLOAD) {
+                if ((regs[FEATURE] & EN_ACK_PAY) != 0)
+                    write_payload(tx, len, false, cmd & 0x07);
+            } else if (cmd == FLUSH_TX) {
+                tx_count = 0;
+                tx_reuse = false;
+            } else if (cmd == FLUSH_RX) {
+                rx_count = 0;
+            } else if (cmd == REUSE_TX_PL) {
+                tx_reuse = true;
+            }
+            // ACTIVATE: the features of the + variant are always active, NOP: status only
+
+            if (spi_limit > 0 && spi_speed > spi_limit && len > 1
+                    && air.random() < (double) (spi_speed - spi_limit) / spi_limit) {
+                int bit = (int) (air.random() * 8 * (len - 1));
+                rx[1 + bit / 8] ^= (byte) (1 << (bit % 8));     // MISO sampled too early
+            }
+
+            wait_until = pump();
+            update_irq();
+        }
+        rf24Air.waitAir(wait_until);
+    }
+
+    /**
+     * Simulate the wiring of a unit: above the limit, data read back from the chip gets bit
+     * errors, the more the higher the clock (every transfer at twice the limit)
+     * @param hz highest clean SPI clock in Hz, 0 for no limit
+     */
+    public void setSpiLimit(int hz) {
+        synchronized (air.lock) {
+            spi_limit = hz;
+        }
+    }
+
+    @Override
+    public void ce(boolean level) {
+        long wait_until;
+        synchronized (air.lock) {
+            boolean rising = level && !ce_level;
+            ce_level = level;
+            if (rising && (regs[CONFIG] & PRIM_RX) != 0)
+                rpd = false;
+            wait_until = pump();
+            update_irq();
+        }
+        rf24Air.waitAir(wait_until);
+    }
+
+    @Override
+    public int getSpeed() {
+        return spi_speed;
+    }
+
+    @Override
+    public void setSpeed(int hz) {
+        spi_speed = hz;
+    }
+
+    @Override
+    public boolean openIrq(String pinName, Runnable onEdge) {
+        synchronized (air.lock) {
+            irqHandler = onEdge;
+            irq_asserted = irq_line();
+        }
+        return true;
+    }
+
+    @Override
+    public void closeIrq() {
+        synchronized (air.lock) {
+            irqHandler = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (air.lock) {
+            irqHandler = null;
+            opened = false;
+            ce_level = false;
+            air.detach(this);
+        }
+    }
+
+    /*
+     * Chip side, air.lock is held by all the methods below
+     */
+
+    private int status() {
+        int rx_p_no = rx_count > 0 ? rx_pipe[rx_head] : 0x07;
+        return flags | (rx_p_no << 1) | (tx_count == FIFO_DEPTH ? TX_FULL : 0);
+    }
+
+    private int fifo_status() {
+        return (tx_reuse ? 0x40 : 0)
+                | (tx_count == FIFO_DEPTH ? 0x20 : 0)
+                | (tx_count == 0 ? 0x10 : 0)
+                | (rx_count == FIFO_DEPTH ? 0x02 : 0)
+                | (rx_count == 0 ? 0x01 : 0);
+    }
+
+    private void read_register(int reg, byte[] rx, int len) {
+        byte[] address = address_register(reg);
+        for (int idx = 1; idx < len; idx++) {
+            if (address != null) {
+                rx[idx] = idx <= address.length ? address[idx - 1] : 0;
+                continue;
+            }
+            switch (reg) {
+                case STATUS:
+                    rx[idx] = (byte) status();
+                    break;
+                case OBSERVE_TX:
+                    rx[idx] = (byte) ((plos_cnt << 4) | arc_cnt);
+                    break;
+                case RPD:
+                    rx[idx] = (byte) (rpd || (listening(regs[RF_CH], rate()) && air.carrier(regs[RF_CH])) ? 1 : 0);
+                    break;
+                case FIFO_STATUS:
+                    rx[idx] = (byte) fifo_status();
+                    break;
+                default:
+                    rx[idx] = reg < REGISTER_COUNT ? regs[reg] : 0;
+                    break;
+            }
+        }
+    }
+
+    private void write_register(int reg, byte[] tx, int len) {
+        if (len < 2)
+            return;
+
+        byte[] address = address_register(reg);
+        if (address != null) {
+            for (int idx = 1; idx < len && idx <= address.length; idx++)
+                address[idx - 1] = tx[idx];
+            return;
+        }
+
+        int value = tx[1] & 0xFF;
+        switch (reg) {
+            case STATUS:
+                flags &= ~(value & IRQ_FLAGS);
+                break;
+            case RF_CH:
+                regs[RF_CH] = (byte) (value & 0x7F);
+                plos_cnt = 0;
+                break;
+            case OBSERVE_TX:
+            case RPD:
+            case FIFO_STATUS:
+                break;
+            default:
+                if (reg < REGISTER_COUNT)
+                    regs[reg] = (byte) value;
+                break;
+        }
+    }
+
+    /**
+     * @return storage of a 5 byte address register, null for single byte registers
+     */
+    private byte[] address_register(int reg) {
+        switch (reg) {
+            case RX_ADDR_P0:
+                return rx_addr[0];
+            case RX_ADDR_P1:
+                return rx_addr[1];
+            case TX_ADDR:
+                return tx_addr;
+            default:
+                return null;
+        }
+    }
+
+    private void read_payload(byte[] rx, int len) {
+        if (rx_count == 0) {
+            Arrays.fill(rx, 1, len, (byte) 0);
+            return;
+        }
+        int data_len = Math.min(len - 1, PAYLOAD_MAX);
+        System.arraycopy(rx_data[rx_head], 0, rx, 1, data_len);
+        rx_head = (rx_head + 1) % FIFO_DEPTH;
+        rx_count--;
+    }
+
+    private void write_payload(byte[] tx, int len, boolean noack, int ackpipe) {
+        if (tx_count == FIFO_DEPTH)
+            return;
+
+        int slot = (tx_head + tx_count) % FIFO_DEPTH;
+        int data_len = Math.min(len - 1, PAYLOAD_MAX);
+        System.arraycopy(tx, 1, tx_data[slot], 0, data_len);
+        tx_len[slot] = data_len;
+        tx_noack[slot] = noack;
+        tx_ackpipe[slot] = ackpipe;
+        if (ackpipe < 0)
+            pid = (pid + 1) & 0x03;
+        tx_pid[slot] = pid;
+        tx_count++;
+        tx_reuse = false;
+    }
+
+    /**
+     * Transmit the TX FIFO while the radio is a powered up PTX with CE high
+     * @return end of the air time to wait for outside the lock, 0 if nothing was sent
+     */
+    private long pump() {
+        air_end = 0;
+        while (opened && ce_level && tx_count > 0 && (flags & MAX_RT) == 0
+                && (regs[CONFIG] & (PWR_UP | PRIM_RX)) == PWR_UP) {
+            if (!transmit())
+                break;
+        }
+        return air_end;
+    }
+
+    /**
+     * Send the payload at the head of the TX FIFO including the automatic retransmissions
+     * @return true if the next payload can be sent
+     */
+    private boolean transmit() {
+        int slot = tx_head;
+        if (tx_ackpipe[slot] >= 0)
+            return false;           // ACK payloads are only sent by a PRX
+        int channel = regs[RF_CH];
+        int rate = rate();
+        int aw = address_width();
+        boolean dpl = dynamic_payload(0);
+        boolean expect_ack = !tx_noack[slot] && (regs[EN_AA] & 0x01) != 0;
+        int retries = expect_ack ? regs[SETUP_RETR] & 0x0F : 0;
+        long ard = (((regs[SETUP_RETR] & 0xF0) >> 4) + 1) * 250000L;
+
+        rf24Emulator receiver = air.receiver(this, channel, rate, tx_addr, aw);
+        long airtime = 0;
+        boolean done = false;
+        int attempt = 0;
+
+        if (!expect_ack) {
+            // sent once, every listening radio with the address (multicast) gets its own copy or
+            // loses it, the sender can't tell
+            airtime += SETTLE_TIME + frame_time(tx_len[slot], aw, rate);
+            for (rf24Emulator listener : air.receivers(this, channel, rate, tx_addr, aw)) {
+                if (!air.lose(channel))
+                    listener.receive(tx_addr, aw, tx_data[slot], tx_len[slot], tx_pid[slot], dpl);
+            }
+            done = true;
+            attempt = 1;
+        }
+
+        for (; attempt <= retries && !done; attempt++) {
+            if (attempt > 0)
+                airtime += ard;
+            airtime += SETTLE_TIME + frame_time(tx_len[slot], aw, rate);
+
+            if (receiver == null || air.lose(channel))
+                continue;
+
+            int pipe = receiver.receive(tx_addr, aw, tx_data[slot], tx_len[slot], tx_pid[slot], dpl);
+            if (pipe < 0 || !receiver.acks(pipe))
+                continue;
+
+            // ACK packet, received on pipe 0 (RX_ADDR_P0 has to be TX_ADDR)
+            airtime += SETTLE_TIME + frame_time(receiver.ack_payload_length(pipe), aw, rate);
+            if (air.lose(channel) || !Arrays.equals(rx_addr[0], tx_addr))
+                continue;           // an ACK payload stays queued for the retransmission
+            receiver.send_ack_payload(pipe, this);
+            done = true;
+        }
+
+        air_end = Math.max(air_end, air.transmitted(channel, airtime));
+        arc_cnt = Math.max(0, attempt - 1);
+
+        if (!done) {
+            flags |= MAX_RT;
+            if (plos_cnt < 15)
+                plos_cnt++;
+            return false;
+        }
+
+        flags |= TX_DS;
+        if (tx_reuse)
+            return false;           // the chip repeats the payload while CE is high, sent once per trigger here
+        tx_head = (tx_head + 1) % FIFO_DEPTH;
+        tx_count--;
+        return true;
+    }
+
+    /**
+     * @return true if the radio is a powered up PRX with CE high on this channel and data rate
+     */
+    boolean listening(int channel, int rate) {
+        return opened && ce_level
+                && (regs[CONFIG] & (PWR_UP | PRIM_RX)) == (PWR_UP | PRIM_RX)
+                && regs[RF_CH] == channel && rate() == rate;
+    }
+
+    /**
+     * @return enabled pipe listening on the address, -1 if none
+     */
+    int pipe_match(byte[] address, int aw) {
+        if (aw != address_width())
+            return -1;
+
+        for (int pipe = 0; pipe < 6; pipe++) {
+            if ((regs[EN_RXADDR] & (1 << pipe)) == 0)
+                continue;
+
+            byte[] base = rx_addr[pipe == 0 ? 0 : 1];
+            boolean match = (pipe < 2 ? base[0] : regs[RX_ADDR_P2 + pipe - 2]) == address[0];
+            for (int idx = 1; idx < aw && match; idx++)
+                match = base[idx] == address[idx];
+            if (match)
+                return pipe;
+        }
+        return -1;
+    }
+
+    /**
+     * Receive a packet
+     * @return pipe of the packet, -1 if it was not received (length mismatch, RX FIFO full)
+     */
+    int receive(byte[] address, int aw, byte[] data, int len, int packet_pid, boolean dpl) {
+        int pipe = pipe_match(address, aw);
+        if (pipe < 0 || dynamic_payload(pipe) != dpl)
+            return -1;
+        if (!dpl && (regs[RX_PW_P0 + pipe] & 0x3F) != len)
+            return -1;
+        if (rx_count == FIFO_DEPTH)
+            return -1;
+
+        rpd = true;
+
+        // retransmission of a packet that was received but whose ACK got lost
+        int crc = checksum(data, len);
+        if (packet_pid == last_pid[pipe] && crc == last_crc[pipe])
+            return pipe;
+        last_pid[pipe] = packet_pid;
+        last_crc[pipe] = crc;
+
+        int slot = (rx_head + rx_count) % FIFO_DEPTH;
+        System.arraycopy(data, 0, rx_data[slot], 0, len);
+        rx_len[slot] = len;
+        rx_pipe[slot] = pipe;
+        rx_count++;
+        flags |= RX_DR;
+        update_irq();
+        return pipe;
+    }
+
+    /**
+     * @return true if packets on the pipe are acknowledged
+     */
+    boolean acks(int pipe) {
+        return (regs[EN_AA] & (1 << pipe)) != 0;
+    }
+
+    /**
+     * @return TX FIFO slot of the ACK payload for the pipe, -1 if none
+     */
+    private int ack_payload_slot(int pipe) {
+        if ((regs[FEATURE] & EN_ACK_PAY) == 0)
+            return -1;
+        for (int idx = 0; idx < tx_count; idx++) {
+            int slot = (tx_head + idx) % FIFO_DEPTH;
+            if (tx_ackpipe[slot] == pipe)
+                return slot;
+        }
+        return -1;
+    }
+
+    int ack_payload_length(int pipe) {
+        int slot = ack_payload_slot(pipe);
+        return slot < 0 ? 0 : tx_len[slot];
+    }
+
+    /**
+     * Hand the ACK payload of the pipe to the sender
+     */
+    void send_ack_payload(int pipe, rf24Emulator sender) {
+        int slot = ack_payload_slot(pipe);
+        if (slot < 0)
+            return;
+
+        sender.receive_ack_payload(tx_data[slot], tx_len[slot]);
+
+        // remove the slot, keeping the order of the others
+        for (int idx = 0; idx < tx_count; idx++) {
+            int current = (tx_head + idx) % FIFO_DEPTH;
+            if (current != slot)
+                continue;
+            for (int next = idx + 1; next < tx_count; next++) {
+                int from = (tx_head + next) % FIFO_DEPTH;
+                int to = (tx_head + next - 1) % FIFO_DEPTH;
+                System.arraycopy(tx_data[from], 0, tx_data[to], 0, PAYLOAD_MAX);
+                tx_len[to] = tx_len[from];
+                tx_noack[to] = tx_noack[from];
+                tx_pid[to] = tx_pid[from];
+                tx_ackpipe[to] = tx_ackpipe[from];
+            }
+            break;
+        }
+        tx_count--;
+        flags |= TX_DS;
+        update_irq();
+    }
+
+    private void receive_ack_payload(byte[] data, int len) {
+        if (rx_count == FIFO_DEPTH)
+            return;
+        int slot = (rx_head + rx_count) % FIFO_DEPTH;
+        System.arraycopy(data, 0, rx_data[slot], 0, len);
+        rx_len[slot] = len;
+        rx_pipe[slot] = 0;
+        rx_count++;
+        flags |= RX_DR;
+    }
+
+    /**
+     * Raise the IRQ callback on the falling edge of the (active low) IRQ line
+     */
+    private void update_irq() {
+        boolean asserted = irq_line();
+        if (asserted && !irq_asserted && irqHandler != null)
+            irqHandler.run();
+        irq_asserted = asserted;
+    }
+
+    private boolean irq_line() {
+        return (flags & ~regs[CONFIG] & IRQ_FLAGS) != 0;
+    }
+
+    private boolean dynamic_payload(int pipe) {
+        return (regs[FEATURE] & EN_DPL) != 0 && (regs[DYNPD] & (1 << pipe)) != 0;
+    }
+
+    private int address_width() {
+        return (regs[SETUP_AW] & 0x03) + 2;
+    }
+
+    private int rate() {
+        if ((regs[RF_SETUP] & RF_DR_LOW) != 0)
+            return RATE_250KBPS;
+        return (regs[RF_SETUP] & RF_DR_HIGH) != 0 ? RATE_2MBPS : RATE_1MBPS;
+    }
+
+    /**
+     * @return air time of a packet in ns (preamble, address, packet control field, payload, CRC)
+     */
+    private long frame_time(int len, int aw, int rate) {
+        int crc = (regs[CONFIG] & EN_CRC) == 0 ? 0 : (regs[CONFIG] & CRCO) != 0 ? 16 : 8;
+        long bits = 8 + aw * 8 + 9 + len * 8 + crc;
+        long bps = rate == RATE_2MBPS ? 2000000 : rate == RATE_250KBPS ? 250000 : 1000000;
+        return bits * 1000000000L / bps;
+    }
+
+    private static int checksum(byte[] data, int len) {
+        int crc = len;
+        for (int idx = 0; idx < len; idx++)
+            crc = 31 * crc + data[idx];
+        return crc;
+    }
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Bounded queue of received network frames with preallocated, recycled frames.
+ *
+ * Queuing a frame copies header and message into a frame of the ring, so receiving doesn't
+ * allocate. poll() and remove() hand the frame over to the caller, who gives it back with
+ * release() when done. A frame that isn't given back is replaced by a new one when needed,
+ * counted in getAllocated().
+ *
+ * When the queue is full the overflow policy decides:
+ * DROP_NEWEST (default) drops the incoming frame, DROP_OLDEST drops the head of the queue,
+ * BLOCK waits up to the block timeout for a consumer on another thread, then drops the incoming
+ * frame. Every dropped frame is counted in getDropped().
+ *
+ * {@code
+ * rf24FrameRing queue = network.getFrameQueue();
+ * queue.setPolicy(rf24FrameRing.DROP_OLDEST);
+ * ...
+ * Log.i(TAG, queue.getDropped() + " dropped, high water " + queue.getHighWater());
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24FrameRing extends AbstractQueue<rf24NetworkFrame> {
+
+    /** Overflow policies */
+    public static final int DROP_NEWEST = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int BLOCK = 2;
+
+    /** Default block timeout in ms */
+    private static final int BLOCK_TIMEOUT = 10;
+
+    /** Queued frames, head first */
+    private rf24NetworkFrame[] slots;
+    private int head;
+    private int count;
+
+    /** Frames ready for reuse */
+    private rf24NetworkFrame[] free;
+    private int free_count;
+
+    private int policy = DROP_NEWEST;
+    private int block_timeout = BLOCK_TIMEOUT;
+
+    private long enqueued;
+    private long dropped;
+    private long blocked;
+    private long allocated;
+    private int high_water;
+
+    /**
+     * Constructor
+     * @param capacity number of frames held
+     */
+    public rf24FrameRing(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Change the capacity, the queued frames are dropped without counting
+     * @param capacity number of frames held
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid frame ring capacity " + capacity);
+        slots = new rf24NetworkFrame[capacity];
+        free = new rf24NetworkFrame[capacity];
+        for (int i = 0; i < capacity; i++)
+            free[i] = new_frame();
+        free_count = capacity;
+        head = 0;
+        count = 0;
+        notifyAll();
+    }
+
+    /**
+     * @return number of frames held
+     */
+    public synchronized int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * @param _policy DROP_NEWEST, DROP_OLDEST or BLOCK
+     */
+    public synchronized void setPolicy(int _policy) {
+        if (_policy < DROP_NEWEST || _policy > BLOCK)
+            throw new IllegalArgumentException("Invalid overflow policy " + _policy);
+        policy = _policy;
+    }
+
+    /**
+     * @return the overflow policy
+     */
+    public synchronized int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Longest wait for room with the BLOCK policy. Only a consumer on another thread
+     * (rf24Network.external_queue) can make room, the update loop doesn't read while it waits.
+     * @param ms timeout in ms
+     */
+    public synchronized void setBlockTimeout(int ms) {
+        block_timeout = ms;
+    }
+
+    /**
+     * Queue a copy of a received frame
+     * @param header header of the frame
+     * @param message buffer holding the message
+     * @param offset index of the message in the buffer
+     * @param len size of the message
+     * @return false if the frame was dropped
+     */
+    synchronized boolean offer(rf24NetworkHeader header, int[] message, int offset, int len) {
+        if (!make_room())
+            return false;
+        rf24NetworkFrame frame = acquire();
+        frame.set(header, message, offset, len);
+        add_tail(frame);
+        return true;
+    }
+
+    /**
+     * Queue a copy of a frame, the caller keeps the frame
+     * @param frame frame to copy, messages longer than the frame buffer are truncated
+     * @return false if the frame was dropped
+     */
+    @Override
+    public synchronized boolean offer(rf24NetworkFrame frame) {
+        if (frame == null)
+            throw new NullPointerException();
+        return offer(frame.header, frame.message_buffer, 0, frame.message_size);
+    }
+
+    /**
+     * Apply the overflow policy if the queue is full
+     * @return true if a frame can be added
+     */
+    private boolean make_room() {
+        if (count < slots.length)
+            return true;
+        if (policy == DROP_OLDEST) {
+            release(take_head());
+            dropped++;
+            return true;
+        }
+        if (policy == BLOCK && block_timeout > 0) {
+            blocked++;
+            long deadline = System.currentTimeMillis() + block_timeout;
+            long left = block_timeout;
+            while (count >= slots.length && left > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+            if (count < slots.length)
+                return true;
+        }
+        dropped++;
+        return false;
+    }
+
+    private void add_tail(rf24NetworkFrame frame) {
+        slots[(head + count) % slots.length] = frame;
+        count++;
+        enqueued++;
+        if (count > high_water)
+            high_water = count;
+    }
+
+    private rf24NetworkFrame take_head() {
+        rf24NetworkFrame frame = slots[head];
+        slots[head] = null;
+        head = (head + 1) % slots.length;
+        count--;
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * @return a free frame, a new one if every frame is queued or handed out
+     */
+    private rf24NetworkFrame acquire() {
+        if (free_count > 0) {
+            rf24NetworkFrame frame = free[--free_count];
+            free[free_count] = null;
+            return frame;
+        }
+        allocated++;
+        return new_frame();
+    }
+
+    private rf24NetworkFrame new_frame() {
+        rf24NetworkFrame frame = new rf24NetworkFrame();
+        frame.header = new rf24NetworkHeader();
+        frame.ring = this;
+        return frame;
+    }
+
+    /**
+     * Take the head of the queue, the caller owns the frame until release()
+     * @return the frame, null if the queue is empty
+     */
+    @Override
+    public synchronized rf24NetworkFrame poll() {
+        return count == 0 ? null : take_head();
+    }
+
+    /**
+     * Take the head of the queue like poll(), the caller owns the frame until release()
+     * @return the frame
+     * @throws NoSuchElementException if the queue is empty
+     */
+    @Override
+    public synchronized rf24NetworkFrame remove() {
+        if (count == 0)
+            throw new NoSuchElementException();
+        return take_head();
+    }
+
+    /**
+     * @return the head of the queue, still queued, null if the queue is empty
+     */
+    @Override
+    public synchronized rf24NetworkFrame peek() {
+        return count == 0 ? null : slots[head];
+    }
+
+    /**
+     * Give a frame taken with poll() or remove() back for reuse, frames of other rings are ignored
+     * @param frame frame not used anymore
+     */
+    public synchronized void release(rf24NetworkFrame frame) {
+        if (frame == null || frame.ring != this || free_count == free.length)
+            return;
+        for (int i = 0; i < free_count; i++) {
+            if (free[i] == frame)
+                return;
+        }
+        free[free_count++] = frame;
+    }
+
+    /**
+     * @param frame frame to test
+     * @return true if the frame belongs to this ring
+     */
+    public boolean owns(rf24NetworkFrame frame) {
+        return frame != null && frame.ring == this;
+    }
+
+    /**
+     * Drop the queued frames without counting them
+     */
+    @Override
+    public synchronized void clear() {
+        while (count > 0)
+            release(take_head());
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Iterator over the queued frames, head first, without remove()
+     */
+    @Override
+    public synchronized Iterator<rf24NetworkFrame> iterator() {
+        final rf24NetworkFrame[] snapshot = new rf24NetworkFrame[count];
+        for (int i = 0; i < count; i++)
+            snapshot[i] = slots[(head + i) % slots.length];
+        return new Iterator<rf24NetworkFrame>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < snapshot.length;
+            }
+
+            @Override
+            public rf24NetworkFrame next() {
+                if (next >= snapshot.length)
+                    throw new NoSuchElementException();
+                return snapshot[next++];
+            }
+        };
+    }
+
+    /**
+     * @return number of frames queued since the creation
+     */
+    public synchronized long getEnqueued() {
+        return enqueued;
+    }
+
+    /**
+     * @return number of frames dropped by the overflow policy
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of times the BLOCK policy waited for room
+     */
+    public synchronized long getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * @return number of frames allocated because frames weren't given back with release()
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return largest number of frames queued at the same time
+     */
+    public synchronized int getHighWater() {
+        return high_water;
+    }
+
+    /**
+     * Reset the counters
+     */
+    public synchronized void resetCounters() {
+        enqueued = 0;
+        dropped = 0;
+        blocked = 0;
+        allocated = 0;
+        high_water = count;
+    }
+}
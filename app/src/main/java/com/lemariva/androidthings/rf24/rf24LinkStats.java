@@ -0,0 +1,293 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Link quality telemetry collected by {@link rf24}.
+ *
+ * Per TX address (link): sent/delivered counts, a histogram of the retransmissions (ARC_CNT of
+ * OBSERVE_TX), the lost packet count (PLOS_CNT deltas) and the latency from CE high to TX_DS
+ * seen by the driver, as sum, maximum and a power of two histogram in ns. Per RX pipe: received
+ * packets and how many of them had the received power detector (RPD, >= -64dBm) set.
+ *
+ * All counters live in fixed size primitive arrays allocated up front, so collection doesn't
+ * allocate. Links beyond MAX_LINKS are counted in getOverflow() only. The methods are
+ * synchronized: the radio thread records, any thread can read.
+ *
+ * {@code
+ * rf24LinkStats stats = new rf24LinkStats();
+ * radio.setLinkStats(stats);
+ * ...
+ * for (int link = 0; link < stats.getLinkCount(); link++)
+ *     Log.i(TAG, Long.toHexString(stats.getAddress(link)) + " p99 " + stats.getLatencyPercentile(link, 0.99) + "ns");
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.util.Arrays;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24LinkStats {
+
+    /** Number of TX addresses tracked */
+    public static final int MAX_LINKS = 32;
+    /** Retry histogram buckets: 0..15 retransmissions */
+    public static final int RETRY_BUCKETS = 16;
+    /** Latency histogram buckets: bucket b counts latencies in [2^(b-1), 2^b) ns */
+    public static final int LATENCY_BUCKETS = 40;
+    /** Number of RX pipes */
+    public static final int PIPES = 6;
+
+    private final rf24AddressMap links = new rf24AddressMap(MAX_LINKS);
+    private int link_count;
+    private long overflow;
+
+    private final long[] addresses = new long[MAX_LINKS];
+    private final long[] sent = new long[MAX_LINKS];
+    private final long[] delivered = new long[MAX_LINKS];
+    private final long[] lost = new long[MAX_LINKS];
+    private final long[] retry_hist = new long[MAX_LINKS * RETRY_BUCKETS];
+    private final long[] latency_sum = new long[MAX_LINKS];
+    private final long[] latency_max = new long[MAX_LINKS];
+    private final long[] latency_hist = new long[MAX_LINKS * LATENCY_BUCKETS];
+
+    private final long[] rx_packets = new long[PIPES];
+    private final long[] rx_rpd = new long[PIPES];
+
+    /**
+     * Record a finished acknowledged transmission
+     * @param address TX address, see rf24AddressMap.key()
+     * @param ok true if the payload was acknowledged
+     * @param retries retransmissions (values above 15 go to the last bucket)
+     * @param latency ns from CE high to TX_DS, ignored if the payload wasn't delivered
+     * @param plos lost packets reported by PLOS_CNT since the last record
+     */
+    public synchronized void recordTx(long address, boolean ok, int retries, long latency, int plos) {
+        int link = link(address, true);
+        if (link < 0) {
+            overflow++;
+            return;
+        }
+        sent[link]++;
+        lost[link] += plos;
+        retry_hist[link * RETRY_BUCKETS + Math.min(retries, RETRY_BUCKETS - 1)]++;
+        if (ok) {
+            delivered[link]++;
+            latency_sum[link] += latency;
+            if (latency > latency_max[link])
+                latency_max[link] = latency;
+            int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency));
+            latency_hist[link * LATENCY_BUCKETS + bucket]++;
+        }
+    }
+
+    /**
+     * Record a received packet
+     * @param pipe pipe the packet arrived on (0..5)
+     * @param rpd received power detector after the packet
+     */
+    public synchronized void recordRx(int pipe, boolean rpd) {
+        rx_packets[pipe]++;
+        if (rpd)
+            rx_rpd[pipe]++;
+    }
+
+    /**
+     * @return number of links (TX addresses) tracked
+     */
+    public synchronized int getLinkCount() {
+        return link_count;
+    }
+
+    /**
+     * @param address TX address
+     * @return link index of the address, -1 if not tracked
+     */
+    public synchronized int getLink(long address) {
+        return link(address, false);
+    }
+
+    /**
+     * @param link link index (0..getLinkCount()-1)
+     * @return TX address of the link
+     */
+    public synchronized long getAddress(int link) {
+        return addresses[link];
+    }
+
+    /**
+     * @param link link index
+     * @return acknowledged transmissions attempted
+     */
+    public synchronized long getSent(int link) {
+        return sent[link];
+    }
+
+    /**
+     * @param link link index
+     * @return transmissions acknowledged
+     */
+    public synchronized long getDelivered(int link) {
+        return delivered[link];
+    }
+
+    /**
+     * @param link link index
+     * @return packets lost (MAX_RT) according to PLOS_CNT
+     */
+    public synchronized long getLost(int link) {
+        return lost[link];
+    }
+
+    /**
+     * Copy the retry histogram of a link
+     * @param link link index
+     * @param histogram receives RETRY_BUCKETS counters, histogram[n]: payloads with n retransmissions
+     */
+    public synchronized void getRetryHistogram(int link, long[] histogram) {
+        System.arraycopy(retry_hist, link * RETRY_BUCKETS, histogram, 0, RETRY_BUCKETS);
+    }
+
+    /**
+     * Copy the latency histogram of a link
+     * @param link link index
+     * @param histogram receives LATENCY_BUCKETS counters, histogram[b]: latencies in [2^(b-1), 2^b) ns
+     */
+    public synchronized void getLatencyHistogram(int link, long[] histogram) {
+        System.arraycopy(latency_hist, link * LATENCY_BUCKETS, histogram, 0, LATENCY_BUCKETS);
+    }
+
+    /**
+     * @param link link index
+     * @return mean latency of the delivered payloads in ns, 0 if none
+     */
+    public synchronized long getLatencyMean(int link) {
+        return delivered[link] == 0 ? 0 : latency_sum[link] / delivered[link];
+    }
+
+    /**
+     * @param link link index
+     * @return largest latency in ns
+     */
+    public synchronized long getLatencyMax(int link) {
+        return latency_max[link];
+    }
+
+    /**
+     * Latency percentile from the histogram (upper bound of the bucket, at most the maximum)
+     * @param link link index
+     * @param fraction percentile as fraction, e.g. 0.99
+     * @return latency in ns, 0 if nothing was delivered
+     */
+    public synchronized long getLatencyPercentile(int link, double fraction) {
+        long rank = (long) Math.ceil(fraction * delivered[link]);
+        long count = 0;
+        for (int bucket = 0; bucket < LATENCY_BUCKETS && rank > 0; bucket++) {
+            count += latency_hist[link * LATENCY_BUCKETS + bucket];
+            if (count >= rank)
+                return Math.min(latency_max[link], (1L << bucket) - 1);
+        }
+        return 0;
+    }
+
+    /**
+     * @param pipe RX pipe (0..5)
+     * @return packets received on the pipe
+     */
+    public synchronized long getRxPackets(int pipe) {
+        return rx_packets[pipe];
+    }
+
+    /**
+     * @param pipe RX pipe (0..5)
+     * @return fraction of the packets received with RPD set (strong signal), -1 if none received
+     */
+    public synchronized double getRpdRate(int pipe) {
+        return rx_packets[pipe] == 0 ? -1 : (double) rx_rpd[pipe] / rx_packets[pipe];
+    }
+
+    /**
+     * @return transmissions to addresses beyond MAX_LINKS (not counted per link)
+     */
+    public synchronized long getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Clear all counters and links
+     */
+    public synchronized void reset() {
+        links.clear();
+        link_count = 0;
+        overflow = 0;
+        Arrays.fill(sent, 0);
+        Arrays.fill(delivered, 0);
+        Arrays.fill(lost, 0);
+        Arrays.fill(retry_hist, 0);
+        Arrays.fill(latency_sum, 0);
+        Arrays.fill(latency_max, 0);
+        Arrays.fill(latency_hist, 0);
+        Arrays.fill(rx_packets, 0);
+        Arrays.fill(rx_rpd, 0);
+    }
+
+    /**
+     * Create debugging string, one line per link and RX pipe
+     * @return String representation of this object
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int link = 0; link < link_count; link++) {
+            text.append("TX 0x").append(Long.toHexString(addresses[link]))
+                .append(": sent ").append(sent[link])
+                .append(" ok ").append(delivered[link])
+                .append(" lost ").append(lost[link])
+                .append(" latency mean ").append(getLatencyMean(link) / 1000).append("us")
+                .append(" p99 ").append(getLatencyPercentile(link, 0.99) / 1000).append("us")
+                .append(" max ").append(latency_max[link] / 1000).append("us\n");
+        }
+        for (int pipe = 0; pipe < PIPES; pipe++) {
+            if (rx_packets[pipe] > 0)
+                text.append("RX pipe ").append(pipe).append(": ").append(rx_packets[pipe])
+                    .append(" packets, RPD ").append(rx_rpd[pipe]).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Link index of an address
+     * @param address TX address
+     * @param create add the address if there is room
+     * @return link index, -1 if not tracked
+     */
+    private int link(long address, boolean create) {
+        int link = links.get(address, -1);
+        if (link >= 0 || !create || link_count == MAX_LINKS)
+            return link;
+
+        link = link_count++;
+        addresses[link] = address;
+        sent[link] = delivered[link] = lost[link] = 0;
+        latency_sum[link] = latency_max[link] = 0;
+        Arrays.fill(retry_hist, link * RETRY_BUCKETS, (link + 1) * RETRY_BUCKETS, 0);
+        Arrays.fill(latency_hist, link * LATENCY_BUCKETS, (link + 1) * LATENCY_BUCKETS, 0);
+        links.put(address, link);
+        return link;
+    }
+}
@@ -6,6 +6,9 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /** Rewritten for Java by:
  *  Mauro Riva <lemariva@mail.com> <lemariva.com>
@@ -84,11 +87,29 @@ public class rf24Mesh {
     private static final int MESH_ADDR_LOOKUP = 196;
     private static final int MESH_ADDR_RELEASE = 197;
     private static final int MESH_ID_LOOKUP = 198;
+    private static final int MESH_HOP_SEQUENCE = 199;
 
     private static final int MESH_BLANK_ID = 65535;
 
     private static final int MESH_MAXPOLLS = 4;
 
+    /** Idle time (us) between network.update() calls while waiting for a response */
+    private static final int MESH_UPDATE_IDLE = 250;
+
+    /** Highest channel picked by the channel scan (2483MHz, upper end of the 2.4GHz ISM band) */
+    private static final int MESH_SCAN_LAST_CHANNEL = 83;
+    /** Longest hop sequence, rendezvous channel included (fits a single frame) */
+    public static final int MESH_HOP_MAX_CHANNELS = 16;
+    /**
+     * Hop rounds without a hop beacon before a node falls back to the rendezvous channel. The
+     * schedule is deterministic, a node keeps following it while beacons are missed (busy in TX)
+     */
+    private static final int MESH_HOP_LOST_ROUNDS = 8;
+    /** The master sends the hop beacon 1/MESH_HOP_GUARD of the dwell time into each slot */
+    private static final int MESH_HOP_GUARD = 4;
+    /** Minimum distance between two hop channels picked from the scan (1MHz each) */
+    private static final int MESH_HOP_SPACING = 3;
+
     private rf24 radio;
     private rf24Network network;
 
@@ -100,11 +121,38 @@ public class rf24Mesh {
     int lastFileSave;
 
     byte radio_channel;
+
+    /** Sweeps taken by begin() on the master to pick the channel, 0: use the given channel */
+    private int channel_scan;
+    /** Result of the last channel scan, see scanChannels() */
+    private final int[] channel_histogram = new int[rf24.SCAN_CHANNELS];
+
+    /** Hop sequence, hop_channels[0] is the rendezvous channel (radio_channel) */
+    private final int[] hop_channels = new int[MESH_HOP_MAX_CHANNELS];
+    /** Channels in the hop sequence, 0: not hopping */
+    private int hop_count;
+    /** Time spent on each channel of the sequence in ms */
+    private int hop_dwell;
+    /** Sequence number of the hop sequence, changed by the master on each startHopping() */
+    private int hop_epoch;
+    /** millis() at the start of slot 0 of the current round */
+    private long hop_start;
+    /** Slot the radio is tuned to, -1: none yet */
+    private int hop_slot;
+    /** Slot the last hop beacon was sent in (master node) */
+    private int hop_beacon_slot;
+    /** millis() of the last hop beacon received (sensor nodes) */
+    private long hop_heard;
+    /** Hop beacon sent to the next level, built by hop_beacon() */
+    private final int[] hop_message = new int[7 + MESH_HOP_MAX_CHANNELS];
     short lastID,lastAddress;
 
     // Pointer used for dynamic memory allocation of address list
-    /**< See the rfNodesStruct class reference */
-    public ArrayList<rf24Node> rfNodes;
+    /**< See the rfNodesStruct class reference. Only the thread running DHCP() touches it, other
+     * threads read the copy published by publish_nodes(), see getNodes() */
+    private ArrayList<rf24Node> rfNodes;
+    /** Copy of the assigned entries of rfNodes, replaced (never changed) on every change */
+    private volatile List<rf24Node> nodes_snapshot = Collections.emptyList();
     /**< The number of entries in the assigned address list */
     int nodeTop;
 
@@ -146,7 +194,8 @@ public class rf24Mesh {
      * Call this in setup() to configure the mesh and request an address.  <br>
      *
      * {@code mesh.begin(); }
-     * This may take a few moments to complete.
+     * This may take a few moments to complete. A radio that is still running (e.g. the service
+     * was restarted) is taken over with rf24.warmBegin(), without the power-on delays.
      *
      * The following parameters are optional:
      * @param channel The radio channel (1-127)
@@ -157,7 +206,11 @@ public class rf24Mesh {
      */
     public boolean begin(byte channel, rf24.rf24_datarate_e data_rate, int timeout) throws IOException {
         //delay(1); // Found problems w/SPIDEV & ncurses. Without this, getch() returns a stream of garbage
-        radio.begin();
+        radio.warmBegin();
+        if (getNodeID() == 0 && channel_scan > 0) {
+            channel = (byte) scanChannels(channel_scan);
+            if (debug) Log.i(TAG, "MSH: Channel scan picked channel " + channel);
+        }
         radio_channel = channel;
         radio.setChannel(radio_channel);
         radio.setDataRate(data_rate);
@@ -176,6 +229,7 @@ public class rf24Mesh {
 
             nodeTop = 0;
             loadDHCP();
+            publish_nodes();
             mesh_address = 0;
             network.begin(mesh_address);
 
@@ -209,6 +263,15 @@ public class rf24Mesh {
         int[] tmpAddress = new int[2];
 
         int type = network.update();
+        if (network.multicast_type == MESH_HOP_SEQUENCE) {
+            network.multicast_type = 0;
+            if (mesh_address != 0) {
+                hop_receive();
+            }
+        }
+        if (hop_count > 0) {
+            hop_update();
+        }
         if (mesh_address == MESH_DEFAULT_ADDRESS) {
             return type;
         }
@@ -250,21 +313,53 @@ public class rf24Mesh {
                         rfNodes.get(i).setAddress((short)0);
                     }
                 }
+                publish_nodes();
             }
         }
         return type;
     }
 
     /**
-     * Update the payloads of the node in rfNodes
+     * Copy of the address list of the master node, can be called from any thread. The list and
+     * its nodes belong to the caller, the mesh doesn't change them afterwards.
+     * {@code
+     * ArrayList<rf24Node> nodes = mesh.getNodes();
+     * mesh.updatePayloads(nodes);
+     * mAdapter = new MyAdapter(nodes);
+     * }
+     * @return the assigned nodes, empty on a sensor node or before begin()
+     */
+    public ArrayList<rf24Node> getNodes() {
+        List<rf24Node> snapshot = nodes_snapshot;
+        ArrayList<rf24Node> nodes = new ArrayList<>(snapshot.size());
+        for (rf24Node node : snapshot) {
+            nodes.add(new rf24Node(node));
+        }
+        return nodes;
+    }
+
+    /**
+     * Update the payloads of the nodes with the last ones in the database
+     * @param nodes nodes taken with getNodes()
      */
-    void updatePayloads(){
-        for (int i = 0; i < rfNodes.size(); i++) {
-            rf24NodePayload tmp = sqliteconn.getNodePayload(rfNodes.get(i).getNodeID());
-            rfNodes.get(i).payload.setPayload(tmp.getPayload(),tmp.getUpdate());
+    void updatePayloads(List<rf24Node> nodes){
+        for (rf24Node node : nodes) {
+            rf24NodePayload tmp = sqliteconn.getNodePayload(node.getNodeID());
+            node.payload.setPayload(tmp.getPayload(),tmp.getUpdate());
         }
     }
 
+    /**
+     * Publish a copy of the assigned entries of rfNodes for getNodes() (thread running DHCP())
+     */
+    private void publish_nodes() {
+        ArrayList<rf24Node> snapshot = new ArrayList<>(nodeTop);
+        for (int i = 0; i < nodeTop; i++) {
+            snapshot.add(new rf24Node(rfNodes.get(i)));
+        }
+        nodes_snapshot = Collections.unmodifiableList(snapshot);
+    }
+
     /**
      * Automatically construct a header and send a payload
      * Very similar to the standard network.write() function, which can be used directly.
@@ -419,7 +514,7 @@ public class rf24Mesh {
                     if (millis() - timer > network.routeTimeout) {
                         return;
                     }
-
+                    delayMicroseconds(MESH_UPDATE_IDLE);
                 }
                 setAddress(from_id, newAddress);
 
@@ -481,6 +576,7 @@ public class rf24Mesh {
                     if (millis() - timer > timeout) {
                         return -1;
                     }
+                    delayMicroseconds(MESH_UPDATE_IDLE);
                 }
                 short ID;
                 System.arraycopy(network.frame_buffer, rf24NetworkHeader.sizeOf(), TmpAddress, 0,  2); //memcpy( & ID,&network.frame_buffer[sizeof(rf24NetworkHeader)], sizeof(ID));
@@ -542,6 +638,9 @@ public class rf24Mesh {
         }
         byte reqCounter = 0;
         byte totalReqs = 0;
+        if (hop_count > 0) {
+            hop_stop();         // the master answers address requests on the rendezvous channel
+        }
         radio.stopListening();
 
         network.networkFlags |= 2;
@@ -629,6 +728,7 @@ public class rf24Mesh {
                 if (millis() - timer > timeout) {
                     return -1;
                 }
+                delayMicroseconds(MESH_UPDATE_IDLE);
             }
         } else {
             return -1;
@@ -646,13 +746,282 @@ public class rf24Mesh {
      * @throws IOException when write / read on spi doesn't work
      */
 
-    private void setChannel(byte _channel) throws IOException {
+    public void setChannel(byte _channel) throws IOException {
 
         radio_channel = _channel;
         radio.setChannel(radio_channel);
         radio.startListening();
     }
 
+    /**
+     * Let begin() scan the channels on the master node and start on the quietest one instead of
+     * the given channel. The sensor nodes have to find the master on that channel.
+     * @param samples sweeps over all channels (about 25ms each), 0 to disable
+     */
+    public void setChannelScan(int samples) {
+        channel_scan = samples;
+    }
+
+    /**
+     * Scan all channels for carriers (Wi-Fi, other networks), see rf24.scanChannels()
+     * @param samples sweeps over all channels (about 25ms each)
+     * @return quietest channel between 1 and MESH_SCAN_LAST_CHANNEL
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public int scanChannels(int samples) throws IOException {
+        radio.scanChannels(samples, channel_histogram);
+        return rf24.recommendChannel(channel_histogram, 1, MESH_SCAN_LAST_CHANNEL);
+    }
+
+    /**
+     * @return carrier samples per channel of the last scan
+     */
+    public int[] getChannelHistogram() {
+        return channel_histogram;
+    }
+
+    /**
+     * Scan the channels and move the mesh to the quietest one if the current channel is busier
+     * by more than 10% of the maximum score, on demand (e.g. when the retries go up). Only the
+     * master should call this.
+     * @param samples sweeps over all channels (about 25ms each)
+     * @return the channel in use afterwards
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public int selectChannel(int samples) throws IOException {
+        int best = scanChannels(samples);
+        int current = radio.getChannel();
+        if (rf24.channelScore(channel_histogram, current) > rf24.channelScore(channel_histogram, best) + samples) {
+            if (debug) Log.i(TAG, "MSH: Moving from channel " + current + " to " + best);
+            setChannel((byte) best);
+            return best;
+        }
+        return current;
+    }
+
+    /**
+     * Start the synchronized channel hopping on the master node.
+     *
+     * The sequence is prefixed with the rendezvous channel (the channel of begin() or setChannel())
+     * and every channel is used for dwell ms. The master sends a hop beacon (sequence, epoch and
+     * position in the round) as multicast in every slot, the sensor nodes follow it
+     * and forward it to the next level. A node which hasn't heard a beacon for
+     * MESH_HOP_LOST_ROUNDS rounds goes back to the rendezvous channel and resynchronizes on the
+     * beacon of slot 0, so a jammed channel costs its slot only and not the whole mesh.
+     *
+     * {@code
+     * mesh.scanChannels(4);
+     * mesh.startHopping(mesh.hopChannels(5), 250);
+     * }
+     * Address requests of new nodes are answered in slot 0 only. Multicast frames are not
+     * acknowledged, a short dwell (below 100ms) makes the mesh lose a larger share of the time
+     * to the slot boundaries.
+     * @param channels channels to hop on after the rendezvous channel, up to MESH_HOP_MAX_CHANNELS - 1
+     * @param dwell time on each channel in ms
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public void startHopping(int[] channels, int dwell) throws IOException {
+        if (mesh_address != 0) {
+            throw new IllegalStateException("rf24Mesh: only the master node starts the channel hopping");
+        }
+        if (channels.length == 0 || channels.length >= MESH_HOP_MAX_CHANNELS || dwell <= 0 || dwell > 0xFFFF) {
+            throw new IllegalArgumentException("rf24Mesh: " + channels.length + " hop channels, dwell " + dwell);
+        }
+        hop_channels[0] = 0xFF & radio_channel;
+        System.arraycopy(channels, 0, hop_channels, 1, channels.length);
+        hop_count = channels.length + 1;
+        hop_dwell = dwell;
+        hop_epoch = (hop_epoch + 1) & 0xFF;
+        hop_start = millis();
+        hop_slot = -1;
+        hop_beacon_slot = -1;
+        if (debug) Log.i(TAG, "MSH: Hopping epoch " + hop_epoch + " over " + hop_count + " channels, " + dwell + "ms");
+        hop_update();
+    }
+
+    /**
+     * Stop the channel hopping and go back to the rendezvous channel. On the master node the
+     * sensor nodes are told to do the same.
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public void stopHopping() throws IOException {
+        if (hop_count == 0) {
+            return;
+        }
+        if (mesh_address == 0) {
+            hop_epoch = (hop_epoch + 1) & 0xFF;
+            hop_count = 0;
+            hop_beacon((byte) 1, 0, 0);
+        }
+        hop_stop();
+    }
+
+    /**
+     * @return true while the mesh is hopping
+     */
+    public boolean isHopping() {
+        return hop_count > 0;
+    }
+
+    /**
+     * @return sequence number of the hop sequence in use
+     */
+    public int getHopEpoch() {
+        return hop_epoch;
+    }
+
+    /**
+     * Pick hop channels from the last scan (scanChannels()): the quietest channels between 1 and
+     * MESH_SCAN_LAST_CHANNEL, at least MESH_HOP_SPACING apart from each other and from the
+     * rendezvous channel.
+     * @param count channels wanted (1..MESH_HOP_MAX_CHANNELS - 1)
+     * @return the channels, fewer if the band doesn't have room for count channels
+     */
+    public int[] hopChannels(int count) {
+        int[] channels = new int[Math.min(count, MESH_HOP_MAX_CHANNELS - 1)];
+        int found = 0;
+        while (found < channels.length) {
+            int best = -1, bestScore = Integer.MAX_VALUE;
+            for (int ch = 1; ch <= MESH_SCAN_LAST_CHANNEL; ch++) {
+                boolean free = Math.abs(ch - (0xFF & radio_channel)) >= MESH_HOP_SPACING;
+                for (int idx = 0; idx < found && free; idx++) {
+                    free = Math.abs(ch - channels[idx]) >= MESH_HOP_SPACING;
+                }
+                int score = rf24.channelScore(channel_histogram, ch);
+                if (free && score < bestScore) {
+                    best = ch;
+                    bestScore = score;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            channels[found++] = best;
+        }
+        return found == channels.length ? channels : Arrays.copyOf(channels, found);
+    }
+
+    /**
+     * Follow the hop schedule: retune at slot changes, the master sends the hop beacon, a sensor
+     * node which lost the beacons falls back to the rendezvous channel.
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void hop_update() throws IOException {
+        long now = millis();
+        if (mesh_address != 0 && now - hop_heard > (long) MESH_HOP_LOST_ROUNDS * hop_count * hop_dwell) {
+            if (debug) Log.i(TAG, "MSH: Hop beacon lost, back to channel " + radio_channel);
+            hop_stop();
+            return;
+        }
+        long elapsed = now - hop_start;
+        int slot = (int) ((elapsed / hop_dwell) % hop_count);
+        if (slot != hop_slot) {
+            hop_slot = slot;
+            radio.setChannel(hop_channels[slot]);
+        }
+        // the beacon goes out a guard time into the slot, when lagging nodes have retuned too
+        int position = (int) (elapsed % hop_dwell);
+        if (mesh_address == 0 && slot != hop_beacon_slot && position >= hop_dwell / MESH_HOP_GUARD) {
+            hop_beacon_slot = slot;
+            hop_beacon((byte) 1, slot, position);
+        }
+    }
+
+    /**
+     * Take over the hop sequence of the hop beacon latched by the network (multicast_frame) and
+     * forward it to the next level
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void hop_receive() throws IOException {
+        int[] frame = network.multicast_frame;
+        int offset = rf24NetworkHeader.sizeOf();
+        int epoch = 0xFF & frame[offset];
+        int count = 0xFF & frame[offset + 1];
+        if (count == 0) {
+            if (hop_count > 0 && epoch == ((hop_epoch + 1) & 0xFF)) {
+                if (debug) Log.i(TAG, "MSH: Hopping stopped by the master");
+                hop_epoch = epoch;
+                hop_stop();
+                forward_beacon();
+            }
+            return;
+        }
+        if (count > MESH_HOP_MAX_CHANNELS) {
+            return;
+        }
+        int dwell = (0xFF & frame[offset + 2]) | ((0xFF & frame[offset + 3]) << 8);
+        int slot = 0xFF & frame[offset + 4];
+        int position = (0xFF & frame[offset + 5]) | ((0xFF & frame[offset + 6]) << 8);
+        if (dwell == 0 || slot >= count) {
+            return;
+        }
+        for (int idx = 0; idx < count; idx++) {
+            hop_channels[idx] = 0xFF & frame[offset + 7 + idx];
+        }
+        if (debug && (hop_count == 0 || epoch != hop_epoch)) Log.i(TAG, "MSH: Hopping epoch " + epoch + " over " + count + " channels, " + dwell + "ms");
+        hop_epoch = epoch;
+        hop_count = count;
+        hop_dwell = dwell;
+        hop_heard = network.multicast_time;
+        hop_start = hop_heard - ((long) slot * dwell + position);
+        hop_slot = -1;
+        hop_update();
+        forward_beacon();
+    }
+
+    /**
+     * Forward the hop beacon to the children of this node (next multicast level), with the
+     * position in the round of this node
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void forward_beacon() throws IOException {
+        byte level = 0;
+        for (int address = mesh_address; address != 0; address >>= 3) {
+            level++;
+        }
+        if (level >= 4) {
+            return;
+        }
+        int slot = 0, position = 0;
+        if (hop_count > 0) {
+            long elapsed = millis() - hop_start;
+            slot = (int) ((elapsed / hop_dwell) % hop_count);
+            position = (int) (elapsed % hop_dwell);
+        }
+        hop_beacon((byte) (level + 1), slot, position);
+    }
+
+    /**
+     * Send the hop beacon as multicast
+     * @param level multicast level to send to
+     * @param slot current slot
+     * @param position ms since the start of the slot
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void hop_beacon(byte level, int slot, int position) throws IOException {
+        hop_message[0] = hop_epoch;
+        hop_message[1] = hop_count;
+        hop_message[2] = 0xFF & hop_dwell;
+        hop_message[3] = 0xFF & (hop_dwell >> 8);
+        hop_message[4] = slot;
+        hop_message[5] = 0xFF & position;
+        hop_message[6] = 0xFF & (position >> 8);
+        System.arraycopy(hop_channels, 0, hop_message, 7, hop_count);
+
+        rf24NetworkHeader header = new rf24NetworkHeader((short) 0100, (byte) MESH_HOP_SEQUENCE);
+        network.multicast(header, hop_message, (short) (7 + hop_count), level);
+    }
+
+    /**
+     * Leave the hop sequence and listen on the rendezvous channel
+     * @throws IOException when write / read on spi doesn't work
+     */
+    private void hop_stop() throws IOException {
+        hop_count = 0;
+        hop_slot = -1;
+        radio.setChannel(radio_channel);
+    }
+
     /**
      * Allow child nodes to discover and attach to this node.
      * @param allow True to allow children, False to prevent children from attaching automatically.
@@ -700,6 +1069,7 @@ public class rf24Mesh {
             rf24Node tmp = new rf24Node();
             rfNodes.add(tmp);
         }
+        publish_nodes();
 
         //if(millis()-lastFileSave > 300){
         //	lastFileSave = millis();
@@ -755,6 +1125,8 @@ public class rf24Mesh {
                         Log.i(TAG, "MSH: Poll < -64dbm");
                     }
                 }
+            } else {
+                delayMicroseconds(MESH_UPDATE_IDLE);
             }
 
             if (millis() - timr > 55 || pollCount >= MESH_MAXPOLLS) {
@@ -790,6 +1162,7 @@ public class rf24Mesh {
                     i = pollCount;
                     break;
                 }
+                delayMicroseconds(MESH_UPDATE_IDLE);
             }
             delay(5);
         }
@@ -856,28 +1229,20 @@ public class rf24Mesh {
      * @param milliseconds Delay in milliseconds
      */
     private void delay(int milliseconds) {
-        long start = millis();
-        long end = 0;
-        do {
-            end = millis();
-        } while (start + milliseconds >= end);
+        rf24Timer.delay(milliseconds);
     }
     /**
      * Delay in microseconds
      * @param microseconds Delay in microseconds
      */
     public void delayMicroseconds(long microseconds) {
-        long start = System.nanoTime();
-        long end = 0;
-        do {
-            end = System.nanoTime();
-        } while (start + microseconds >= end);
+        rf24Timer.delayMicroseconds(microseconds);
     }
 
-    /*** Return Milliseconds since Epoch0,
+    /*** Return monotonic milliseconds
      * @return long
      */
     private long millis() {
-        return System.currentTimeMillis();
+        return rf24Timer.millis();
     }
 }
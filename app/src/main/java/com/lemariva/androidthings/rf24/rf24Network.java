@@ -41,12 +41,12 @@ package com.lemariva.androidthings.rf24;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
 class rf24Network {
 
@@ -178,11 +178,19 @@ class rf24Network {
     private static final int USER_TX_TO_LOGICAL_ADDRESS = 3;   // network ACK
     private static final int USER_TX_MULTICAST = 4;
 
+    /** Set in header.reserved of multicast frames carrying a sequence number (low 7 bits) */
+    private static final int MULTICAST_SEQUENCED = 0x80;
+
     private static final int MAX_FRAME_SIZE = 32;   //Size of individual radio frames
     public static final int FRAME_HEADER_SIZE = 10; //Size of RF24Network frames - data
 
     private static final int USE_CURRENT_CHANNEL = 255; // Use current radio channel when setting up the network
 
+    /** Translation of the octal node digits into address bytes */
+    private static final short[] address_translation = { 0xc3,0x3c,0x33,0xce,0x3e,0xe3,0xec };
+
+    private static final int UPDATE_IDLE = 250;     // Idle time (us) between update() calls while waiting for a frame
+
     /** Internal defines for handling internal payloads - prevents reading additional data from the radio
      * when buffers are full */
     public static final int FLAG_HOLD_INCOMING = 1;
@@ -257,6 +265,25 @@ class rf24Network {
     /** The raw system frame buffer of received data. */
     public int[] frame_buffer = new int[MAX_FRAME_SIZE];
 
+    /** Last system message received as multicast (header and payload), see update() */
+    int[] multicast_frame = new int[MAX_FRAME_SIZE];
+    /** Type of multicast_frame, 0 once the receiver has taken it */
+    int multicast_type;
+    /** millis() when multicast_frame was received */
+    long multicast_time;
+
+    /** Writing pipe address buffer reused by write_to_pipe() */
+    private final int[] out_pipe_address = new int[5];
+
+    /** Number of slots of the receive ring (RX FIFO depth) */
+    private static final int RX_RING_SLOTS = 3;
+    /** Receive ring filled by radio.readBurst(), frames not handled yet survive an early return of update() */
+    private final byte[] rx_ring = new byte[RX_RING_SLOTS * MAX_FRAME_SIZE];
+    private final int[] rx_ring_pipes = new int[RX_RING_SLOTS];
+    private final int[] rx_ring_lengths = new int[RX_RING_SLOTS];
+    private int rx_ring_head;
+    private int rx_ring_count;
+
     /**
      * Note: This value is automatically assigned based on the node address
      * to reduce errors and increase throughput of the network.
@@ -281,6 +308,56 @@ class rf24Network {
 
     private long txTime;
 
+    /** Frames of asynchronous writes, the head is handed to the radio by update(), see writeAsync() */
+    private final ArrayDeque<AsyncFrame> tx_frames = new ArrayDeque<>();
+    /** Asynchronous writes waiting for their NETWORK_ACK, see writeAsync() */
+    private final ArrayList<AsyncMessage> pending_acks = new ArrayList<>();
+
+    /** Sequence number of the last multicast frame sent (0..127) */
+    private int multicast_seq;
+    /** Senders of multicast frames, value: index into multicast_last */
+    private final rf24AddressMap multicast_senders = new rf24AddressMap(8);
+    /** Last multicast sequence number received per sender */
+    private int[] multicast_last = new int[8];
+    /** Multicast frames lost per sender */
+    private int[] multicast_sender_gaps = new int[8];
+    private long multicast_received;
+    private long multicast_gaps;
+    private long multicast_duplicates;
+
+    /** Maximum frames waiting per child pipe, see writeAckPayload() */
+    private static final int ACK_PAYLOAD_QUEUE = 4;
+    /** Frames waiting per child pipe (1..5) for the next frame of the child, null: disabled */
+    private ArrayList<ArrayDeque<AckPayload>> ack_queues;
+
+    /** Duty cycle, see setDutyCycle(): period and window in us, 0: always on */
+    private long duty_period;
+    private long duty_window;
+    /** rf24Timer.micros() of the start of a window */
+    private long duty_start;
+    /** Radio powered down (or waking up) by the duty cycle */
+    private boolean duty_sleeping;
+    /** rf24Timer.micros() until the radio stays on after a transmission, for the replies */
+    private long duty_busy_until;
+
+    /** Reading pipes opened by begin(), bit n for pipe n (pipe 0 always) */
+    private int pipe_mask = 0x3F;
+    /** Pipes with the head of their queue loaded in the TX FIFO */
+    private final boolean[] ack_loaded = new boolean[6];
+    /** Number of ACK payloads loaded, the TX FIFO holds 3 */
+    private int ack_count;
+    /** radio.getTxFlushes() when the loaded ACK payloads were written */
+    private int ack_flushes;
+    /** First pipe looked at by the next load_ack_payloads(), so every child gets a turn */
+    private int ack_next = 1;
+    /** Number of radio.readBurst() calls of update() */
+    private int rx_burst;
+    /**
+     * Per pipe the last burst whose frames can't confirm the loaded ACK payload: they were read or
+     * in the RX FIFO already when it was loaded and may have been acknowledged without it
+     */
+    private final int[] ack_unconfirmed = new int[6];
+
     /**
      * Variable to determine whether update() will return after the radio buffers have been emptied (DEFAULT), or
      * whether to return immediately when (most) system types are received.
@@ -325,8 +402,11 @@ class rf24Network {
 
     private boolean multicastRelay;
 
+    /** Default capacity of the frame queues in frames */
+    private static final int FRAME_QUEUE_SIZE = 32;
+
     /**< Space for a small set of frames that need to be delivered to the app layer */
-    private Queue <rf24NetworkFrame> frame_queue;
+    private final rf24FrameRing frame_queue = new rf24FrameRing(FRAME_QUEUE_SIZE);
 
     /**
      * Data with a header type of EXTERNAL_DATA_TYPE will be loaded into a separate queue.
@@ -339,14 +419,18 @@ class rf24Network {
      *   int[] msg = int[dataSize];
      *   //read the frame message buffer
      *   System.arraycopy(f.message_buffer,0, msg, dataSize);
-     *   network.external_queue.remove();
+     *   network.external_queue.release(network.external_queue.remove());
      * }
      * }
      */
-    public Queue <rf24NetworkFrame> external_queue;
+    public final rf24FrameRing external_queue = new rf24FrameRing(FRAME_QUEUE_SIZE);
+
 
+    /** Number of fragmented messages reassembled at the same time */
+    private static final int REASSEMBLY_SLOTS = 8;
 
-    private Map<Integer, rf24NetworkFrame> frameFragmentsCache;
+    /** Fragmented messages being received */
+    private final rf24Reassembler reassembler = new rf24Reassembler(REASSEMBLY_SLOTS, MAX_PAYLOAD_SIZE, MAX_FRAME_SIZE - rf24NetworkHeader.sizeOf());
 
     rf24NetworkFrame frag_queue;
 
@@ -414,10 +498,14 @@ class rf24Network {
         if (_channel != USE_CURRENT_CHANNEL) {
             radio.setChannel(_channel);
         }
-        //radio.enableDynamicAck();
+        radio.enableDynamicAck();       // multicast frames are sent NOACK
         radio.setAutoAck(0, false);
 
         radio.enableDynamicPayloads();
+        if (ack_queues != null) {
+            radio.enableAckPayload();       // radio.begin() clears it
+            drop_ack_payloads();            // the children of an old address won't ask for them
+        }
 
         // Use different retry periods to reduce data collisions
         int retryVar = (((node_address % 6) + 1) * 2) + 3;
@@ -434,17 +522,26 @@ class rf24Network {
         // Setup our address helper cache
         setup_address();
 
-        // Open up all listening pipes
+        // Open up the listening pipes of the pipe mask. Pipes 2-5 share the upper
+        // address bytes of pipe 1, so its address is set even if it is closed.
+        int[][] addresses = new int[6][];
         int i = 6;
         while (i-- > 0) {
-            radio.openReadingPipe(i, pipe_address(_node_address, (byte)i));
+            if ((pipe_mask & (1 << i)) != 0 || i == 1)
+                addresses[i] = pipe_address(_node_address, (byte)i);
+        }
+        radio.openReadingPipes(addresses);
+        for (i = 1; i < 6; i++) {
+            if ((pipe_mask & (1 << i)) == 0)
+                radio.closeReadingPipe(i);
         }
         radio.startListening();
+        duty_sleeping = false;
 
-        // initializing message queue
-        frame_queue = new LinkedList<rf24NetworkFrame>();
-        external_queue = new LinkedList<rf24NetworkFrame>();
-        frameFragmentsCache = new HashMap<Integer, rf24NetworkFrame>();
+        // empty the message queues, frames for the old address are stale
+        frame_queue.clear();
+        external_queue.clear();
+        reassembler.clear();
 
         return true;
     }
@@ -495,21 +592,50 @@ class rf24Network {
         byte pipe_num = 0;
         short returnVal = 0;
 
+        // recover a failed radio (brown-out, SPI errors, timeouts), see rf24.supervise()
+        if (!radio.supervise())
+            return 0;
+
+        radio.pollTx();
+        if (dualradio)
+            radio1.pollTx();
+        if (!tx_frames.isEmpty())
+            send_frames();
+        if (!pending_acks.isEmpty())
+            expire_acks();
+
+        if (duty_period != 0 && !duty_cycle())
+            return 0;
+
         // If bypass is enabled, continue although incoming user data may be dropped
         // Allows system payloads to be read while user cache is full
         // Incoming Hold prevents data from being read from the radio, preventing incoming payloads from being acked
 
-        while ( radio.isValid() && radio.available()) {
-            pipe_num = (byte) radio.available(pipe_num);
+        while ( radio.isValid() ) {
+            // Dump the payloads until we've gotten everything
+            if (rx_ring_count == 0) {
+                rx_ring_head = 0;
+                rx_ring_count = radio.readBurst(rx_ring, rx_ring_pipes, rx_ring_lengths, 0, RX_RING_SLOTS);
+                rx_burst++;
+                if (rx_ring_count == 0) {
+                    if (ack_queues != null)
+                        load_ack_payloads();
+                    break;
+                }
+            }
+            int slot = rx_ring_head;
+            rx_ring_head = (rx_ring_head + 1) % RX_RING_SLOTS;
+            rx_ring_count--;
 
-            if ((frame_size = radio.getDynamicPayloadSize()) < rf24NetworkHeader.sizeOf()) {
-                delay(10);
+            pipe_num = (byte) rx_ring_pipes[slot];
+            if (ack_loaded[pipe_num] && rx_burst - ack_unconfirmed[pipe_num] > 0) {
+                ack_sent(pipe_num);     // the loaded ACK payload went out with the ACK of this frame
+            }
+            if ((frame_size = rx_ring_lengths[slot]) < rf24NetworkHeader.sizeOf()) {
                 continue;
             }
-
-            // Dump the payloads until we've gotten everything
-            // Fetch the payload, and see if this was the last one.
-            radio.read(frame_buffer, frame_size);
+            for (int idx = 0; idx < frame_size; idx++)
+                frame_buffer[idx] = rx_ring[slot * MAX_FRAME_SIZE + idx];
 
             // Read the beginning of the frame as the header
             // TODO: reading payload from buffer implies casting header!
@@ -560,6 +686,10 @@ class rf24Network {
                     continue;
                 }
 
+                if (header.type == NETWORK_ACK && complete_ack(header.id)) {
+                    continue;
+                }
+
                 if ((returnSysMsgs && header.type > 127) || header.type == NETWORK_ACK) {
                     if (debug) Log.i(TAG, "MAC: System payload rcvd " + returnVal);
                     if (header.type != NETWORK_FIRST_FRAGMENT && header.type != NETWORK_MORE_FRAGMENTS && header.type != NETWORK_MORE_FRAGMENTS_NACK && header.type != EXTERNAL_DATA_TYPE && header.type != NETWORK_LAST_FRAGMENT) {
@@ -586,12 +716,28 @@ class rf24Network {
                         }
                         continue;
                     }
-                    int val = enqueue(header);
+                    if (header.type != NETWORK_FIRST_FRAGMENT && header.type != NETWORK_MORE_FRAGMENTS && header.type != NETWORK_MORE_FRAGMENTS_NACK && header.type != NETWORK_LAST_FRAGMENT && !multicast_sequence(header)) {
+                        continue;               // already received (and relayed)
+                    }
+                    // System messages (e.g. the mesh hop beacon) are returned like unicast ones and
+                    // latched, update() calls nested in write() would swallow the returned type
+                    boolean sysMsg = returnSysMsgs && header.type > 127 && header.type != NETWORK_ACK && header.type != NETWORK_FIRST_FRAGMENT && header.type != NETWORK_MORE_FRAGMENTS && header.type != NETWORK_MORE_FRAGMENTS_NACK && header.type != EXTERNAL_DATA_TYPE && header.type != NETWORK_LAST_FRAGMENT;
+                    int val = 0;
+                    if (sysMsg) {
+                        System.arraycopy(frame_buffer, 0, multicast_frame, 0, MAX_FRAME_SIZE);
+                        multicast_type = header.type;
+                        multicast_time = millis();
+                    } else {
+                        val = enqueue(header);
+                    }
 
                     if (multicastRelay) {
                         if (debug) Log.i(TAG, "MAC: FWD multicast frame from " + Integer.toOctalString(header.from_node) + "to level " + (multicast_level + 1));
                         write((short)(levelToAddress(multicast_level) << 3), (byte) 4);
                     }
+                    if (sysMsg) {
+                        return returnVal;
+                    }
                     if (val == 2) { //External data received
                         //Serial.println("ret ext multicast");
                         return EXTERNAL_DATA_TYPE;
@@ -617,6 +763,86 @@ class rf24Network {
         return (!frame_queue.isEmpty());
     }
 
+    /**
+     * Take the next message out of the queue, header and message buffer included
+     *
+     * Unlike read() no payload object is needed, the frame can be handed to another thread.
+     * @see rf24RadioThread
+     * @return the frame, null if there is no message available
+     */
+    rf24NetworkFrame readFrame() {
+        return frame_queue.poll();
+    }
+
+    /**
+     * Give a frame taken with readFrame() back to the frame queue for reuse
+     * @param frame frame not used anymore, frames of other networks are ignored
+     */
+    void recycle(rf24NetworkFrame frame) {
+        frame_queue.release(frame);
+    }
+
+    /**
+     * @param frame a frame taken with readFrame()
+     * @return true if the frame was received by this network
+     */
+    boolean owns(rf24NetworkFrame frame) {
+        return frame_queue.owns(frame);
+    }
+
+    /**
+     * Queue of the received messages, for the overflow policy and the counters
+     *
+     * {@code
+     * network.getFrameQueue().setPolicy(rf24FrameRing.DROP_OLDEST);
+     * ...
+     * Log.i(TAG, network.getFrameQueue().getDropped() + " messages dropped");
+     * }
+     * @return the queue read by available(), peek(), read() and readFrame()
+     */
+    public rf24FrameRing getFrameQueue() {
+        return frame_queue;
+    }
+
+    /**
+     * Time a fragmented message may wait for its next fragment before it is dropped
+     * @param ms timeout in ms, 500 by default
+     */
+    public void setReassemblyTimeout(int ms) {
+        reassembler.setTimeout(ms);
+    }
+
+    /**
+     * @return number of fragmented messages received completely
+     */
+    public long getReassembled() {
+        return reassembler.getCompleted();
+    }
+
+    /**
+     * @return number of fragmented messages dropped because a fragment didn't come in time
+     */
+    public long getReassemblyTimeouts() {
+        return reassembler.getTimeouts();
+    }
+
+    /**
+     * @return number of fragmented messages dropped because more messages were in flight than
+     * the reassembly buffers (8) hold
+     */
+    public long getReassemblyEvictions() {
+        return reassembler.getEvictions();
+    }
+
+    /**
+     * Change the capacity of the message queue and of external_queue, queued messages are dropped
+     * @param frames number of frames held by each queue, 32 by default
+     */
+    public void setQueueCapacity(int frames) {
+        frame_queue.setCapacity(frames);
+        external_queue.setCapacity(frames);
+    }
+
     /**
      *
      * Read the next available header
@@ -678,7 +904,7 @@ class rf24Network {
 
             if (debug) Log.i(TAG, "FRG message size " + (frame.message_size));
 
-            frame_queue.remove();
+            frame_queue.release(frame_queue.remove());
         }
 
         return bufsize;
@@ -707,6 +933,566 @@ class rf24Network {
         return write(header, message, len, (short) 070);
     }
 
+    /**
+     * Asynchronous write: send a message without waiting for the radio or the NETWORK_ACK
+     *
+     * The message is queued and the method returns right away. update() hands its frames to the
+     * radio one at a time (rf24.writeAsync()) and completes the future: with the result of the
+     * first hop for messages that aren't network acknowledged (types 1..64, direct children),
+     * otherwise when the NETWORK_ACK arrives, or with TIMEOUT routeTimeout after the first hop.
+     * The caller keeps calling update() and receiving in the meantime.
+     *
+     * Fragmented messages (len > max frame payload) are queued as fragments, a fragment failing
+     * on the first hop is tried again up to three times like with write(). Routed fragments are
+     * network acknowledged one by one, the future waits for the NETWORK_ACK of the last one.
+     *
+     * {@code
+     * rf24NetworkHeader header = new rf24NetworkHeader(011, (short) 'C');
+     * network.writeAsync(header, command, (short) command.length).thenAccept(result ->
+     *     Log.i(TAG, "Command to 011: " + result));
+     * while (running) {
+     *     network.update();
+     *     ...
+     * }
+     * }
+     * @param header The header (envelope) of this message, from_node is filled in
+     * @param message Pointer to memory where the message is located
+     * @param len The size of the message
+     * @return completed with ACKED, MAX_RETRIES (first hop failed) or TIMEOUT (no NETWORK_ACK)
+     * and the retries of the first hop of the last frame
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public CompletableFuture<rf24TxResult> writeAsync(rf24NetworkHeader header, int[] message, short len) throws IOException {
+        AsyncMessage request = new AsyncMessage(header.id, rf24Timer.micros());
+        header.from_node = node_address;
+        if (len > MAX_PAYLOAD_SIZE || !is_valid_address(header.to_node)) {
+            if (debug) Log.i(TAG, "NET async write to " + Integer.toOctalString(header.to_node) + " of " + len + " bytes refused");
+            request.future.complete(new rf24TxResult(rf24TxResult.MAX_RETRIES, 0, 0));
+            return request.future;
+        }
+
+        logicalToPhysical conversion = new logicalToPhysical();
+        conversion.send_node = header.to_node;
+        conversion.send_pipe = TX_NORMAL;
+        conversion.multicast = false;
+        logicalToPhysicalAddress(conversion);
+        boolean routed = conversion.send_node != header.to_node;
+
+        if (len <= max_frame_payload_size) {
+            queue_frame(request, header, message, 0, len, conversion, routed);
+        } else {
+            short type = header.type;
+            int fragments = (len + max_frame_payload_size - 1) / max_frame_payload_size;
+            request.fragmented = true;
+            for (int idx = 0; idx < fragments; idx++) {
+                if (idx == fragments - 1) {
+                    header.type = NETWORK_LAST_FRAGMENT;
+                    header.reserved = type;     // the last fragment carries the header type
+                } else {
+                    header.type = (short) (idx == 0 ? NETWORK_FIRST_FRAGMENT : NETWORK_MORE_FRAGMENTS);
+                    header.reserved = (short) (fragments - idx);
+                }
+                int offset = idx * max_frame_payload_size;
+                queue_frame(request, header, message, offset, rf24_min(len - offset, max_frame_payload_size), conversion, routed);
+            }
+            header.type = type;
+            if (debug) Log.i(TAG, "FRG async message queued in " + fragments + " fragments");
+        }
+        if (request.acks > 0)
+            pending_acks.add(request);     // NETWORK_ACKs of early fragments can arrive before the last is sent
+        return request.future;
+    }
+
+    /**
+     * Build a frame of an asynchronous write and queue it
+     * @param request message the frame belongs to
+     * @param header header of the frame
+     * @param message message, the frame takes len bytes from offset
+     * @param offset position of the frame payload in message
+     * @param len length of the frame payload
+     * @param conversion first hop
+     * @param routed true if the first hop isn't the destination
+     */
+    private void queue_frame(AsyncMessage request, rf24NetworkHeader header, int[] message, int offset, int len,
+                             logicalToPhysical conversion, boolean routed) {
+        AsyncFrame frame = new AsyncFrame(request, rf24NetworkHeader.sizeOf() + len);
+        header.ChangeHeader(frame.data);
+        if (len > 0)
+            System.arraycopy(message, offset, frame.data, rf24NetworkHeader.sizeOf(), rf24_min(len, Math.max(0, message.length - offset)));
+        frame.send_node = conversion.send_node;
+        frame.send_pipe = conversion.send_pipe;
+        frame.multicast = conversion.multicast;
+
+        // same rule as write(): routed frames of types 65..191 are network acknowledged
+        if (routed && frame.data[6] > 64 && frame.data[6] < 192)
+            request.acks++;
+        request.frames++;
+        tx_frames.addLast(frame);
+    }
+
+    /**
+     * Move the asynchronous writes along (update()): take the result of the frame on air and hand
+     * the next frame to the radio. One frame is on air at a time, so every frame gets its own
+     * writing pipe and the radio's retry count belongs to it.
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void send_frames() throws IOException {
+        rf24 tx = dualradio ? radio1 : radio;
+        while (!tx_frames.isEmpty()) {
+            AsyncFrame frame = tx_frames.peekFirst();
+            if (frame.sent == null) {
+                // gaps of write(): 25ms after a failed write, 2ms before a fragment is tried again
+                if (tx.getPendingWrites() > 0 || millis() - txTime < 25 || rf24Timer.micros() - frame.retry_at < 0)
+                    return;
+                if (!dualradio) {
+                    if (duty_period != 0)
+                        duty_transmit();
+                    radio.setAutoAck(0, !frame.multicast);
+                }
+                tx.openWritingPipe(pipe_address(frame.send_node, frame.send_pipe, out_pipe_address));
+                frame.sent = tx.writeAsync(frame.data, frame.data.length, frame.multicast);
+                tx.pollTx();    // a fast first hop is done already, the radio listens again
+            }
+            if (!frame.sent.isDone())
+                return;
+
+            rf24TxResult result = frame.sent.getNow(null);
+            frame.sent = null;
+            if (!dualradio)
+                radio.setAutoAck(0, false);
+            if (!result.isAcked() && frame.request.fragmented && ++frame.attempts < 3) {
+                frame.retry_at = rf24Timer.micros() + 2000;
+                continue;
+            }
+            tx_frames.pollFirst();
+            frame_sent(frame.request, result);
+        }
+        if (!dualradio && ack_queues != null)
+            load_ack_payloads();    // the radio listens again, writeAsync() flushed the TX FIFO
+    }
+
+    /**
+     * A frame of an asynchronous write is through the first hop, or failed on it
+     * @param request message of the frame
+     * @param result result of the first hop
+     */
+    private void frame_sent(AsyncMessage request, rf24TxResult result) {
+        long now = rf24Timer.micros();
+        if (!result.isAcked()) {
+            if (debug) Log.i(TAG, "MAC Async send fail of message " + request.id);
+            Iterator<AsyncFrame> frames = tx_frames.iterator();
+            while (frames.hasNext()) {
+                if (frames.next().request == request)
+                    frames.remove();
+            }
+            pending_acks.remove(request);
+            txTime = millis();
+            request.future.complete(new rf24TxResult(rf24TxResult.MAX_RETRIES, result.getRetries(), now - request.start));
+            return;
+        }
+        if (--request.frames > 0)
+            return;
+
+        request.retries = result.getRetries();
+        request.sent = now;
+        if (request.acks == 0) {
+            pending_acks.remove(request);
+            request.future.complete(new rf24TxResult(rf24TxResult.ACKED, request.retries, now - request.start));
+        }
+    }
+
+    /**
+     * @return number of asynchronous writes waiting for their NETWORK_ACK
+     */
+    public int getPendingAcks() {
+        return pending_acks.size();
+    }
+
+    /**
+     * Count a NETWORK_ACK of an asynchronous write, complete it with the last one
+     * @param id header id of the NETWORK_ACK
+     * @return true if an asynchronous write was waiting for it
+     */
+    private boolean complete_ack(short id) {
+        for (int idx = 0; idx < pending_acks.size(); idx++) {
+            AsyncMessage pending = pending_acks.get(idx);
+            if (pending.id == id) {
+                if (--pending.acks == 0 && pending.frames == 0) {
+                    pending_acks.remove(idx);
+                    pending.future.complete(new rf24TxResult(rf24TxResult.ACKED, pending.retries, rf24Timer.micros() - pending.start));
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Complete the asynchronous writes without NETWORK_ACK routeTimeout after the first hop with
+     * TIMEOUT
+     */
+    private void expire_acks() {
+        long now = rf24Timer.micros();
+        for (int idx = pending_acks.size() - 1; idx >= 0; idx--) {
+            AsyncMessage pending = pending_acks.get(idx);
+            if (pending.frames == 0 && now - pending.sent > routeTimeout * 1000L) {
+                pending_acks.remove(idx);
+                if (debug) Log.i(TAG, "MAC Network ACK timeout for message " + pending.id);
+                pending.future.complete(new rf24TxResult(rf24TxResult.TIMEOUT, pending.retries, now - pending.start));
+            }
+        }
+    }
+
+    /**
+     * Asynchronous write: its frames wait in tx_frames, then it waits for its NETWORK_ACKs
+     */
+    private static final class AsyncMessage {
+        final short id;
+        /** rf24Timer.micros() of writeAsync() */
+        final long start;
+        final CompletableFuture<rf24TxResult> future = new CompletableFuture<>();
+        /** Frames not through the first hop yet */
+        int frames;
+        /** NETWORK_ACKs still expected */
+        int acks;
+        boolean fragmented;
+        /** rf24Timer.micros() and retries of the first hop of the last frame */
+        long sent;
+        int retries;
+
+        AsyncMessage(short id, long start) {
+            this.id = id;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Frame of an asynchronous write with its first hop
+     */
+    private static final class AsyncFrame {
+        final AsyncMessage request;
+        /** Header and payload */
+        final int[] data;
+        short send_node;
+        byte send_pipe;
+        boolean multicast;
+        /** Result of the radio while the frame is on air */
+        CompletableFuture<rf24TxResult> sent;
+        int attempts;
+        /** rf24Timer.micros() before which a failed fragment isn't tried again */
+        long retry_at;
+
+        AsyncFrame(AsyncMessage request, int size) {
+            this.request = request;
+            this.data = new int[size];
+        }
+    }
+
+    /**
+     * Duty cycle the radio: it listens during a window at the start of every period and is
+     * powered down in between. Use it when the traffic comes in known windows, e.g. children
+     * reporting on a schedule. The crystal is started Tpd2stby (rf24.setPowerUpDelay()) before
+     * the window, so the radio listens from the first us of the window if update() is called
+     * on time, see getSleepTime(). Writes outside the windows wake the radio; it stays on for
+     * routeTimeout afterwards and while writeAsync() waits for NETWORK_ACKs.
+     * Time spent in each state: rf24.getStateTime().
+     *
+     * {@code
+     * // awake 20ms every second, the first window starts now
+     * network.setDutyCycle(1000, 20, rf24Timer.millis());
+     * while (true) {
+     *     network.update();
+     *     ...
+     *     rf24Timer.delayMicroseconds(Math.min(network.getSleepTime(), 1000));
+     * }
+     * }
+     * @param period period of the windows in ms, 0 to disable the duty cycle
+     * @param window time awake in every period in ms
+     * @param start rf24Timer.millis() of the start of one window (past or future)
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public void setDutyCycle(int period, int window, long start) throws IOException {
+        if (period < 0 || window < 0 || (period != 0 && window > period))
+            throw new IllegalArgumentException("Invalid duty cycle " + window + "/" + period + "ms");
+        duty_period = period * 1000L;
+        duty_window = window * 1000L;
+        duty_start = start * 1000L;
+        if (duty_period == 0 && duty_sleeping)
+            duty_wake();
+    }
+
+    /**
+     * @return true if the duty cycle powered the radio down
+     */
+    public boolean isSleeping() {
+        return duty_sleeping;
+    }
+
+    /**
+     * Time until update() has to run for the radio to be ready at the next window
+     * @return time in us, 0 if the radio is awake or the duty cycle is disabled
+     */
+    public long getSleepTime() {
+        if (duty_period == 0 || !duty_sleeping)
+            return 0;
+        long left = duty_period - duty_phase(rf24Timer.micros()) - radio.getPowerUpDelay();
+        return left > 0 ? left : 0;
+    }
+
+    /**
+     * @param now rf24Timer.micros()
+     * @return time since the start of the current period in us
+     */
+    private long duty_phase(long now) {
+        long phase = (now - duty_start) % duty_period;
+        return phase < 0 ? phase + duty_period : phase;
+    }
+
+    /**
+     * Follow the duty cycle: power down after the window, start the crystal Tpd2stby before
+     * the next one and listen again when it starts
+     * @return true if the radio is listening
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private boolean duty_cycle() throws IOException {
+        long now = rf24Timer.micros();
+        long phase = duty_phase(now);
+
+        if (phase < duty_window) {
+            if (duty_sleeping)
+                duty_wake();
+            return true;
+        }
+        if (!duty_sleeping) {
+            if (!pending_acks.isEmpty() || now - duty_busy_until < 0)
+                return true;
+            radio.powerDown();
+            duty_sleeping = true;
+            if (debug) Log.i(TAG, "Duty cycle: sleeping for " + (duty_period - phase) / 1000 + "ms");
+        }
+        if (duty_period - phase <= radio.getPowerUpDelay())
+            radio.powerUpAsync();
+        return false;
+    }
+
+    /**
+     * Leave the duty cycle sleep: power up (waiting what is left of Tpd2stby) and listen
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void duty_wake() throws IOException {
+        if (duty_sleeping) {
+            duty_sleeping = false;
+            radio.startListening();
+            if (ack_queues != null)
+                load_ack_payloads();
+            if (debug) Log.i(TAG, "Duty cycle: awake");
+        }
+    }
+
+    /**
+     * Wake the radio for a transmission and keep it on for routeTimeout, for the replies
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void duty_transmit() throws IOException {
+        duty_wake();
+        duty_busy_until = rf24Timer.micros() + routeTimeout * 1000L;
+    }
+
+    /**
+     * Select the reading pipes opened by begin(), so that the children of a node can be spread
+     * over several radios (see rf24RadioPool). Pipe 0 (multicast and the parent) stays open.
+     *
+     * {@code
+     * network.setPipeMask(0x07);   // children 1 and 2 only
+     * network.begin(76, (short) 00);
+     * }
+     * @param mask bit n set to listen on pipe n (child n), 0x3F for all pipes (default)
+     */
+    public void setPipeMask(int mask) {
+        pipe_mask = (mask & 0x3F) | 0x01;
+    }
+
+    /**
+     * @return reading pipes opened by begin(), bit n for pipe n
+     */
+    public int getPipeMask() {
+        return pipe_mask;
+    }
+
+    /**
+     * Enable the ACK payload channel to the children, see writeAckPayload(). Can be called before
+     * or after begin(), the children have to enable ACK payloads on their radio too.
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public void enableAckPayloads() throws IOException {
+        if (ack_queues == null) {
+            ack_queues = new ArrayList<>(6);
+            for (int pipe = 0; pipe < 6; pipe++) {
+                ack_queues.add(new ArrayDeque<AckPayload>(ACK_PAYLOAD_QUEUE));
+            }
+        }
+        radio.enableAckPayload();
+    }
+
+    /**
+     * Send a message down to a child (or a descendant of it) on the auto-ACK of the next frame
+     * the child sends up, instead of a transmission of its own.
+     *
+     * The frame waits in a queue per child pipe and rides on the ACK of the next frame received
+     * on that pipe. A sleeping sensor node gets its command right with its next reading, without
+     * staying awake for a separate transmission, and the parent doesn't switch to TX. Descendants
+     * further down get the message routed on by the child. Messages which can't be queued (ACK
+     * payloads not enabled, not a descendant, longer than a frame or queue full) are sent with
+     * writeAsync().
+     *
+     * {@code
+     * network.enableAckPayloads();
+     * rf24NetworkHeader header = new rf24NetworkHeader((short) 05, (byte) 'C');
+     * network.writeAckPayload(header, command, (short) command.length).thenAccept(result ->
+     *     Log.i(TAG, "Command picked up by 05 after " + result.getLatency() + "us"));
+     * }
+     * @param header The header (envelope) of this message, from_node is filled in
+     * @param message Pointer to memory where the message is located
+     * @param len The size of the message
+     * @return completed with ACKED when the child picked the message up, no timeout: a child
+     * which doesn't talk anymore keeps it queued
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public CompletableFuture<rf24TxResult> writeAckPayload(rf24NetworkHeader header, int[] message, short len) throws IOException {
+        int pipe = ack_pipe(header.to_node);
+        if (pipe < 0 || len > max_frame_payload_size || ack_queues.get(pipe).size() >= ACK_PAYLOAD_QUEUE) {
+            return writeAsync(header, message, len);
+        }
+
+        header.from_node = node_address;
+        int[] frame = new int[rf24NetworkHeader.sizeOf() + len];
+        header.ChangeHeader(frame);
+        System.arraycopy(message, 0, frame, rf24NetworkHeader.sizeOf(), len);
+
+        AckPayload payload = new AckPayload(frame, rf24Timer.micros());
+        ack_queues.get(pipe).add(payload);
+        if (debug) Log.i(TAG, "MAC ACK payload to " + Integer.toOctalString(header.to_node) + " queued on pipe " + pipe);
+        if ((networkFlags & FLAG_FAST_FRAG) == 0) {
+            load_ack_payloads();
+        }
+        return payload.future;
+    }
+
+    /**
+     * @param node child (or descendant) address
+     * @return messages waiting for the child the node is reached through
+     */
+    public int getPendingAckPayloads(short node) {
+        int pipe = ack_pipe(node);
+        return pipe < 0 ? 0 : ack_queues.get(pipe).size();
+    }
+
+    /**
+     * Pipe the child leading to a node talks to us on
+     * @param node destination
+     * @return pipe 1..5, -1 if ACK payloads are disabled or node isn't a descendant
+     */
+    private int ack_pipe(short node) {
+        return ack_queues == null ? -1 : child_pipe(node);
+    }
+
+    /**
+     * Pipe the child leading to a node talks to us on
+     * @param node destination
+     * @return pipe 1..5, -1 if node isn't a descendant
+     */
+    int child_pipe(short node) {
+        if (node == node_address || !is_descendant(node)) {
+            return -1;
+        }
+        int pipe = direct_child_route_to(node);
+        int mask = node_mask;
+        while (mask != 0) {
+            pipe >>= 3;
+            mask >>= 3;
+        }
+        return (pipe > 0 && pipe < 6) ? pipe : -1;
+    }
+
+    /**
+     * Load the head of the child queues into the TX FIFO (up to 3), again after a flush.
+     * The radio must be listening.
+     *
+     * A frame received before the load was acknowledged without the payload: the frames of the
+     * current burst, and of the next one if the RX FIFO isn't empty after loading, don't confirm
+     * the payloads loaded now (ack_unconfirmed), the next frame of the child does.
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void load_ack_payloads() throws IOException {
+        if (radio.getPendingWrites() > 0)
+            return;     // an asynchronous frame is on air, loaded again when it's done
+        int flushes = radio.getTxFlushes();
+        if (flushes != ack_flushes) {
+            Arrays.fill(ack_loaded, false);     // start/stopListening() emptied the TX FIFO
+            ack_count = 0;
+            ack_flushes = flushes;
+        }
+        int unconfirmed = rx_burst;
+        for (int idx = 0; idx < 5 && ack_count < 3; idx++) {
+            int pipe = (ack_next + idx - 1) % 5 + 1;
+            AckPayload payload = ack_queues.get(pipe).peek();
+            if (payload != null && !ack_loaded[pipe]) {
+                radio.writeAckPayload(pipe, payload.frame, payload.frame.length);
+                ack_loaded[pipe] = true;
+                ack_count++;
+                if (unconfirmed == rx_burst && radio.available())
+                    unconfirmed = rx_burst + 1;
+                ack_unconfirmed[pipe] = unconfirmed;
+            }
+        }
+        ack_next = ack_next % 5 + 1;
+    }
+
+    /**
+     * Complete the ACK payload loaded for a pipe, a frame was received on it
+     * @param pipe child pipe
+     */
+    private void ack_sent(int pipe) {
+        ack_loaded[pipe] = false;
+        ack_count--;
+        AckPayload payload = ack_queues.get(pipe).poll();
+        if (payload != null) {
+            if (debug) Log.i(TAG, "MAC ACK payload sent on pipe " + pipe);
+            payload.future.complete(new rf24TxResult(rf24TxResult.ACKED, 0, rf24Timer.micros() - payload.queued));
+        }
+    }
+
+    /**
+     * Complete all waiting ACK payloads with TIMEOUT
+     */
+    private void drop_ack_payloads() {
+        long now = rf24Timer.micros();
+        for (int pipe = 0; pipe < 6; pipe++) {
+            AckPayload payload;
+            while ((payload = ack_queues.get(pipe).poll()) != null) {
+                payload.future.complete(new rf24TxResult(rf24TxResult.TIMEOUT, 0, now - payload.queued));
+            }
+        }
+        Arrays.fill(ack_loaded, false);
+        ack_count = 0;
+    }
+
+    /**
+     * Message waiting for the ACK of a child
+     */
+    private static final class AckPayload {
+        /** Header and message */
+        final int[] frame;
+        /** rf24Timer.micros() of writeAckPayload() */
+        final long queued;
+        final CompletableFuture<rf24TxResult> future = new CompletableFuture<>();
+
+        AckPayload(int[] frame, long queued) {
+            this.frame = frame;
+            this.queued = queued;
+        }
+    }
+
     /* @}*/
     /*
      * @name Advanced Configuration
@@ -803,18 +1589,162 @@ class rf24Network {
      * Levels are assigned by network level ie: nodes 01-05: Level 1, nodes 011-055: Level 2
      * @see #multicastLevel
      * @see #multicastRelay
+     * Multicast frames are sent once without ACK (W_TX_PAYLOAD_NO_ACK). Frames fitting a single
+     * payload carry a sequence number in header.reserved (marked with MULTICAST_SEQUENCED), so
+     * receivers can report lost frames, see getMulticastGaps(), and drop relayed duplicates.
      * @param message Pointer to memory where the message is located
      * @param len The size of the message
      * @param level Multicast level to broadcast to
      * @return Whether the message was successfully sent
      */
-    boolean multicast(rf24NetworkHeader header, int[] message, short len, byte level)  throws IOException {
+    public boolean multicast(rf24NetworkHeader header, int[] message, short len, byte level)  throws IOException {
         // Fill out the header
         header.to_node = 0100;
         header.from_node = node_address;
+        if (len <= max_frame_payload_size) {
+            header.reserved = next_multicast_seq();
+        }
         return write(header, message, len, levelToAddress(level));
     }
 
+    /**
+     * Bulk multicast: split a message into frames and send all of them NOACK in one stream
+     * (radio.writeStream()), the TX FIFO is kept full and there is no ACK round trip or retry.
+     * Pushing e.g. a configuration to every node of a level takes one pass of air time instead of
+     * a unicast with retries per node.
+     *
+     * The receivers get separate messages of up to 24 bytes with the header type, in order,
+     * header.reserved holds the marked sequence number of each frame. Lost frames aren't repeated: the
+     * receivers count them (getMulticastGaps()) and can ask for the data again.
+     *
+     * {@code
+     * rf24NetworkHeader header = new rf24NetworkHeader((short) 0100, (byte) 'K');
+     * int sent = network.multicastBulk(header, config, config.length, (byte) 1);
+     * }
+     * @param header The header (envelope) of the frames, to_node and from_node are filled in
+     * @param message Pointer to memory where the message is located
+     * @param len The size of the message
+     * @param level Multicast level to broadcast to
+     * @return number of frames sent
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    public int multicastBulk(rf24NetworkHeader header, int[] message, int len, byte level) throws IOException {
+        header.to_node = 0100;
+        header.from_node = node_address;
+
+        int count = (len + max_frame_payload_size - 1) / max_frame_payload_size;
+        byte[] payloads = new byte[count * MAX_FRAME_SIZE];
+        int[] lengths = new int[count];
+        byte[] results = new byte[count];
+        int[] frame_header = new int[rf24NetworkHeader.sizeOf()];
+
+        for (int frame = 0; frame < count; frame++) {
+            int offset = frame * max_frame_payload_size;
+            int size = rf24_min(max_frame_payload_size, len - offset);
+            header.reserved = next_multicast_seq();
+            header.ChangeHeader(frame_header);
+            for (int idx = 0; idx < frame_header.length; idx++)
+                payloads[frame * MAX_FRAME_SIZE + idx] = (byte) frame_header[idx];
+            for (int idx = 0; idx < size; idx++)
+                payloads[frame * MAX_FRAME_SIZE + frame_header.length + idx] = (byte) message[offset + idx];
+            lengths[frame] = frame_header.length + size;
+        }
+
+        rf24 tx = dualradio ? radio1 : radio;
+        if (!dualradio) {
+            if (duty_period != 0)
+                duty_transmit();
+            radio.stopListening();
+            radio.setAutoAck(0, false);
+        }
+        tx.openWritingPipe(pipe_address(levelToAddress(level), (byte) 0, out_pipe_address));
+        int sent = tx.writeStream(payloads, lengths, count, true, results, txTimeout * count);
+        if (!dualradio) {
+            radio.startListening();
+            if (ack_queues != null)
+                load_ack_payloads();
+        }
+        if (debug) Log.i(TAG, "MAC Bulk multicast to level " + level + ": " + sent + "/" + count + " frames");
+        return sent;
+    }
+
+    /**
+     * @return multicast frames received (with a sequence number)
+     */
+    public long getMulticastReceived() {
+        return multicast_received;
+    }
+
+    /**
+     * @return multicast frames lost, from the gaps in the sequence numbers
+     */
+    public long getMulticastGaps() {
+        return multicast_gaps;
+    }
+
+    /**
+     * @param from_node sender of the multicast frames
+     * @return multicast frames of the sender lost, -1 if nothing was received from it
+     */
+    public int getMulticastGaps(short from_node) {
+        int sender = multicast_senders.get(from_node, -1);
+        return sender < 0 ? -1 : multicast_sender_gaps[sender];
+    }
+
+    /**
+     * @return duplicated multicast frames dropped (relayed by several nodes)
+     */
+    public long getMulticastDuplicates() {
+        return multicast_duplicates;
+    }
+
+    /**
+     * @return header.reserved of the next multicast frame: its sequence number (0..127) marked
+     * with MULTICAST_SEQUENCED
+     */
+    private short next_multicast_seq() {
+        multicast_seq = (multicast_seq + 1) & 0x7F;
+        return (short) (MULTICAST_SEQUENCED | multicast_seq);
+    }
+
+    /**
+     * Check the sequence number of a received multicast frame against the last one of the sender
+     * @param header header of the frame
+     * @return false if the frame is a duplicate
+     */
+    private boolean multicast_sequence(rf24NetworkHeader header) {
+        if ((header.reserved & MULTICAST_SEQUENCED) == 0) {
+            return true;                // sent without sequence number (other library, reserved used otherwise)
+        }
+        int seq = header.reserved & 0x7F;
+        int sender = multicast_senders.get(header.from_node, -1);
+        if (sender < 0) {
+            sender = multicast_senders.size();
+            if (sender == multicast_last.length) {
+                multicast_last = Arrays.copyOf(multicast_last, sender * 2);
+                multicast_sender_gaps = Arrays.copyOf(multicast_sender_gaps, sender * 2);
+            }
+            multicast_senders.put(header.from_node, sender);
+            multicast_last[sender] = seq;
+            multicast_sender_gaps[sender] = 0;
+            multicast_received++;
+            return true;
+        }
+        int last = multicast_last[sender];
+        if (seq == last) {
+            multicast_duplicates++;
+            return false;
+        }
+        int ahead = (seq - last - 1) & 0x7F;                  // frames missed in between
+        if (ahead < 64) {                                     // otherwise old frame or sender restarted
+            multicast_gaps += ahead;
+            multicast_sender_gaps[sender] += ahead;
+        }
+        multicast_last[sender] = seq;
+        multicast_received++;
+        return true;
+    }
+
 
     /**
      * Writes a direct (unicast) payload. This allows routing or sending messages outside of the usual routing paths.
@@ -827,7 +1757,7 @@ class rf24Network {
         header.ChangeHeader(frame_buffer);
 
         //Allows time for requests (RF24Mesh) to get through between failed writes on busy nodes
-        while(millis()-txTime < 25){ if(update() > 127){break;} }
+        while(millis()-txTime < 25){ if(update() > 127){break;} delayMicroseconds(UPDATE_IDLE); }
         delayMicroseconds(200);
 
 
@@ -919,7 +1849,7 @@ class rf24Network {
 
         }
         header.type = type;
-        if(dualradio) {
+        if(!dualradio) {
             if ((networkFlags & FLAG_FAST_FRAG) == FLAG_FAST_FRAG) {
                 ok = radio.txStandBy(txTimeout);
                 radio.startListening();
@@ -1036,11 +1966,20 @@ class rf24Network {
 
 
     private int[] pipe_address( int node, byte pipe ) {
+        return pipe_address(node, pipe, new int[5]);
+    }
+
+    /**
+     * Same as pipe_address(int, byte) but filling out, so the write path doesn't allocate
+     * @param node logical node address
+     * @param pipe pipe number
+     * @param out array of at least 5 elements receiving the address
+     * @return out
+     */
+    private int[] pipe_address( int node, byte pipe, int[] out ) {
 
-        final short[] address_translation =  { 0xc3,0x3c,0x33,0xce,0x3e,0xe3,0xec };
         long result = 0xCCCCCCCCCCL;
 
-        int[] out = new int[5];
         for (int idx = 0; idx < 5; idx++) {
             out[idx] = (byte) (0x00000000000000FF & result);
             result = result >> 8;
@@ -1089,8 +2028,7 @@ class rf24Network {
         header.from_node = node_address;
 
         // Build the full frame to send
-        int[] buffheader = header.toIntArray();  //memcpy(frame_buffer,&header,sizeof(rf24NetworkHeader));
-        System.arraycopy(buffheader, 0, frame_buffer, 0, rf24NetworkHeader.sizeOf());
+        header.ChangeHeader(frame_buffer);  //memcpy(frame_buffer,&header,sizeof(rf24NetworkHeader));
 
         //Log.i(TAG, "NET Sending %s\n\r"),millis(),header.toString()));
 
@@ -1213,9 +2151,12 @@ class rf24Network {
             }
         }
         if ((networkFlags & FLAG_FAST_FRAG) == 0) {
-            if (!dualradio)
+            if (!dualradio) {
                 // Now, continue listening
                 radio.startListening();
+                if (ack_queues != null)
+                    load_ack_payloads();
+            }
         }
         //#if defined ENABLE_NETWORK_STATS
         //  if(ok == true){
@@ -1229,9 +2170,16 @@ class rf24Network {
     private boolean write_to_pipe( short node, byte pipe, boolean multicast )  throws IOException
     {
         boolean ok = false;
-        int[] out_pipe = pipe_address( node, pipe );
+        int[] out_pipe = pipe_address( node, pipe, out_pipe_address );
+
+        // an asynchronous frame on air finishes first (a few ms at most)
+        rf24 tx = dualradio ? radio1 : radio;
+        while (tx.pollTx() > 0)
+            delayMicroseconds(100);
 
         if(!dualradio) {
+            if (duty_period != 0)
+                duty_transmit();
             // Open the correct pipe for writing.
             // First, stop listening so we can talk
             if ((networkFlags & FLAG_FAST_FRAG) != FLAG_FAST_FRAG) {
@@ -1246,7 +2194,7 @@ class rf24Network {
 
             radio.openWritingPipe(out_pipe);
 
-            ok = radio.writeFast(frame_buffer, frame_size, false);
+            ok = radio.writeFast(frame_buffer, frame_size, multicast);   // multicast: W_TX_PAYLOAD_NO_ACK
 
             if ((networkFlags & FLAG_FAST_FRAG) != FLAG_FAST_FRAG) {
                 ok = radio.txStandBy(txTimeout);
@@ -1255,7 +2203,7 @@ class rf24Network {
         }
         else {
             radio1.openWritingPipe(out_pipe);
-            radio1.writeFast(frame_buffer, frame_size);
+            radio1.writeFast(frame_buffer, frame_size, multicast);
             ok = radio1.txStandBy(txTimeout, multicast);
 
         }
@@ -1272,46 +2220,37 @@ class rf24Network {
 
     private int enqueue(rf24NetworkHeader header) {
         int result = 0;
+        int message_size = frame_buffer.length - rf24NetworkHeader.sizeOf();
 
-        rf24NetworkFrame frame = new rf24NetworkFrame(header, frame_buffer, frame_buffer.length - rf24NetworkHeader.sizeOf());
-
-        boolean isFragment = (frame.header.type == NETWORK_FIRST_FRAGMENT || frame.header.type == NETWORK_MORE_FRAGMENTS || frame.header.type == NETWORK_LAST_FRAGMENT || frame.header.type == NETWORK_MORE_FRAGMENTS_NACK);
+        boolean isFragment = (header.type == NETWORK_FIRST_FRAGMENT || header.type == NETWORK_MORE_FRAGMENTS || header.type == NETWORK_LAST_FRAGMENT || header.type == NETWORK_MORE_FRAGMENTS_NACK);
 
         // This is sent to itself
-        if (frame.header.from_node == node_address) {
+        if (header.from_node == node_address) {
             if (isFragment) {
                 if (debug) Log.i(TAG, "Cannot enqueue multi-payload frames to self");
                 result = 0;
             } else {
-                frame_queue.add(frame);
-                result = 1;
+                result = frame_queue.offer(header, frame_buffer, rf24NetworkHeader.sizeOf(), message_size) ? 1 : 0;
             }
         } else if (isFragment) {
 
-            //TODO: fragmented payload check!
             //The received frame contains the a fragmented payload
-            //Set the more fragments flag to indicate a fragmented frame
-            if (debug) Log.i(TAG, "FRG Payload type " + Integer.toHexString(frame.header.type) + " of size " + frame.message_size + " Bytes with fragmentID '" + frame.header.reserved + "' received.");
-            //Append payload
-            result = appendFragmentToFrame(frame);
+            if (debug) Log.i(TAG, "FRG Payload type " + Integer.toHexString(header.type) + " of size " + (frame_size - rf24NetworkHeader.sizeOf()) + " Bytes with fragmentID '" + header.reserved + "' received.");
+            //Write the payload at its offset into the reassembly buffer
+            result = reassembler.append(header, frame_buffer, rf24NetworkHeader.sizeOf(), frame_size - rf24NetworkHeader.sizeOf(), millis()) == rf24Reassembler.DROPPED ? 0 : 1;
 
-            //The header.reserved contains the actual header.type on the last fragment
-            if ((result == 1) && frame.header.type == NETWORK_LAST_FRAGMENT) {
+            rf24Reassembler.Message message = reassembler.completed();
+            if (message != null) {
                 if (debug) Log.i(TAG, "FRG Last fragment received. ");
                 if (debug) Log.i(TAG, "NET Enqueue assembled frame @" + frame_queue.size());
 
-                Integer from_node = new Integer (frame.header.from_node);
-                rf24NetworkFrame f = frameFragmentsCache.get(from_node);
-
-                result = f.header.type == EXTERNAL_DATA_TYPE ? 2 : 1;
+                result = message.header.type == EXTERNAL_DATA_TYPE ? 2 : 1;
 
                 //Load external payloads into a separate queue on linux
-                if (result == 2) {
-                    external_queue.add(f);
-                } else {
-                    frame_queue.add(f);
+                if (!(result == 2 ? external_queue : frame_queue).offer(message.header, message.buffer, 0, message.size)) {
+                    result = 0;
                 }
-                frameFragmentsCache.remove(from_node);
+                reassembler.release(message);
             }
 
         } else {//  if (frame.header.type <= MAX_USER_DEFINED_HEADER_TYPE) {
@@ -1319,13 +2258,12 @@ class rf24Network {
 
             if (debug) Log.i(TAG, "NET Enqueue @" + frame_queue.size());
             // Copy the current frame into the frame queue
-            result = frame.header.type == EXTERNAL_DATA_TYPE ? 2 : 1;
+            result = header.type == EXTERNAL_DATA_TYPE ? 2 : 1;
 
             //Load external payloads into a separate queue on linux
-            if (result == 2) {
-                external_queue.add(frame);
-            } else {
-                frame_queue.add(frame);
+            if (!(result == 2 ? external_queue : frame_queue).offer(header, frame_buffer, rf24NetworkHeader.sizeOf(), message_size)) {
+                if (debug) Log.i(TAG, "NET Queue full, frame from " + Integer.toOctalString(header.from_node) + " dropped");
+                result = 0;
             }
         }/* else {
             //Undefined/Unknown header.type received. Drop frame!
@@ -1346,94 +2284,6 @@ class rf24Network {
 
 
 
-    private byte appendFragmentToFrame(rf24NetworkFrame frame) {
-
-        // This is the first of 2 or more fragments.
-        if (frame.header.type == NETWORK_FIRST_FRAGMENT){
-
-            Integer from_node = new Integer (frame.header.from_node);
-            rf24NetworkFrame fragments = frameFragmentsCache.get(from_node);
-
-            if( fragments != null ){
-                rf24NetworkFrame f = fragments;
-
-                //Already rcvd first frag
-                if (f.header.id == frame.header.id){
-                    return 0;
-                }
-            }
-            if(frame.header.reserved > ((short)(MAX_PAYLOAD_SIZE) / max_frame_payload_size) ){
-                if (debug) Log.i(TAG,"FRG Too many fragments in payload "+ frame.header.reserved +", dropping...");
-                // If there are more fragments than we can possibly handle, return
-                return 0;
-            }
-            from_node = new Integer(frame.header.from_node);
-
-            frameFragmentsCache.put(from_node, frame);
-
-            return 1;
-        }else
-
-        if ( frame.header.type == NETWORK_MORE_FRAGMENTS || frame.header.type == NETWORK_MORE_FRAGMENTS_NACK ){
-
-            Integer from_node = new Integer (frame.header.from_node);
-            rf24NetworkFrame fragments = frameFragmentsCache.get(from_node);
-
-            if( fragments == null ){
-                return 0;
-            }
-
-            rf24NetworkFrame f = fragments;
-
-            if( f.header.reserved - 1 == frame.header.reserved && f.header.id == frame.header.id){
-                // Cache the fragment
-                f.AttachMsg(frame.message_buffer);
-                f.message_size += frame.message_size;  //Increment message size
-                f.header = frame.header; //Update header
-                return 1;
-
-            } else {
-                if (debug) Log.i(TAG,"FRG Dropping fragment for frame with header id:"+ frame.header.id+", out of order fragment(s)");
-                return 0;
-            }
-
-        }else
-        if ( frame.header.type == NETWORK_LAST_FRAGMENT ){
-
-            Integer from_node = new Integer (frame.header.from_node);
-            rf24NetworkFrame fragments = frameFragmentsCache.get(from_node);
-
-            //We have received the last fragment
-            if(fragments == null){
-                return 0;
-            }
-            // the cached frame
-            rf24NetworkFrame f = fragments;
-
-            if( f.message_size + frame.message_size > MAX_PAYLOAD_SIZE){        // needed???
-                if (debug) Log.i(TAG,"FRG Frame of size "+ frame.message_size+" plus enqueued frame of size "+f.message_size+" exceeds max payload size");
-                return 0;
-            }
-            //Error checking for missed fragments and payload size
-            if ( f.header.reserved-1 != 1 || f.header.id != frame.header.id) {
-                if (debug) Log.i(TAG,"FRG Duplicate or out of sequence frame "+frame.header.reserved+", expected "+f.header.reserved+". Cleared.");
-                //frameFragmentsCache.erase( std::make_pair(frame.header.id,frame.header.from_node) );
-                return 0;
-            }
-            //The user specified header.type is sent with the last fragment in the reserved field
-            frame.header.type = frame.header.reserved;
-            frame.header.reserved = 1;
-
-            //Append the received fragment to the cached frame
-            f.AttachMsg(frame.message_buffer);
-            f.message_size += frame.message_size;  //Increment message size
-            f.header = frame.header; //Update header
-            return 1;
-        }
-        return 0;
-    }
-
-
     // Provided the to_node and directTo option, it will return the resulting node and pipe
     private boolean logicalToPhysicalAddress(logicalToPhysical conversionInfo) {
 
@@ -1474,6 +2324,7 @@ class rf24Network {
 
         conversionInfo.send_node = pre_conversion_send_node;
         conversionInfo.send_pipe = pre_conversion_send_pipe;
+        conversionInfo.multicast = multicast;
 
         return true;
 
@@ -1569,7 +2420,7 @@ class rf24Network {
      * @param milliseconds Delay in milliseconds
      */
     private void delay(int milliseconds) {
-        delayMicroseconds(milliseconds * 1000);
+        rf24Timer.delay(milliseconds);
     }
 
     /**
@@ -1577,20 +2428,16 @@ class rf24Network {
      * @param microseconds Delay in microseconds
      */
     public void delayMicroseconds(long microseconds) {
-        long start = System.nanoTime();
-        long end = 0;
-        do {
-            end = System.nanoTime();
-        } while (start + microseconds >= end);
+        rf24Timer.delayMicroseconds(microseconds);
     }
 
     /**
-     * Return Milliseconds since Epoch
+     * Return monotonic milliseconds
      * @return long
      */
     private long millis()
     {
-        return System.currentTimeMillis();
+        return rf24Timer.millis();
     }
 
 
@@ -1692,9 +2539,10 @@ class rf24Network {
          */
         public void CastMsg(int[] msg)
         {
-            from_node = (short)((msg[1] << 8) + msg[0]);
-            to_node = (short)((msg[3] << 8) + msg[2]);
-            id = (short)((msg[5] << 8) + msg[4]);
+            // frames are read as signed bytes
+            from_node = (short)(((0x00FF & msg[1]) << 8) + (0x00FF & msg[0]));
+            to_node = (short)(((0x00FF & msg[3]) << 8) + (0x00FF & msg[2]));
+            id = (short)(((0x00FF & msg[5]) << 8) + (0x00FF & msg[4]));
             type = (short)(0x000000FF & msg[6]);
             reserved = (short)(0x000000FF & msg[7]);
             //next_id = (short)((msg[10] << 8) + msg[9]); // -> static not from object
@@ -1820,6 +2668,10 @@ class rf24Network {
       * On Linux the message buffer is a standard byte array, equal in size to the defined MAX_PAYLOAD_SIZE
       */
      int[] message_buffer = new int[MAX_PAYLOAD_SIZE]; //< Array to store the message
+
+     /** Ring the frame is recycled in, null for frames created elsewhere */
+     rf24FrameRing ring;
+
      /**
       * Default constructor
       *
@@ -1858,18 +2710,25 @@ class rf24Network {
      }
 
     /**
-     * Attach a message to this frame (use by fragmentation)
-     * @param _message message to be attached
+     * Overwrite the frame with a copy of a header and a message
+     * @param _header header to copy
+     * @param _message buffer holding the message
+     * @param offset index of the message in the buffer
+     * @param _len size of the message, truncated to the frame buffer
      */
-    public void AttachMsg(int[] _message)
+    void set(rf24NetworkHeader _header, int[] _message, int offset, int _len)
     {
-        int[] temp = new int[message_buffer.length + _message.length];
-        System.arraycopy(message_buffer, 0, temp, 0, message_buffer.length);
-        System.arraycopy(_message, 0, temp, message_buffer.length, _message.length);
-        message_buffer = temp;
+        header.from_node = _header.from_node;
+        header.to_node = _header.to_node;
+        header.id = _header.id;
+        header.type = _header.type;
+        header.reserved = _header.reserved;
+        message_size = _len;
+        int len = Math.min(_len, Math.min(message_buffer.length, _message.length - offset));
+        if (len > 0)
+            System.arraycopy(_message, offset, message_buffer, 0, len);
     }
 
-
      /**
       * Create debugging string
       *
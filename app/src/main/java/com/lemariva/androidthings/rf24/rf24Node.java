@@ -77,6 +77,28 @@ public class rf24Node {
         this.topic = topic;
     }
 
+    /**
+     * Copy of a node, with its own payload
+     * @param node node to copy
+     */
+    public rf24Node(rf24Node node)
+    {
+        this.nodeID = node.nodeID;
+        this.address = node.address;
+        this.type = node.type;
+        this.name = node.name;
+        this.info = node.info;
+        this.releasetime = node.releasetime;
+        this.topic = node.topic;
+        this.payload = new rf24NodePayload();
+        if (node.payload != null) {
+            this.payload.payloadID = node.payload.payloadID;
+            this.payload.nodeID = node.payload.nodeID;
+            this.payload.type = node.payload.type;
+            this.payload.setPayload(node.payload.getPayload(), node.payload.getUpdate());
+        }
+    }
+
     public short getNodeID() {
         return nodeID;
     }
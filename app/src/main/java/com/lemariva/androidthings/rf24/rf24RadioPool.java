@@ -0,0 +1,297 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Pool of radios serving the children of one node in parallel.
+ *
+ * Every radio has its own SPI chip select and CE pin, its own rf24Network on its own channel and
+ * its own rf24RadioThread, so the radios send and receive at the same time. All networks share
+ * the node address; the child pipes 1..5 are spread over the radios (round robin by default, see
+ * setPipeRadio()) and every network only listens on its own pipes, plus pipe 0 for multicast.
+ * A child (and its subtree) has to be configured on the channel of the radio serving its pipe.
+ * Messages to nodes that aren't descendants (the parent) go through radio 0.
+ *
+ * The pool connects the application with the children: a frame from a child to a node served
+ * by another radio is forwarded by the network that received it, on its own channel, so children
+ * of different radios can't talk to each other through the pool.
+ *
+ * {@code
+ * rf24RadioPool pool = rf24RadioPool.create(3, 8000000);
+ * pool.begin((short) 00, new int[] {76, 90, 104});
+ * // application thread
+ * rf24NetworkFrame frame;
+ * while ((frame = pool.receive()) != null) {
+ *     payload.CastMsg(frame.message_buffer);
+ *     ...
+ *     pool.recycle(frame);
+ * }
+ * pool.write(header, command.toInt(), (short) command.sizeOf());
+ * ...
+ * pool.quit();
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24RadioPool {
+
+    private static final boolean debug = false;
+
+    private static final String TAG = rf24RadioPool.class.getSimpleName();
+
+    private final rf24[] radios;
+    private final rf24Network[] networks;
+    private final rf24RadioThread[] threads;
+
+    /** Radio serving child pipe n, index 0 unused */
+    private final int[] pipe_radio = new int[6];
+
+    /** Enable the ACK payloads of the networks on begin() */
+    private boolean ack_payloads;
+
+    /** Next thread receive() looks at, application thread only */
+    private int next_receive;
+
+    /**
+     * Constructor
+     * @param _radios radios of the pool, at least one
+     */
+    public rf24RadioPool(rf24... _radios) {
+        if (_radios.length == 0)
+            throw new IllegalArgumentException("rf24RadioPool needs a radio");
+        radios = _radios.clone();
+        networks = new rf24Network[radios.length];
+        threads = new rf24RadioThread[radios.length];
+        for (int pipe = 1; pipe < 6; pipe++)
+            pipe_radio[pipe] = (pipe - 1) % radios.length;
+    }
+
+    /**
+     * Create a pool with the radios wired to the board defaults, see BoardDefaults.getSPIPort(int),
+     * BoardDefaults.getGPIOce(int) and BoardDefaults.getGPIOcsn(int)
+     *
+     * Up to BoardDefaults.getRadioCount() radios use the hardware chip selects of the SPI ports.
+     * With more radios, radio 0 keeps the first port and the others share the second port with
+     * GPIO chip selects, its hardware chip select (CE1 on the Raspberry Pi 3) isn't wired then.
+     * @param count number of radios
+     * @param spi_speed SPI speed in Hz ie: 8000000
+     * @return the pool
+     */
+    public static rf24RadioPool create(int count, int spi_speed) {
+        rf24[] radios = new rf24[count];
+        boolean gpio_csn = count > BoardDefaults.getRadioCount();
+        for (int i = 0; i < count; i++) {
+            if (gpio_csn && i > 0)
+                radios[i] = new rf24(new rf24SpiTransport(BoardDefaults.getSPIPort(1), BoardDefaults.getGPIOcsn(i), BoardDefaults.getGPIOce(i), spi_speed));
+            else
+                radios[i] = new rf24(new rf24SpiTransport(BoardDefaults.getSPIPort(i), BoardDefaults.getGPIOce(i), spi_speed));
+        }
+        return new rf24RadioPool(radios);
+    }
+
+    /**
+     * Serve a child pipe with a radio, call before begin()
+     * @param pipe child pipe 1..5 (the last octal digit of the child address)
+     * @param radio index of the radio in the pool
+     */
+    public void setPipeRadio(int pipe, int radio) {
+        if (pipe < 1 || pipe > 5 || radio < 0 || radio >= radios.length)
+            throw new IllegalArgumentException("Invalid pipe " + pipe + " or radio " + radio);
+        pipe_radio[pipe] = radio;
+    }
+
+    /**
+     * @param pipe child pipe 1..5
+     * @return index of the radio serving the pipe
+     */
+    public int getPipeRadio(int pipe) {
+        return pipe_radio[pipe];
+    }
+
+    /**
+     * Enable the ACK payload channel to the children of every radio, see writeAckPayload().
+     * Call before begin().
+     */
+    public void enableAckPayloads() {
+        ack_payloads = true;
+    }
+
+    /**
+     * Begin the radios and the networks, and start one radio thread per radio
+     * @param node_address logical address shared by the networks
+     * @param channels channel of every radio, one entry per radio
+     * @return false if a radio or network couldn't be begun, no thread is started then
+     * @throws IOException when write / read on spi doesn't work
+     */
+    public boolean begin(short node_address, int[] channels) throws IOException {
+        if (channels.length < radios.length)
+            throw new IllegalArgumentException("One channel per radio needed");
+
+        for (int i = 0; i < radios.length; i++) {
+            int mask = 0x01;
+            for (int pipe = 1; pipe < 6; pipe++) {
+                if (pipe_radio[pipe] == i)
+                    mask |= 1 << pipe;
+            }
+            if (!radios[i].begin())
+                return false;
+            networks[i] = new rf24Network(radios[i]);
+            networks[i].setPipeMask(mask);
+            if (ack_payloads)
+                networks[i].enableAckPayloads();
+            if (!networks[i].begin(channels[i], node_address))
+                return false;
+            if (debug) Log.i(TAG, "Radio " + i + " on channel " + channels[i] + " pipes 0x" + Integer.toHexString(mask));
+        }
+
+        for (int i = 0; i < radios.length; i++) {
+            threads[i] = new rf24RadioThread(radios[i], networks[i], null);
+            threads[i].setName(TAG + "-" + i);
+            threads[i].start();
+        }
+        return true;
+    }
+
+    /**
+     * Queue a message on the radio serving the destination
+     *
+     * The future is completed on the radio thread: keep callbacks short or use thenAcceptAsync().
+     * @param header The header (envelope) of this message
+     * @param message message to send, not modified until the message is sent
+     * @param len The size of the message
+     * @return completed with the delivery result, exceptionally with an IOException if the
+     * outbound ring of the radio is full
+     */
+    public CompletableFuture<rf24TxResult> write(rf24NetworkHeader header, int[] message, short len) {
+        return threads[getRadioIndex(header.to_node)].write(header, message, len);
+    }
+
+    /**
+     * Queue a message for a child on the ACK of its next frame, see rf24Network.writeAckPayload().
+     * ACK payloads have to be enabled, see enableAckPayloads().
+     * @param header The header (envelope) of this message
+     * @param message message to send, not modified until the message is sent
+     * @param len The size of the message
+     * @return completed when the child picked the message up
+     */
+    public CompletableFuture<rf24TxResult> writeAckPayload(rf24NetworkHeader header, int[] message, short len) {
+        return threads[getRadioIndex(header.to_node)].writeAckPayload(header, message, len);
+    }
+
+    /**
+     * Take the next received message of any radio, the radios are visited round robin
+     * (application thread, a single consumer)
+     * @return the frame, null if no message is waiting
+     */
+    public rf24NetworkFrame receive() {
+        for (int i = 0; i < threads.length; i++) {
+            rf24RadioThread thread = threads[next_receive];
+            next_receive = (next_receive + 1) % threads.length;
+            rf24NetworkFrame frame = thread.receive();
+            if (frame != null)
+                return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Give a frame taken with receive() back to the radio it came from for reuse, the frame must
+     * not be used afterwards
+     * @param frame frame not used anymore
+     */
+    public void recycle(rf24NetworkFrame frame) {
+        for (int i = 0; i < threads.length; i++) {
+            if (networks[i] != null && networks[i].owns(frame)) {
+                threads[i].recycle(frame);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if a received message is waiting on any radio
+     */
+    public boolean available() {
+        for (rf24RadioThread thread : threads) {
+            if (thread.available())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Index of the radio a message to a node is sent on
+     * @param node logical address of the destination
+     * @return the radio serving the child pipe leading to node, 0 for other nodes
+     */
+    public int getRadioIndex(short node) {
+        int pipe = networks[0].child_pipe(node);
+        return pipe < 0 ? 0 : pipe_radio[pipe];
+    }
+
+    /**
+     * @return number of radios of the pool
+     */
+    public int getRadioCount() {
+        return radios.length;
+    }
+
+    /**
+     * @param index radio index
+     * @return the radio, owned by its radio thread after begin()
+     */
+    public rf24 getRadio(int index) {
+        return radios[index];
+    }
+
+    /**
+     * @param index radio index
+     * @return the network of the radio, null before begin()
+     */
+    public rf24Network getNetwork(int index) {
+        return networks[index];
+    }
+
+    /**
+     * @return number of messages dropped because the application didn't call receive() often enough
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (rf24RadioThread thread : threads) {
+            if (thread != null)
+                dropped += thread.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Stop the radio threads, can be called from any thread
+     */
+    public void quit() {
+        for (rf24RadioThread thread : threads) {
+            if (thread != null)
+                thread.quit();
+        }
+    }
+}
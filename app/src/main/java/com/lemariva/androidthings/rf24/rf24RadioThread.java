@@ -0,0 +1,369 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Radio owner thread: the only thread touching the SPI bus of one radio.
+ *
+ * The thread runs the network (or mesh) update loop and exchanges frames with one application
+ * thread through two lock-free single-producer/single-consumer rings: received messages
+ * go out through the inbound ring, messages to send come in through the outbound ring and
+ * are sent with rf24Network.writeAsync(), so slow multi-hop deliveries don't stall reception.
+ * The radio is bound to this thread with {@link rf24#setOwnerThread(Thread)} while it runs.
+ * SPI and runtime errors of an update are logged and the loop goes on. If the mesh can't begin or
+ * an Error is thrown, the thread stops (see getFailure()); the futures of the messages not
+ * delivered yet, also after quit(), are completed exceptionally with an IOException.
+ *
+ * {@code
+ * mesh.setNodeID((byte) 0);
+ * rf24RadioThread radioThread = new rf24RadioThread(radio, network, mesh);
+ * radioThread.start();
+ * // application thread
+ * rf24NetworkFrame frame;
+ * while ((frame = radioThread.receive()) != null) {
+ *     payload.CastMsg(frame.message_buffer);
+ *     ...
+ *     radioThread.recycle(frame);
+ * }
+ * radioThread.write(header, command.toInt(), (short) command.sizeOf());
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+class rf24RadioThread extends Thread {
+
+    private static final boolean debug = false;
+
+    private static final String TAG = rf24RadioThread.class.getSimpleName();
+
+    /** Default capacity of the inbound and outbound rings */
+    private static final int RING_SIZE = 64;
+    /** Idle time of the update loop in us, write() wakes the thread up earlier */
+    private static final int IDLE_TIME = 1000;
+
+    private final rf24 radio;
+    private final rf24Network network;
+    /** Mesh running on top of the network, null to run the network only */
+    private final rf24Mesh mesh;
+
+    /** Received messages, radio thread -> application thread */
+    private final rf24SpscRing<rf24NetworkFrame> inbound;
+    /** Messages to send, application thread -> radio thread */
+    private final rf24SpscRing<TxRequest> outbound;
+    /** Received frames given back for reuse, application thread -> radio thread */
+    private final rf24SpscRing<rf24NetworkFrame> recycled;
+
+    /** Futures of the messages handed to the network and not completed yet (radio thread) */
+    private final ArrayList<CompletableFuture<rf24TxResult>> in_flight = new ArrayList<>();
+
+    private volatile boolean running = true;
+    /** The update loop is over and the outbound ring isn't polled anymore */
+    private volatile boolean stopped;
+    /** Cause of the stop, null after quit() */
+    private volatile Throwable failure;
+    /** Messages dropped because the application didn't empty the inbound ring */
+    private volatile long dropped;
+
+    /**
+     * Constructor
+     * @param _radio radio owned by the thread
+     * @param _network network on the radio, begun by the caller if _mesh is null
+     * @param _mesh mesh to begin and update on the thread, null to update the network only
+     */
+    rf24RadioThread(rf24 _radio, rf24Network _network, rf24Mesh _mesh) {
+        this(_radio, _network, _mesh, RING_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param _radio radio owned by the thread
+     * @param _network network on the radio, begun by the caller if _mesh is null
+     * @param _mesh mesh to begin and update on the thread, null to update the network only
+     * @param ringSize capacity of the inbound and outbound rings
+     */
+    rf24RadioThread(rf24 _radio, rf24Network _network, rf24Mesh _mesh, int ringSize) {
+        super(TAG);
+        radio = _radio;
+        network = _network;
+        mesh = _mesh;
+        inbound = new rf24SpscRing<>(ringSize);
+        outbound = new rf24SpscRing<>(ringSize);
+        recycled = new rf24SpscRing<>(ringSize);
+    }
+
+    @Override
+    public void run() {
+        radio.setOwnerThread(this);
+        try {
+            boolean ready = true;
+            try {
+                if (mesh != null) {
+                    ready = mesh.begin();
+                }
+                if (debug) radio.printDetails();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error on initializing radio", e);
+                ready = false;
+            }
+            if (!ready) {
+                Log.e(TAG, "Radio not initialized, radio thread stopped");
+                failure = new IOException("rf24 radio not initialized");
+                return;
+            }
+
+            while (running) {
+                try {
+                    update();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error on radio update", e);
+                } catch (RuntimeException e) {
+                    // a bug in a single update (e.g. a malformed frame) doesn't stop the radio
+                    Log.e(TAG, "Unexpected error on radio update", e);
+                }
+            }
+        } catch (Error e) {
+            Log.e(TAG, "Fatal error on radio thread", e);
+            failure = e;
+            throw e;
+        } finally {
+            fail_pending();
+            radio.setOwnerThread(null);
+        }
+    }
+
+    /**
+     * One round of the update loop (radio thread)
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void update() throws IOException {
+        boolean busy = false;
+
+        if (mesh != null) {
+            // keep the network and the 'DHCP service' of the master node running
+            mesh.update();
+            mesh.DHCP();
+        } else {
+            network.update();
+        }
+
+        rf24NetworkFrame frame;
+        while ((frame = recycled.poll()) != null) {
+            network.recycle(frame);
+        }
+        while ((frame = network.readFrame()) != null) {
+            if (!inbound.offer(frame)) {
+                dropped++;
+                if (debug) Log.i(TAG, "Inbound ring full, message from " + Integer.toOctalString(frame.header.from_node) + " dropped");
+                network.recycle(frame);
+            }
+            busy = true;
+        }
+
+        TxRequest request;
+        while ((request = outbound.poll()) != null) {
+            send(request);
+            busy = true;
+        }
+
+        if (!busy) {
+            LockSupport.parkNanos(this, IDLE_TIME * 1000L);
+        }
+    }
+
+    /**
+     * Complete the queued and in flight messages exceptionally when the thread stops (radio
+     * thread), their results won't come anymore
+     */
+    private void fail_pending() {
+        running = false;
+        IOException cause = new IOException("rf24 radio thread stopped", failure);
+        ArrayList<CompletableFuture<rf24TxResult>> futures = new ArrayList<>(in_flight);
+        in_flight.clear();
+        for (CompletableFuture<rf24TxResult> future : futures) {
+            future.completeExceptionally(cause);
+        }
+        // from here on queue() fails its requests itself
+        stopped = true;
+        drain_outbound(cause);
+    }
+
+    /**
+     * Complete the messages waiting in the outbound ring exceptionally, once stopped is set.
+     * The radio thread and queue() may both drain then, the lock keeps a single consumer.
+     * @param cause exception of the futures
+     */
+    private void drain_outbound(IOException cause) {
+        synchronized (outbound) {
+            TxRequest request;
+            while ((request = outbound.poll()) != null) {
+                request.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Queue a message for sending (application thread, a single producer)
+     *
+     * The future is completed on the radio thread: keep callbacks short or use thenAcceptAsync().
+     * @param header The header (envelope) of this message
+     * @param message message to send, not modified until the message is sent
+     * @param len The size of the message
+     * @return completed with the delivery result, exceptionally with an IOException if the
+     * outbound ring is full
+     */
+    CompletableFuture<rf24TxResult> write(rf24NetworkHeader header, int[] message, short len) {
+        return queue(new TxRequest(header, message, len, false));
+    }
+
+    /**
+     * Queue a message for a child, sent on the ACK of its next frame (application thread, a
+     * single producer), see rf24Network.writeAckPayload()
+     * @param header The header (envelope) of this message
+     * @param message message to send, not modified until the message is sent
+     * @param len The size of the message
+     * @return completed when the child picked the message up, exceptionally with an IOException
+     * if the outbound ring is full
+     */
+    CompletableFuture<rf24TxResult> writeAckPayload(rf24NetworkHeader header, int[] message, short len) {
+        return queue(new TxRequest(header, message, len, true));
+    }
+
+    /**
+     * Hand a message to the radio thread
+     * @param request message and future
+     * @return the future of the request
+     */
+    private CompletableFuture<rf24TxResult> queue(TxRequest request) {
+        if (stopped) {
+            request.future.completeExceptionally(new IOException("rf24 radio thread stopped", failure));
+        } else if (!outbound.offer(request)) {
+            request.future.completeExceptionally(new IOException("rf24 outbound ring full"));
+        } else if (stopped) {
+            // the radio thread stopped polling meanwhile
+            drain_outbound(new IOException("rf24 radio thread stopped", failure));
+        } else {
+            LockSupport.unpark(this);
+        }
+        return request.future;
+    }
+
+    /**
+     * Take the next received message (application thread, a single consumer)
+     * @return the frame, null if no message is waiting
+     */
+    rf24NetworkFrame receive() {
+        return inbound.poll();
+    }
+
+    /**
+     * Give a frame taken with receive() back for reuse (application thread), the frame must not
+     * be used afterwards. Frames not given back are left to the garbage collector.
+     * @param frame frame not used anymore
+     */
+    void recycle(rf24NetworkFrame frame) {
+        if (frame != null)
+            recycled.offer(frame);
+    }
+
+    /**
+     * @return true if a received message is waiting
+     */
+    boolean available() {
+        return inbound.peek() != null;
+    }
+
+    /**
+     * @return number of messages dropped because the inbound ring was full
+     */
+    long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the error that stopped the radio thread (initialization or fatal error), null if
+     * it runs or was stopped with quit()
+     */
+    Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stop the update loop and release the radio, can be called from any thread. Messages not
+     * delivered yet are completed exceptionally.
+     */
+    void quit() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Send a queued message (radio thread)
+     * @param request message and future
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    private void send(final TxRequest request) throws IOException {
+        // registered first: an error inside the network call still leaves the future to fail_pending()
+        in_flight.add(request.future);
+        try {
+            CompletableFuture<rf24TxResult> sent = request.ackPayload
+                    ? network.writeAckPayload(request.header, request.message, request.len)
+                    : network.writeAsync(request.header, request.message, request.len);
+            sent.whenComplete(new BiConsumer<rf24TxResult, Throwable>() {
+                @Override
+                public void accept(rf24TxResult result, Throwable error) {
+                    in_flight.remove(request.future);
+                    if (error != null)
+                        request.future.completeExceptionally(error);
+                    else
+                        request.future.complete(result);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            in_flight.remove(request.future);
+            request.future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Message queued by write()
+     */
+    private static final class TxRequest {
+        final rf24NetworkHeader header;
+        final int[] message;
+        final short len;
+        /** Send on the ACK of the child, see rf24Network.writeAckPayload() */
+        final boolean ackPayload;
+        final CompletableFuture<rf24TxResult> future = new CompletableFuture<>();
+
+        TxRequest(rf24NetworkHeader header, int[] message, short len, boolean ackPayload) {
+            this.header = header;
+            this.message = message;
+            this.len = len;
+            this.ackPayload = ackPayload;
+        }
+    }
+}
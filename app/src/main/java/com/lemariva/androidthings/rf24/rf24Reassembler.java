@@ -0,0 +1,311 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Reassembly of fragmented network messages in preallocated buffers.
+ *
+ * The first fragment carries the number of fragments in header.reserved (counting down on the
+ * following ones), the last fragment carries the message type instead. Every fragment is copied
+ * once, at its offset (index * fragment size), into a pooled buffer; the received fragments are
+ * kept in a bit mask, so duplicates are ignored and nothing is copied twice. The message is
+ * complete when every bit is set.
+ *
+ * Messages are keyed by sender and message id (from_node << 16 | id, in a primitive map), so
+ * several messages of one sender, or of several senders through a relay, are reassembled at the
+ * same time. A message without a fragment for the timeout is dropped; when every buffer is in
+ * use, a new message takes the buffer of the least recently updated one.
+ *
+ * {@code
+ * rf24Reassembler reassembler = new rf24Reassembler(8, 144, 24);
+ * if (reassembler.append(header, frame_buffer, 8, frame_size - 8, millis()) == rf24Reassembler.COMPLETE) {
+ *     rf24Reassembler.Message message = reassembler.completed();
+ *     queue.offer(message.header, message.buffer, 0, message.size);
+ *     reassembler.release(message);
+ * }
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+@SuppressWarnings("WeakerAccess")
+class rf24Reassembler {
+
+    /** Results of append() */
+    static final int DROPPED = 0;
+    static final int APPENDED = 1;
+    static final int COMPLETE = 2;
+
+    /** Fragment header types, see rf24Network */
+    private static final int FIRST_FRAGMENT = 148;
+    private static final int MORE_FRAGMENTS = 149;
+    private static final int LAST_FRAGMENT = 150;
+    private static final int MORE_FRAGMENTS_NACK = 200;
+
+    /** Default time in ms a message may wait for its next fragment */
+    private static final int TIMEOUT = 500;
+
+    /**
+     * A message being reassembled
+     */
+    static final class Message {
+        /** Header of the message, type restored when complete */
+        final rf24NetworkHeader header = new rf24NetworkHeader();
+        /** Message bytes, fragment n at n * fragment size */
+        final int[] buffer;
+        /** Size of the message in bytes, valid when complete */
+        int size;
+
+        /** Index in messages */
+        private final int slot;
+        private long key;
+        private int fragments;
+        private long received;
+        private long last_time;
+        private boolean active;
+
+        private Message(int capacity, int _slot) {
+            buffer = new int[capacity];
+            slot = _slot;
+        }
+    }
+
+    private final Message[] messages;
+    private final int fragment_size;
+    private final int max_fragments;
+    /** Key -> index in messages */
+    private final rf24AddressMap index_map;
+    private int timeout = TIMEOUT;
+
+    /** Message completed by the last append() */
+    private Message done;
+
+    private long completed;
+    private long dropped;
+    private long timeouts;
+    private long evictions;
+
+    /**
+     * Constructor
+     * @param slots number of messages reassembled at the same time
+     * @param capacity largest message in bytes
+     * @param _fragment_size payload bytes of a fragment
+     */
+    rf24Reassembler(int slots, int capacity, int _fragment_size) {
+        fragment_size = _fragment_size;
+        max_fragments = Math.min(capacity / fragment_size, 64);
+        messages = new Message[slots];
+        for (int i = 0; i < slots; i++)
+            messages[i] = new Message(max_fragments * fragment_size, i);
+        index_map = new rf24AddressMap(slots);
+    }
+
+    /**
+     * @param ms time in ms a partial message waits for its next fragment
+     */
+    void setTimeout(int ms) {
+        timeout = ms;
+    }
+
+    /**
+     * @param from_node sender
+     * @param id message id
+     * @return key of the message
+     */
+    static long key(short from_node, short id) {
+        return ((from_node & 0xFFFFL) << 16) | (id & 0xFFFFL);
+    }
+
+    /**
+     * Add a received fragment
+     * @param header header of the fragment
+     * @param frame buffer holding the fragment
+     * @param offset index of the payload in the buffer
+     * @param len payload size of the fragment
+     * @param now time in ms
+     * @return DROPPED, APPENDED or COMPLETE (see completed())
+     */
+    int append(rf24NetworkHeader header, int[] frame, int offset, int len, long now) {
+        done = null;
+        expire(now);
+        if (len <= 0 || len > fragment_size) {
+            dropped++;
+            return DROPPED;
+        }
+
+        long key = key(header.from_node, header.id);
+        Message message = find(key);
+        int index;
+        if (header.type == FIRST_FRAGMENT) {
+            if (message != null) {
+                return DROPPED;         // already received
+            }
+            if (header.reserved < 2 || header.reserved > max_fragments) {
+                dropped++;
+                return DROPPED;         // more fragments than a buffer holds
+            }
+            message = acquire();
+            message.active = true;
+            message.key = key;
+            message.fragments = header.reserved;
+            message.received = 0;
+            index_map.put(key, message.slot);
+            index = 0;
+        } else {
+            if (message == null) {
+                dropped++;
+                return DROPPED;         // first fragment missed
+            }
+            if (header.type == LAST_FRAGMENT) {
+                index = message.fragments - 1;
+            } else if (header.type == MORE_FRAGMENTS || header.type == MORE_FRAGMENTS_NACK) {
+                index = message.fragments - header.reserved;
+                if (index <= 0 || index >= message.fragments - 1) {
+                    dropped++;
+                    return DROPPED;
+                }
+            } else {
+                dropped++;
+                return DROPPED;
+            }
+        }
+
+        long bit = 1L << index;
+        if ((message.received & bit) != 0)
+            return DROPPED;             // duplicate
+        if (index < message.fragments - 1 && len != fragment_size) {
+            dropped++;
+            return DROPPED;             // only the last fragment may be short
+        }
+        System.arraycopy(frame, offset, message.buffer, index * fragment_size, len);
+        message.received |= bit;
+        message.last_time = now;
+
+        if (header.type == LAST_FRAGMENT) {
+            // the last fragment carries the message type in reserved
+            message.header.from_node = header.from_node;
+            message.header.to_node = header.to_node;
+            message.header.id = header.id;
+            message.header.type = header.reserved;
+            message.header.reserved = 1;
+            message.size = index * fragment_size + len;
+        }
+
+        if (message.received == (1L << message.fragments) - 1) {
+            completed++;
+            done = message;
+            return COMPLETE;
+        }
+        return APPENDED;
+    }
+
+    /**
+     * @return the message completed by the last append(), hand it back with release()
+     */
+    Message completed() {
+        return done;
+    }
+
+    /**
+     * Reuse the buffer of a message
+     * @param message message returned by completed()
+     */
+    void release(Message message) {
+        free(message);
+        if (done == message)
+            done = null;
+    }
+
+    /**
+     * Drop every partial message
+     */
+    void clear() {
+        for (Message message : messages)
+            message.active = false;
+        index_map.clear();
+        done = null;
+    }
+
+    /**
+     * Drop the partial messages without a fragment for the timeout
+     * @param now time in ms
+     */
+    void expire(long now) {
+        for (Message message : messages) {
+            if (message.active && message != done && now - message.last_time > timeout) {
+                free(message);
+                timeouts++;
+            }
+        }
+    }
+
+    private Message find(long key) {
+        int index = index_map.get(key, -1);
+        return index < 0 ? null : messages[index];
+    }
+
+    /**
+     * @return a free buffer, the least recently updated message is dropped if none is free
+     */
+    private Message acquire() {
+        Message oldest = null;
+        for (Message message : messages) {
+            if (!message.active)
+                return message;
+            if (oldest == null || message.last_time < oldest.last_time)
+                oldest = message;
+        }
+        free(oldest);
+        evictions++;
+        return oldest;
+    }
+
+    private void free(Message message) {
+        if (message.active) {
+            message.active = false;
+            index_map.remove(message.key);
+        }
+    }
+
+    /**
+     * @return number of messages reassembled
+     */
+    long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return number of fragments dropped (first fragment missed, out of range, too long)
+     */
+    long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of partial messages dropped because a fragment didn't come in time
+     */
+    long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return number of partial messages dropped to make room for a new one
+     */
+    long getEvictions() {
+        return evictions;
+    }
+}
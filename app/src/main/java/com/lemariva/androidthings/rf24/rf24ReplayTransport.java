@@ -0,0 +1,260 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Transport answering the driver with a capture of {@link rf24SpiRecorder}, to run recorded
+ * production traffic through rf24 and rf24Network on a workstation (profiling, debugging).
+ *
+ * Every transfer of the driver takes the next recorded SPI transaction and gets its MISO bytes.
+ * The driver has to run the same calls as the recorded one from the start of the capture (e.g.
+ * begin(), network.begin(), then the update() loop). Polling loops don't run the same number of
+ * times on another machine, so status polls (NOP and reads of STATUS, FIFO_STATUS, OBSERVE_TX
+ * and RPD) are matched loosely: recorded polls the driver doesn't ask for are skipped, extra
+ * polls of the driver get the last status without consuming a record. Other mismatches are
+ * counted in getMismatches() and answered with the recorded bytes anyway.
+ *
+ * {@code
+ * rf24ReplayTransport replay = rf24ReplayTransport.load(new File("spi.rec"));
+ * rf24 radio = new rf24(replay);
+ * rf24Network network = new rf24Network(radio);
+ * radio.begin();
+ * network.begin(76, (short) 00);
+ * while (!replay.isFinished()) {
+ *     network.update();
+ *     while (network.available()) network.readFrame();
+ * }
+ * Log.i(TAG, replay.getPosition() + " records, " + replay.getMismatches() + " mismatches");
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24ReplayTransport implements rf24Transport {
+
+    /* Commands and registers of the status polls */
+    private static final int R_REGISTER_MAX = 0x1F;
+    private static final int NOP = 0xFF;
+    private static final int STATUS = 0x07;
+    private static final int OBSERVE_TX = 0x08;
+    private static final int RPD = 0x09;
+    private static final int FIFO_STATUS = 0x17;
+
+    /** Records, HEADER_SIZE bytes of the file skipped */
+    private final ByteBuffer records;
+    private final int count;
+    private int position;
+    private byte last_status = 0x0E;
+    private long mismatches;
+    private long synthesized;
+    private int spi_speed = 10000000;
+
+    /**
+     * Constructor
+     * @param _records records of a capture, oldest first, RECORD_SIZE bytes each
+     * @param _count number of records
+     */
+    public rf24ReplayTransport(ByteBuffer _records, int _count) {
+        records = _records.order(ByteOrder.LITTLE_ENDIAN);
+        count = _count;
+    }
+
+    /**
+     * Load a file written by rf24SpiRecorder.dump()
+     * @param file capture
+     * @return the transport, positioned at the first record
+     * @throws IOException when the file can't be read or isn't a capture
+     */
+    public static rf24ReplayTransport load(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Load a capture from a stream
+     * @param in capture, read to the end of the records, not closed
+     * @return the transport, positioned at the first record
+     * @throws IOException when the stream can't be read or isn't a capture
+     */
+    public static rf24ReplayTransport load(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] raw = new byte[rf24SpiRecorder.HEADER_SIZE];
+        data.readFully(raw);
+        ByteBuffer header = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != rf24SpiRecorder.FILE_MAGIC || header.getShort() != rf24SpiRecorder.FILE_VERSION
+                || header.getShort() != rf24SpiRecorder.RECORD_SIZE)
+            throw new IOException("Not a rf24SpiRecorder capture");
+        int count = header.getInt();
+
+        byte[] body = new byte[count * rf24SpiRecorder.RECORD_SIZE];
+        data.readFully(body);
+        return new rf24ReplayTransport(ByteBuffer.wrap(body), count);
+    }
+
+    @Override
+    public boolean open() {
+        return true;
+    }
+
+    @Override
+    public void transfer(byte[] tx, byte[] rx, int len) throws IOException {
+        if (len <= 0)
+            return;
+        int cmd = tx[0] & 0xFF;
+        boolean poll = is_poll(cmd);
+
+        int record = next_spi(position);
+        // skip the recorded polls the driver doesn't repeat
+        while (record >= 0 && !matches(record, cmd) && is_poll(mosi(record, 0))) {
+            record = next_spi(record + 1);
+        }
+
+        if (record < 0 || !matches(record, cmd)) {
+            if (!poll)
+                mismatches++;
+            if (poll || record < 0) {
+                // extra poll or end of the capture: answer without consuming a record
+                synthesized++;
+                rx[0] = last_status;
+                for (int i = 1; i < len; i++)
+                    rx[i] = (cmd == NOP || cmd == STATUS) ? last_status : 0;
+                if (cmd == FIFO_STATUS && len > 1)
+                    rx[1] = 0x11;       // RX and TX FIFO empty
+                return;
+            }
+        }
+
+        int base = record * rf24SpiRecorder.RECORD_SIZE;
+        int stored = records.get(base + rf24SpiRecorder.OFFSET_LENGTH);
+        for (int i = 0; i < len; i++)
+            rx[i] = i < stored ? records.get(base + rf24SpiRecorder.OFFSET_MISO + i) : 0;
+        last_status = rx[0];
+        position = record + 1;
+    }
+
+    /**
+     * @param from first record to look at
+     * @return index of the next SPI record, -1 at the end of the capture
+     */
+    private int next_spi(int from) {
+        for (int r = from; r < count; r++) {
+            if (records.get(r * rf24SpiRecorder.RECORD_SIZE + rf24SpiRecorder.OFFSET_KIND) == rf24SpiRecorder.KIND_SPI)
+                return r;
+        }
+        return -1;
+    }
+
+    private int mosi(int record, int index) {
+        return records.get(record * rf24SpiRecorder.RECORD_SIZE + rf24SpiRecorder.OFFSET_MOSI + index) & 0xFF;
+    }
+
+    private boolean matches(int record, int cmd) {
+        return mosi(record, 0) == cmd;
+    }
+
+    /**
+     * @return true for commands only reading volatile state
+     */
+    private static boolean is_poll(int cmd) {
+        if (cmd == NOP)
+            return true;
+        if (cmd > R_REGISTER_MAX)
+            return false;
+        return cmd == STATUS || cmd == OBSERVE_TX || cmd == RPD || cmd == FIFO_STATUS;
+    }
+
+    @Override
+    public void ce(boolean level) {
+        // CE edges are in the capture for the timing analysis, the replay doesn't need them
+    }
+
+    @Override
+    public int getSpeed() {
+        return spi_speed;
+    }
+
+    @Override
+    public void setSpeed(int hz) {
+        spi_speed = hz;
+    }
+
+    @Override
+    public boolean openIrq(String pinName, Runnable onEdge) {
+        return false;
+    }
+
+    @Override
+    public void closeIrq() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return true when every record was consumed
+     */
+    public boolean isFinished() {
+        return next_spi(position) < 0;
+    }
+
+    /**
+     * @return index of the next record
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return number of records of the capture
+     */
+    public int getRecordCount() {
+        return count;
+    }
+
+    /**
+     * @return transactions of the driver that didn't match the capture (polls excluded)
+     */
+    public long getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * @return transactions answered without a record (extra polls, end of the capture)
+     */
+    public long getSynthesized() {
+        return synthesized;
+    }
+
+    /**
+     * @param record record index
+     * @return System.nanoTime() of the recorded transaction, for the timing analysis
+     */
+    public long getTime(int record) {
+        return records.getLong(record * rf24SpiRecorder.RECORD_SIZE + rf24SpiRecorder.OFFSET_TIME);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Per destination auto-retransmit controller.
+ *
+ * The radio reports every acknowledged transmission (delivered or not, and the number of
+ * retransmissions from ARC_CNT of OBSERVE_TX) for the address open for writing. The tuner keeps
+ * exponentially weighted averages per destination and picks the ARD/ARC pair used the next time
+ * the address is opened:
+ * - healthy destinations (delivery rate at target) get a retry limit just above the retries
+ *   they actually need (mean + 2 standard deviations), so a node that went away doesn't cost
+ *   15 retransmissions per packet
+ * - marginal destinations (delivery rate below target) get the full 15 retries, and the retry
+ *   delay is stretched with the mean retries to get past interference bursts
+ *
+ * The configured setRetries() values are the starting point and the minimum delay, so the
+ * staggered delays of rf24Network.begin() are kept. Data rate isn't changed, both ends of a
+ * link have to agree on it.
+ *
+ * {@code
+ * radio.setRetryTuner(new rf24RetryTuner());
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.util.Arrays;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24RetryTuner {
+
+    /** Default target delivery rate */
+    public static final double DEFAULT_TARGET = 0.95;
+    /** Weight of a new sample in the averages */
+    private static final float ALPHA = 1.0f / 16;
+    /** Samples needed before the settings of a destination are changed */
+    private static final int MIN_SAMPLES = 8;
+    /** Lowest retry limit given to a healthy destination */
+    private static final int MIN_COUNT = 3;
+    /** Retries added to the retry limit of a healthy destination */
+    private static final int COUNT_MARGIN = 2;
+    /** Maximum number of destinations tracked, further destinations keep the configured values */
+    private static final int MAX_DESTINATIONS = 256;
+
+    private final double target;
+
+    private final rf24AddressMap slots = new rf24AddressMap(16);
+    /** Per destination state, indexed by the slot of the address */
+    private float[] delivery = new float[16];
+    private float[] retries = new float[16];
+    private float[] retries2 = new float[16];
+    private int[] samples = new int[16];
+
+    /**
+     * Constructor, target delivery rate DEFAULT_TARGET
+     */
+    public rf24RetryTuner() {
+        this(DEFAULT_TARGET);
+    }
+
+    /**
+     * Constructor
+     * @param target delivery rate to hold (0..1), e.g. 0.95
+     */
+    public rf24RetryTuner(double target) {
+        this.target = target;
+    }
+
+    /**
+     * Record the outcome of an acknowledged transmission
+     * @param address pipe address the payload was sent to, see rf24AddressMap.key()
+     * @param delivered true if the payload was acknowledged
+     * @param arc retransmissions needed (or spent) for the payload
+     */
+    public synchronized void record(long address, boolean delivered, int arc) {
+        int slot = slot(address, true);
+        if (slot < 0)
+            return;
+
+        if (samples[slot] == 0) {
+            delivery[slot] = delivered ? 1 : 0;
+        } else {
+            delivery[slot] += ALPHA * ((delivered ? 1 : 0) - delivery[slot]);
+        }
+        if (delivered) {
+            retries[slot] += ALPHA * (arc - retries[slot]);
+            retries2[slot] += ALPHA * (arc * arc - retries2[slot]);
+        }
+        samples[slot]++;
+    }
+
+    /**
+     * Auto retransmit delay for a destination
+     * @param address pipe address
+     * @param configured delay configured with setRetries() (0..15)
+     * @return delay to use, 250us steps (0..15)
+     */
+    public synchronized int getDelay(long address, int configured) {
+        int slot = slot(address, false);
+        if (slot < 0 || samples[slot] < MIN_SAMPLES || delivery[slot] >= target)
+            return configured;
+        return Math.min(15, configured + Math.round(retries[slot]));
+    }
+
+    /**
+     * Auto retransmit count for a destination
+     * @param address pipe address
+     * @param configured count configured with setRetries() (0..15)
+     * @return count to use (0..15)
+     */
+    public synchronized int getCount(long address, int configured) {
+        int slot = slot(address, false);
+        if (slot < 0 || samples[slot] < MIN_SAMPLES)
+            return configured;
+        if (delivery[slot] < target)
+            return 15;
+        double deviation = Math.sqrt(Math.max(0, retries2[slot] - retries[slot] * retries[slot]));
+        int count = (int) Math.ceil(retries[slot] + 2 * deviation) + COUNT_MARGIN;
+        return Math.max(MIN_COUNT, Math.min(15, count));
+    }
+
+    /**
+     * @param address pipe address
+     * @return averaged delivery rate (0..1), -1 if the destination isn't known
+     */
+    public synchronized double getDeliveryRate(long address) {
+        int slot = slot(address, false);
+        return slot < 0 ? -1 : delivery[slot];
+    }
+
+    /**
+     * @param address pipe address
+     * @return averaged retransmissions of the delivered payloads, -1 if the destination isn't known
+     */
+    public synchronized double getMeanRetries(long address) {
+        int slot = slot(address, false);
+        return slot < 0 ? -1 : retries[slot];
+    }
+
+    /**
+     * Forget all destinations
+     */
+    public synchronized void reset() {
+        slots.clear();
+    }
+
+    /**
+     * Slot of a destination
+     * @param address pipe address
+     * @param create add the destination if it isn't known
+     * @return slot, -1 if not known (or the table is full)
+     */
+    private int slot(long address, boolean create) {
+        int slot = slots.get(address, -1);
+        if (slot >= 0 || !create || slots.size() >= MAX_DESTINATIONS)
+            return slot;
+
+        slot = slots.size();
+        if (slot == samples.length) {
+            int length = samples.length * 2;
+            delivery = Arrays.copyOf(delivery, length);
+            retries = Arrays.copyOf(retries, length);
+            retries2 = Arrays.copyOf(retries2, length);
+            samples = Arrays.copyOf(samples, length);
+        }
+        delivery[slot] = 0;
+        retries[slot] = 0;
+        retries2[slot] = 0;
+        samples[slot] = 0;
+        slots.put(address, slot);
+        return slot;
+    }
+}
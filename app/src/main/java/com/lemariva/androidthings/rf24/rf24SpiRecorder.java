@@ -0,0 +1,213 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Recorder of the SPI transactions (and CE edges) of one {@link rf24}.
+ *
+ * Every transaction is stored as a fixed size record in a ring of preallocated off-heap memory
+ * (a direct ByteBuffer), so recording doesn't allocate: when the ring is full the oldest
+ * records are overwritten. dump() writes the records to a compact binary file, which
+ * {@link rf24ReplayTransport} feeds back through the driver without hardware.
+ *
+ * Record (RECORD_SIZE bytes, little endian):
+ * <pre>
+ *  0  long   System.nanoTime() of the transaction
+ *  8  byte   kind: KIND_SPI, KIND_CE_LOW or KIND_CE_HIGH
+ *  9  byte   length of the transaction in bytes (command + data, max MAX_TRANSFER)
+ * 10  byte[] MOSI (command byte first), MAX_TRANSFER bytes
+ * 43  byte[] MISO (status byte first), MAX_TRANSFER bytes
+ * 76  int    sequence number
+ * </pre>
+ * File: FILE_MAGIC, FILE_VERSION (short), RECORD_SIZE (short), record count (int), records
+ * overwritten before the dump (long), then the records, oldest first.
+ *
+ * {@code
+ * rf24SpiRecorder recorder = new rf24SpiRecorder(100000);   // 8MB off-heap
+ * radio.setSpiRecorder(recorder);
+ * ...
+ * recorder.dump(new File(getFilesDir(), "spi.rec"));
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24SpiRecorder {
+
+    /** Size of a record in bytes */
+    public static final int RECORD_SIZE = 80;
+    /** Longest transaction stored: command byte + 32 bytes payload */
+    public static final int MAX_TRANSFER = 33;
+    /** "RF24" */
+    public static final int FILE_MAGIC = 0x34324652;
+    public static final short FILE_VERSION = 1;
+    /** Size of the file header in bytes */
+    public static final int HEADER_SIZE = 20;
+
+    /** Record kinds */
+    public static final byte KIND_SPI = 0;
+    public static final byte KIND_CE_LOW = 1;
+    public static final byte KIND_CE_HIGH = 2;
+
+    static final int OFFSET_TIME = 0;
+    static final int OFFSET_KIND = 8;
+    static final int OFFSET_LENGTH = 9;
+    static final int OFFSET_MOSI = 10;
+    static final int OFFSET_MISO = OFFSET_MOSI + MAX_TRANSFER;
+    static final int OFFSET_SEQUENCE = OFFSET_MISO + MAX_TRANSFER;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    /** Records written since the start (or clear()), the next one goes to next % capacity */
+    private long next;
+    private volatile boolean enabled = true;
+
+    /**
+     * Constructor, allocates capacity * RECORD_SIZE bytes off-heap
+     * @param capacity number of records kept
+     */
+    public rf24SpiRecorder(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid recorder capacity " + capacity);
+        this.capacity = capacity;
+        ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Record an SPI transaction (radio thread)
+     * @param mosi bytes sent, command byte first
+     * @param miso bytes received, status byte first
+     * @param len length of the transaction
+     */
+    public synchronized void record(byte[] mosi, byte[] miso, int len) {
+        if (!enabled)
+            return;
+        int base = start(KIND_SPI, len);
+        int stored = Math.min(len, MAX_TRANSFER);
+        for (int i = 0; i < stored; i++) {
+            ring.put(base + OFFSET_MOSI + i, mosi[i]);
+            ring.put(base + OFFSET_MISO + i, miso[i]);
+        }
+    }
+
+    /**
+     * Record a CE edge (radio thread)
+     * @param level new level of the CE pin
+     */
+    public synchronized void recordCe(boolean level) {
+        if (!enabled)
+            return;
+        start(level ? KIND_CE_HIGH : KIND_CE_LOW, 0);
+    }
+
+    /**
+     * Fill the header of the next record
+     * @return offset of the record in the ring
+     */
+    private int start(byte kind, int len) {
+        int base = (int) (next % capacity) * RECORD_SIZE;
+        ring.putLong(base + OFFSET_TIME, System.nanoTime());
+        ring.put(base + OFFSET_KIND, kind);
+        ring.put(base + OFFSET_LENGTH, (byte) Math.min(len, MAX_TRANSFER));
+        ring.putInt(base + OFFSET_SEQUENCE, (int) next);
+        next++;
+        return base;
+    }
+
+    /**
+     * Pause or resume the recording
+     * @param on false to pause
+     */
+    public void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return number of records held (at most the capacity)
+     */
+    public synchronized int size() {
+        return (int) Math.min(next, capacity);
+    }
+
+    /**
+     * @return number of records overwritten because the ring was full
+     */
+    public synchronized long getOverwritten() {
+        return Math.max(0, next - capacity);
+    }
+
+    /**
+     * Forget all records
+     */
+    public synchronized void clear() {
+        next = 0;
+    }
+
+    /**
+     * Write the records to a file, oldest first
+     * @param file destination, overwritten
+     * @throws IOException when the file can't be written
+     */
+    public void dump(File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            dump(out);
+        }
+    }
+
+    /**
+     * Write the records to a stream, oldest first. The recording continues afterwards: the records
+     * are copied under the lock, the stream is written without holding it.
+     * @param out destination, not closed
+     * @throws IOException when the stream can't be written
+     */
+    public void dump(OutputStream out) throws IOException {
+        int count;
+        long overwritten;
+        byte[] records;
+        synchronized (this) {
+            count = size();
+            overwritten = getOverwritten();
+            records = new byte[count * RECORD_SIZE];
+            ByteBuffer view = ring.duplicate();
+            int first = (int) ((next - count) % capacity);
+            int tail = Math.min(count, capacity - first);
+            view.position(first * RECORD_SIZE);
+            view.get(records, 0, tail * RECORD_SIZE);
+            view.position(0);
+            view.get(records, tail * RECORD_SIZE, (count - tail) * RECORD_SIZE);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(FILE_MAGIC)
+              .putShort(FILE_VERSION)
+              .putShort((short) RECORD_SIZE)
+              .putInt(count)
+              .putLong(overwritten);
+        out.write(header.array());
+        out.write(records);
+        out.flush();
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24 transport over the Android Things peripheral API (SpiDevice and Gpio), pins from
+ * {@link BoardDefaults}.
+ *
+ * The chip select is the hardware CS line of the SPI port, or a GPIO for more radios than the
+ * board has SPI ports: the radios with GPIO chip selects share one SpiDevice per port (opened
+ * once, transfers serialized, clock set per radio) and the hardware CS line of that port must
+ * not be wired to a radio.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+import com.google.android.things.pio.PeripheralManager;
+import com.google.android.things.pio.SpiDevice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+@SuppressWarnings("WeakerAccess")
+public class rf24SpiTransport implements rf24Transport {
+
+    private static final String TAG = rf24SpiTransport.class.getSimpleName();
+
+    /** PeripheralManagerService */
+    private PeripheralManager pioService;
+    /** SPI device */
+    private SpiDevice mDevice;
+    /** SPI port shared with other radios, null with a hardware chip select */
+    private SharedPort shared;
+    /** GPIO connected to the CSN pin, null with a hardware chip select */
+    private Gpio mCSNpin;
+    /** CE (GPIO 'device') */
+    private Gpio mCEpin;
+    /** GPIO connected to the IRQ pin of the module */
+    private Gpio mIRQpin;
+    /** Thread delivering the IRQ edge callbacks */
+    private HandlerThread irqThread;
+    /** Called on IRQ falling edges */
+    private Runnable irqHandler;
+
+    /** SPI port name, null: taken from BoardDefaults in open() */
+    private String spiPort;
+    /** CE pin name, null: taken from BoardDefaults in open() */
+    private String cePin;
+    /** CSN pin name, null: hardware chip select of spiPort */
+    private String csnPin;
+    /** SPI Chip select */
+    private byte csn_pin;
+    /** SPI Bus Speed */
+    private int spi_speed;
+
+    /** Ports opened for GPIO chip selects, by port name */
+    private static final HashMap<String, SharedPort> sharedPorts = new HashMap<>();
+
+    /** Calls irqHandler for every IRQ falling edge */
+    private final GpioCallback irqCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            Runnable handler = irqHandler;
+            if (handler != null)
+                handler.run();
+            return true;
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param _cspin SPI chip select (can be only 0(CS0) or 1(CS1))
+     * @param _spi_speed SPI speed in Hz ie: 8000000
+     */
+    public rf24SpiTransport(byte _cspin, int _spi_speed) {
+        this(null, null, _spi_speed);
+        csn_pin = _cspin;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param _spiPort SPI port name ie: "SPI0.0", null for the BoardDefaults port
+     * @param _cePin GPIO name connected to the CE pin ie: "BCM22", null for the BoardDefaults pin
+     * @param _spi_speed SPI speed in Hz ie: 8000000
+     */
+    public rf24SpiTransport(String _spiPort, String _cePin, int _spi_speed) {
+        spiPort = _spiPort;
+        cePin = _cePin;
+        spi_speed = _spi_speed;
+
+        try {
+            pioService = PeripheralManager.getInstance();
+        }catch(Exception e)
+        {
+            Log.e(TAG, "Unable to access PeripheralManagerService", e);
+        }
+    }
+
+    /**
+     * Constructor, chip select on a GPIO
+     *
+     * {@code
+     * // radio 2 shares SPI0.1 (CE1 not wired) with other radios with GPIO chip selects
+     * new rf24SpiTransport(BoardDefaults.getSPIPort1(), BoardDefaults.getGPIOcsn(2), BoardDefaults.getGPIOce(2), 8000000);
+     * }
+     * @param _spiPort SPI port name shared with other radios ie: "SPI0.1"
+     * @param _csnPin GPIO name connected to the CSN pin ie: "BCM12"
+     * @param _cePin GPIO name connected to the CE pin ie: "BCM25"
+     * @param _spi_speed SPI speed in Hz ie: 8000000
+     */
+    public rf24SpiTransport(String _spiPort, String _csnPin, String _cePin, int _spi_speed) {
+        this(_spiPort, _cePin, _spi_speed);
+        if (_spiPort == null || _csnPin == null)
+            throw new IllegalArgumentException("GPIO chip select needs the SPI port and the CSN pin");
+        csnPin = _csnPin;
+    }
+
+    @Override
+    public boolean open() {
+        if (pioService == null)
+            return false;
+
+        if (csnPin != null)
+            return open_shared() && open_ce();
+
+        if (spiPort == null) {
+            switch (csn_pin) {     //Ensure valid hardware CS pin
+                case 1:
+                    spiPort = BoardDefaults.getSPIPort1();
+                    break;
+                default:
+                    spiPort = BoardDefaults.getSPIPort0();
+                    break;
+            }
+        }
+        if (cePin == null)
+            cePin = BoardDefaults.getGPIOce();
+
+        // Initializing SPI
+        try {
+            mDevice = pioService.openSpiDevice(spiPort);
+
+            // Low clock, leading edge transfer
+            mDevice.setMode(SpiDevice.MODE0);
+
+            mDevice.setFrequency(spi_speed);     // _spi_speed MHz
+            mDevice.setBitsPerWord(8);           // 8 BPW
+            mDevice.setBitJustification(0);  // MSB first
+
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to access SPI device", e);
+            return false;
+        }
+
+        return open_ce();
+    }
+
+    /**
+     * Open the CE pin
+     * @return false if the GPIO couldn't be opened
+     */
+    private boolean open_ce() {
+        try {
+            mCEpin = pioService.openGpio(cePin);
+            mCEpin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            Log.i(TAG, "CE pin initialized!");
+
+        } catch (IOException e) {
+            Log.e(TAG, "Error on initializing CE pin", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Open the shared SPI port (first radio on it) and the CSN pin
+     * @return false if the SPI device or the GPIO couldn't be opened
+     */
+    private boolean open_shared() {
+        synchronized (sharedPorts) {
+            SharedPort port = sharedPorts.get(spiPort);
+            if (port == null) {
+                try {
+                    SpiDevice device = pioService.openSpiDevice(spiPort);
+                    device.setMode(SpiDevice.MODE0);
+                    device.setFrequency(spi_speed);
+                    device.setBitsPerWord(8);
+                    device.setBitJustification(0);
+                    port = new SharedPort(device, spi_speed);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to access SPI device", e);
+                    return false;
+                }
+                sharedPorts.put(spiPort, port);
+            }
+            port.users++;
+            shared = port;
+        }
+
+        try {
+            mCSNpin = pioService.openGpio(csnPin);
+            mCSNpin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);     // CSN is active low
+            Log.i(TAG, "CSN pin initialized!");
+        } catch (IOException e) {
+            Log.e(TAG, "Error on initializing CSN pin", e);
+            try {
+                release_shared();
+            } catch (IOException ce) {
+                Log.e(TAG, "Error on closing SPI device", ce);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Leave the shared SPI port, the last radio closes it
+     * @throws IOException when the SPI device couldn't be closed
+     */
+    private void release_shared() throws IOException {
+        synchronized (sharedPorts) {
+            SharedPort port = shared;
+            shared = null;
+            if (port != null && --port.users == 0) {
+                sharedPorts.remove(spiPort);
+                port.device.close();
+            }
+        }
+    }
+
+    @Override
+    public void transfer(byte[] tx, byte[] rx, int len) throws IOException {
+        if (shared == null) {
+            mDevice.transfer(tx, rx, len);
+            return;
+        }
+        // one transaction at a time on the shared port, with the clock of this radio
+        synchronized (shared) {
+            if (shared.speed != spi_speed) {
+                shared.device.setFrequency(spi_speed);
+                shared.speed = spi_speed;
+            }
+            mCSNpin.setValue(false);
+            try {
+                shared.device.transfer(tx, rx, len);
+            } finally {
+                mCSNpin.setValue(true);
+            }
+        }
+    }
+
+    @Override
+    public void ce(boolean level) {
+        if (mCEpin == null) {
+            return;
+        }
+        try {
+            // Toggle the GPIO state
+            mCEpin.setValue(level);
+
+        } catch (IOException e) {
+            Log.e(TAG, "Error on PeripheralIO API", e);
+        }
+    }
+
+    @Override
+    public int getSpeed() {
+        return spi_speed;
+    }
+
+    @Override
+    public void setSpeed(int hz) throws IOException {
+        if (mDevice != null)
+            mDevice.setFrequency(hz);
+        spi_speed = hz;     // a shared port takes it on the next transfer
+    }
+
+    @Override
+    public boolean openIrq(String pinName, Runnable onEdge) {
+        closeIrq();
+
+        try {
+            irqHandler = onEdge;
+            mIRQpin = pioService.openGpio(pinName);
+            mIRQpin.setDirection(Gpio.DIRECTION_IN);
+            mIRQpin.setActiveType(Gpio.ACTIVE_HIGH);
+            mIRQpin.setEdgeTriggerType(Gpio.EDGE_FALLING);   // IRQ is active low
+
+            irqThread = new HandlerThread(TAG + "-irq");
+            irqThread.start();
+            mIRQpin.registerGpioCallback(new Handler(irqThread.getLooper()), irqCallback);
+            Log.i(TAG, "IRQ pin initialized!");
+
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error on initializing IRQ pin", e);
+            closeIrq();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void closeIrq() {
+        if (mIRQpin != null) {
+            mIRQpin.unregisterGpioCallback(irqCallback);
+            try {
+                mIRQpin.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error on closing IRQ pin", e);
+            } finally {
+                mIRQpin = null;
+            }
+        }
+        if (irqThread != null) {
+            irqThread.quitSafely();
+            irqThread = null;
+        }
+        irqHandler = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // closing IRQ pin
+        closeIrq();
+
+        // closing spi
+        if (mDevice != null) {
+            try {
+                mDevice.close();
+            } finally {
+                mDevice = null;
+            }
+        }
+        release_shared();
+
+        // closing mCSNpin
+        if (mCSNpin != null) {
+            try {
+                mCSNpin.close();
+            } finally {
+                mCSNpin = null;
+            }
+        }
+
+        // closing mCEpin
+        if (mCEpin != null) {
+            try {
+                mCEpin.close();
+            } finally {
+                mCEpin = null;
+            }
+        }
+    }
+
+    /**
+     * SPI port opened once for the radios with GPIO chip selects
+     */
+    private static final class SharedPort {
+        final SpiDevice device;
+        /** Number of open transports on the port */
+        int users;
+        /** Clock the device is set to */
+        int speed;
+
+        SharedPort(SpiDevice device, int speed) {
+            this.device = device;
+            this.speed = speed;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Bounded lock-free single-producer/single-consumer ring buffer.
+ *
+ * Exactly one thread may call offer() and exactly one (other) thread may call poll()/peek().
+ * Each side publishes its index with an ordered store and caches the index of the other side,
+ * so the common case costs no volatile read and no lock. Used between the radio owner thread
+ * and the application thread, see {@link rf24RadioThread}.
+ *
+ * {@code
+ * rf24SpscRing<rf24NetworkFrame> ring = new rf24SpscRing<>(64);
+ * // producer thread
+ * if (!ring.offer(frame)) dropped++;
+ * // consumer thread
+ * rf24NetworkFrame frame = ring.poll();
+ * }
+ *
+ * @param <E> element type
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+@SuppressWarnings("WeakerAccess")
+public final class rf24SpscRing<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+
+    /** Next slot to read, written by the consumer only */
+    private final AtomicLong head = new AtomicLong();
+    /** Next slot to write, written by the producer only */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Producer's copy of head, refreshed when the ring looks full */
+    private long head_cache;
+    /** Consumer's copy of tail, refreshed when the ring looks empty */
+    private long tail_cache;
+
+    /**
+     * Constructor
+     * @param capacity number of elements, rounded up to a power of two
+     */
+    public rf24SpscRing(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an element (producer thread)
+     * @param element element to add, not null
+     * @return true if added, false if the ring is full
+     */
+    public boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException();
+        long t = tail.get();
+        if (t - head_cache >= buffer.length) {
+            head_cache = head.get();
+            if (t - head_cache >= buffer.length)
+                return false;
+        }
+        buffer[(int) t & mask] = element;
+        tail.lazySet(t + 1);            // publishes the element
+        return true;
+    }
+
+    /**
+     * Remove the oldest element (consumer thread)
+     * @return the element, null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= tail_cache) {
+            tail_cache = tail.get();
+            if (h >= tail_cache)
+                return null;
+        }
+        int slot = (int) h & mask;
+        E element = (E) buffer[slot];
+        buffer[slot] = null;
+        head.lazySet(h + 1);            // releases the slot
+        return element;
+    }
+
+    /**
+     * Read the oldest element without removing it (consumer thread)
+     * @return the element, null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head.get();
+        if (h >= tail_cache) {
+            tail_cache = tail.get();
+            if (h >= tail_cache)
+                return null;
+        }
+        return (E) buffer[(int) h & mask];
+    }
+
+    /**
+     * @return number of elements, exact only if called from the producer or consumer thread
+     */
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, buffer.length));
+    }
+
+    /**
+     * @return true if the ring holds no element
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return maximum number of elements
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Shared timing functions (Arduino style delay(), delayMicroseconds() and millis()) for the
+ * radio, network, mesh and the activity.
+ *
+ * Waits are hybrid: the thread is parked for the long part of the wait and spins only for the
+ * last few microseconds. The spin threshold is calibrated against the scheduler wake-up latency
+ * of the board when the class is loaded, see calibrate().
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+@SuppressWarnings("WeakerAccess")
+public final class rf24Timer {
+
+    private static final String TAG = rf24Timer.class.getSimpleName();
+
+    /** Number of park samples taken by calibrate() */
+    private static final int CALIBRATION_SAMPLES = 200;
+    /** Park time used by calibrate() in ns */
+    private static final long CALIBRATION_PARK = 50000;
+    /** Added to the measured park overshoot in ns */
+    private static final long SPIN_MARGIN = 10000;
+    /** Limits of the spin threshold in ns */
+    private static final long SPIN_MIN = 20000;
+    private static final long SPIN_MAX = 2000000;
+
+    /** Waits shorter than this (ns) are spun, longer waits are parked until this much is left */
+    private static volatile long spinThreshold = 100000;
+
+    /** Number of timed waits */
+    private static final AtomicLong samples = new AtomicLong();
+    /** Sum of the wake-up errors (late wake-ups) in ns */
+    private static final AtomicLong errorSum = new AtomicLong();
+    /** Largest wake-up error in ns */
+    private static final AtomicLong errorMax = new AtomicLong();
+
+    static {
+        calibrate();
+    }
+
+    private rf24Timer() { }
+
+    /**
+     * Measure how late the scheduler wakes up a parked thread and set the spin threshold
+     * accordingly (90th percentile plus a margin). Called once when the class is loaded,
+     * can be called again e.g. after changing the CPU governor.
+     */
+    public static synchronized void calibrate() {
+        long[] overshoot = new long[CALIBRATION_SAMPLES];
+
+        for (int idx = 0; idx < CALIBRATION_SAMPLES; idx++) {
+            long start = System.nanoTime();
+            LockSupport.parkNanos(CALIBRATION_PARK);
+            overshoot[idx] = System.nanoTime() - start - CALIBRATION_PARK;
+        }
+        Arrays.sort(overshoot);
+
+        long threshold = overshoot[CALIBRATION_SAMPLES * 9 / 10] + SPIN_MARGIN;
+        spinThreshold = Math.max(SPIN_MIN, Math.min(SPIN_MAX, threshold));
+
+        Log.i(TAG, "Park overshoot median " + overshoot[CALIBRATION_SAMPLES / 2] + "ns, spin threshold " + spinThreshold + "ns");
+        resetStats();
+    }
+
+    /**
+     * Delay in milliseconds
+     * @param milliseconds Delay in milliseconds
+     */
+    public static void delay(long milliseconds) {
+        delayNanos(milliseconds * 1000000L);
+    }
+
+    /**
+     * Delay in microseconds
+     * @param microseconds Delay in microseconds
+     */
+    public static void delayMicroseconds(long microseconds) {
+        delayNanos(microseconds * 1000L);
+    }
+
+    /**
+     * Delay in nanoseconds
+     *
+     * Parks the calling thread until spinThreshold ns are left, then spins on System.nanoTime().
+     * The interrupt flag is cleared while parking (a set flag ends every park at once and the
+     * wait would spin) and set again before returning.
+     * @param nanoseconds Delay in nanoseconds
+     */
+    public static void delayNanos(long nanoseconds) {
+        long deadline = System.nanoTime() + nanoseconds;
+        long remaining = nanoseconds;
+        long spin = spinThreshold;
+        boolean interrupted = false;
+
+        while (remaining > spin) {
+            if (Thread.interrupted())
+                interrupted = true;
+            LockSupport.parkNanos(remaining - spin);
+            remaining = deadline - System.nanoTime();
+        }
+        while (remaining > 0) {
+            remaining = deadline - System.nanoTime();
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        long error = -remaining;
+        samples.incrementAndGet();
+        errorSum.addAndGet(error);
+        long max = errorMax.get();
+        while (error > max && !errorMax.compareAndSet(max, error))
+            max = errorMax.get();
+    }
+
+    /**
+     * Monotonic time in milliseconds, only useful to measure intervals
+     * @return long
+     */
+    public static long millis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Monotonic time in microseconds, only useful to measure intervals
+     * @return long
+     */
+    public static long micros() {
+        return System.nanoTime() / 1000L;
+    }
+
+    /**
+     * @return current spin threshold in ns
+     */
+    public static long getSpinThreshold() {
+        return spinThreshold;
+    }
+
+    /**
+     * @return number of waits since the last resetStats()
+     */
+    public static long getSampleCount() {
+        return samples.get();
+    }
+
+    /**
+     * @return mean wake-up error (how late the waits returned) in ns
+     */
+    public static long getMeanError() {
+        long count = samples.get();
+        return count == 0 ? 0 : errorSum.get() / count;
+    }
+
+    /**
+     * @return largest wake-up error in ns
+     */
+    public static long getMaxError() {
+        return errorMax.get();
+    }
+
+    /**
+     * Clear the timing-error statistics
+     */
+    public static void resetStats() {
+        samples.set(0);
+        errorSum.set(0);
+        errorMax.set(0);
+    }
+
+    /**
+     * @return timing-error statistics, for logging
+     */
+    public static String getStats() {
+        return "waits " + getSampleCount() + ", mean error " + getMeanError() + "ns, max error " + getMaxError()
+                + "ns, spin threshold " + spinThreshold + "ns";
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Physical layer of the rf24 driver: SPI transfers, the CE pin and the IRQ pin.
+ *
+ * {@link rf24SpiTransport} talks to a real module over the Android Things peripheral API,
+ * {@link rf24Emulator} is an in-process nRF24L01+ for running the driver, network and mesh
+ * on machines without radio hardware.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import java.io.IOException;
+
+@SuppressWarnings("WeakerAccess")
+public interface rf24Transport extends AutoCloseable {
+
+    /**
+     * Open the SPI bus and the CE pin, called by {@link rf24#begin()}
+     * @return true if the transport is ready, false otherwise
+     */
+    boolean open();
+
+    /**
+     * Full-duplex SPI transfer of one command frame (one CSN low period)
+     * @param tx bytes shifted out, tx[0] is the command
+     * @param rx bytes shifted in, rx[0] is the status register
+     * @param len number of bytes
+     * @throws IOException when write/read on spi bus doesn't work
+     */
+    void transfer(byte[] tx, byte[] rx, int len) throws IOException;
+
+    /**
+     * Set the CE pin
+     * @param level HIGH to enable the RX/TX role, LOW for standby
+     */
+    void ce(boolean level);
+
+    /**
+     * @return SPI clock in Hz
+     */
+    int getSpeed();
+
+    /**
+     * Change the SPI clock
+     * @param hz SPI clock in Hz
+     * @throws IOException when the clock can't be set
+     */
+    void setSpeed(int hz) throws IOException;
+
+    /**
+     * Start watching the IRQ pin. onEdge is called for every falling edge (IRQ asserted).
+     * @param pinName GPIO connected to the IRQ pin, ignored by transports without GPIOs
+     * @param onEdge called on the falling edge, must not call back into the transport
+     * @return true if the IRQ pin is watched, false if the driver has to poll the status register
+     */
+    boolean openIrq(String pinName, Runnable onEdge);
+
+    /**
+     * Stop watching the IRQ pin, can be called if the pin isn't watched
+     */
+    void closeIrq();
+
+    /**
+     * Release SPI bus, CE and IRQ pins
+     * @throws IOException when the devices can't be closed
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Delivery result of an asynchronous write, see {@link rf24#writeAsync(byte[], int, int, boolean)}
+ * and rf24Network.writeAsync().
+ *
+ * {@code
+ * radio.writeAsync(data, 0, data.length, false).thenAccept(result -> {
+ *     if (!result.isAcked())
+ *         Log.i(TAG, "Send failed: " + result);
+ * });
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+@SuppressWarnings("WeakerAccess")
+public final class rf24TxResult {
+
+    /** The payload was acknowledged (auto-ack or NETWORK_ACK), or sent without ACK request */
+    public static final int ACKED = 0;
+    /** The radio gave up after the configured number of retries (MAX_RT) */
+    public static final int MAX_RETRIES = 1;
+    /** No answer in time: the radio didn't respond or the NETWORK_ACK didn't arrive */
+    public static final int TIMEOUT = 2;
+
+    private final int status;
+    private final int retries;
+    private final long latency;
+
+    /**
+     * Constructor
+     * @param status ACKED, MAX_RETRIES or TIMEOUT
+     * @param retries retransmissions of the (first hop) payload, ARC_CNT of OBSERVE_TX
+     * @param latency time from the write call to the result in us
+     */
+    public rf24TxResult(int status, int retries, long latency) {
+        this.status = status;
+        this.retries = retries;
+        this.latency = latency;
+    }
+
+    /**
+     * @return ACKED, MAX_RETRIES or TIMEOUT
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if the payload was delivered
+     */
+    public boolean isAcked() {
+        return status == ACKED;
+    }
+
+    /**
+     * @return retransmissions measured by the radio (ARC_CNT of OBSERVE_TX), 0..15
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return time from the write call to the result in us
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        String name;
+        switch (status) {
+            case ACKED:
+                name = "ACKED";
+                break;
+            case MAX_RETRIES:
+                name = "MAX_RETRIES";
+                break;
+            default:
+                name = "TIMEOUT";
+                break;
+        }
+        return name + " retries=" + retries + " latency=" + latency + "us";
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24Network ACK payloads: a payload is only completed once it left with the ACK of a frame.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class rf24AckPayloadTest {
+
+    private static final int W_ACK_PAYLOAD = 0xA8;
+    private static final byte UPLINK = 10;
+    private static final byte DOWNLINK = 11;
+
+    /** Transport running a hook right before the next W_ACK_PAYLOAD reaches the chip */
+    static class RacingTransport extends rf24WarmBeginTest.CountingTransport {
+        Runnable beforeAckPayload;
+
+        RacingTransport(rf24Transport _transport) {
+            super(_transport);
+        }
+
+        @Override
+        public void transfer(byte[] tx, byte[] rx, int len) throws IOException {
+            Runnable hook = beforeAckPayload;
+            if (hook != null && (tx[0] & 0xF8) == W_ACK_PAYLOAD) {
+                beforeAckPayload = null;
+                hook.run();
+            }
+            super.transfer(tx, rx, len);
+        }
+    }
+
+    private static int downlinks(rf24Network network) throws IOException {
+        network.update();
+        int got = 0;
+        rf24NetworkFrame frame;
+        while ((frame = network.readFrame()) != null) {
+            if (frame.header.type == DOWNLINK)
+                got++;
+            network.recycle(frame);
+        }
+        return got;
+    }
+
+    @Test
+    public void frameReceivedBeforeTheLoadDoesNotConfirm() throws Exception {
+        rf24Air air = new rf24Air();
+        RacingTransport racing = new RacingTransport(new rf24Emulator(air));
+        rf24 r0 = new rf24(racing), r1 = new rf24(new rf24Emulator(air));
+        final rf24Network master = new rf24Network(r0), child = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        master.enableAckPayloads();
+        child.enableAckPayloads();
+        master.begin(90, (short) 00);
+        child.begin(90, (short) 01);
+
+        // the child's frame arrives after the master found its RX FIFO empty, before the load
+        racing.beforeAckPayload = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    assertTrue(child.write(new rf24NetworkHeader((short) 00, UPLINK), new int[] {1}, (short) 1));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        CompletableFuture<rf24TxResult> future =
+                master.writeAckPayload(new rf24NetworkHeader((short) 01, DOWNLINK), new int[] {7}, (short) 1);
+        master.update();
+        master.update();
+        assertEquals(0, downlinks(child));
+        assertFalse("completed without leaving the TX FIFO", future.isDone());
+
+        // the next frame of the child takes the payload with its ACK
+        assertTrue(child.write(new rf24NetworkHeader((short) 00, UPLINK), new int[] {2}, (short) 1));
+        master.update();
+        assertTrue(future.isDone());
+        assertTrue(future.get().isAcked());
+        assertEquals(1, downlinks(child));
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * Throughput and latency of rf24Network on the simulated air medium in real time mode, to
+ * compare changes on a plain JVM (CI). Runs as a unit test (lower bounds asserted, the numbers are
+ * in the failure message) or standalone, printing the numbers:
+ *
+ * {@code
+ * ./gradlew :app:testDebugUnitTest --tests '*rf24AirBenchmark'
+ * java -cp <test classpath> com.lemariva.androidthings.rf24.rf24AirBenchmark 2000 0.05
+ * }
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class rf24AirBenchmark {
+
+    /** Result of a run */
+    static final class Result {
+        int sent;
+        int delivered;
+        long elapsed;           // ns
+        long latency_sum;       // ns, write() start to readFrame()
+        long latency_max;
+
+        double throughput() {
+            return elapsed == 0 ? 0 : delivered * 1e9 / elapsed;
+        }
+
+        long meanLatency() {
+            return delivered == 0 ? 0 : latency_sum / delivered;
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + sent + " delivered " + delivered + " in " + elapsed / 1000000 + "ms, "
+                    + String.format("%.0f", throughput()) + " msg/s, latency mean "
+                    + meanLatency() / 1000 + "us max " + latency_max / 1000 + "us";
+        }
+    }
+
+    /**
+     * Child 01 sends to master 00, one 24 byte message per round
+     * @param messages number of messages
+     * @param loss packet loss rate of the medium
+     * @return the result
+     */
+    static Result run(int messages, double loss) throws Exception {
+        rf24Air air = new rf24Air();
+        air.setRealTime(true);
+        air.setLossRate(loss);
+        rf24 r0 = new rf24(new rf24Emulator(air));
+        rf24 r1 = new rf24(new rf24Emulator(air));
+        rf24Network n0 = new rf24Network(r0), n1 = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        n0.begin(90, (short) 00);
+        n1.begin(90, (short) 01);
+
+        Result result = new Result();
+        int[] message = new int[24];
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            message[0] = i & 0xFF;
+            long sent = System.nanoTime();
+            n1.write(new rf24NetworkHeader((short) 00, (byte) 'G'), message, (short) message.length);
+            result.sent++;
+            n0.update();
+            rf24NetworkFrame frame;
+            while ((frame = n0.readFrame()) != null) {
+                long latency = System.nanoTime() - sent;
+                result.delivered++;
+                result.latency_sum += latency;
+                result.latency_max = Math.max(result.latency_max, latency);
+                n0.recycle(frame);
+            }
+        }
+        result.elapsed = System.nanoTime() - start;
+        return result;
+    }
+
+    /** Lower bounds of the unit test, far below a desktop JVM (about 700 msg/s, 1.4ms mean) */
+    private static final double MIN_THROUGHPUT = 100;
+    private static final long MAX_MEAN_LATENCY = 10000000L;     // ns
+
+    @Test
+    public void throughputAndLatency() throws Exception {
+        Result clean = run(500, 0);
+        assertTrue("no loss: " + clean, clean.delivered == clean.sent);
+        assertTrue("no loss: " + clean, clean.throughput() >= MIN_THROUGHPUT);
+        assertTrue("no loss: " + clean, clean.meanLatency() <= MAX_MEAN_LATENCY);
+
+        Result lossy = run(500, 0.05);
+        assertTrue("5% loss: " + lossy, lossy.delivered > lossy.sent * 9 / 10);
+        assertTrue("5% loss: " + lossy, lossy.throughput() >= MIN_THROUGHPUT / 2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        System.out.println(run(messages, loss));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24Mesh on the simulated air medium: master 00, relay 01 and leaf 011 with static addresses.
+ * All nodes are updated from the test thread, so the messages use types without network ACK
+ * (1..64): a routed network ACK would need the relay to run while write() waits.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class rf24MeshAirTest {
+
+    private static final short[] ADDRESSES = {00, 01, 011};
+    /** User message types without network ACK */
+    private static final byte UPLINK = 10;
+    private static final byte DOWNLINK = 11;
+
+    private final rf24Network[] networks = new rf24Network[ADDRESSES.length];
+    private final rf24Mesh[] meshes = new rf24Mesh[ADDRESSES.length];
+
+    private void build(rf24Air air) throws Exception {
+        for (int i = 0; i < ADDRESSES.length; i++) {
+            rf24 radio = new rf24(new rf24Emulator(air));
+            networks[i] = new rf24Network(radio);
+            meshes[i] = new rf24Mesh(radio, networks[i], (DatabaseHandler) null);
+            radio.begin();
+            radio.setChannel(76);
+            meshes[i].radio_channel = 76;
+            meshes[i].mesh_address = ADDRESSES[i];
+            networks[i].returnSysMsgs = true;
+            networks[i].begin(ADDRESSES[i]);
+        }
+    }
+
+    private void updateAll() throws Exception {
+        for (rf24Mesh mesh : meshes)
+            mesh.update();
+    }
+
+    @Test
+    public void relayForwardsLeafMessagesToMaster() throws Exception {
+        build(new rf24Air());
+        int ok = 0, got = 0;
+        for (int i = 0; i < 100; i++) {
+            if (networks[2].write(new rf24NetworkHeader((short) 00, UPLINK), new int[] {i, 1, 2, 3}, (short) 4))
+                ok++;
+            for (int k = 0; k < 3; k++)
+                updateAll();
+            rf24NetworkFrame frame;
+            while ((frame = networks[0].readFrame()) != null) {
+                assertEquals(011, frame.header.from_node);
+                got++;
+                networks[0].recycle(frame);
+            }
+        }
+        assertTrue("acknowledged " + ok, ok >= 95);
+        assertTrue("received " + got + " of " + ok, got >= ok);
+    }
+
+    @Test
+    public void masterReachesLeafThroughRelay() throws Exception {
+        build(new rf24Air());
+        int got = 0;
+        for (int i = 0; i < 50; i++) {
+            networks[0].write(new rf24NetworkHeader((short) 011, DOWNLINK), new int[] {i}, (short) 1);
+            for (int k = 0; k < 3; k++)
+                updateAll();
+            rf24NetworkFrame frame;
+            while ((frame = networks[2].readFrame()) != null) {
+                if (frame.header.type == DOWNLINK)
+                    got++;
+                networks[2].recycle(frame);
+            }
+        }
+        assertTrue("leaf received " + got + " of 50", got >= 48);
+    }
+}
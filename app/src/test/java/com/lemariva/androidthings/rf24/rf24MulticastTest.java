@@ -0,0 +1,97 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24Network multicast sequence numbers: gaps, relayed duplicates and frames of other senders.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class rf24MulticastTest {
+
+    private static final byte TYPE = 10;
+
+    private rf24Network master;
+    private rf24Network child;
+
+    private void build() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24 r0 = new rf24(new rf24Emulator(air)), r1 = new rf24(new rf24Emulator(air));
+        master = new rf24Network(r0);
+        child = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        master.begin(90, (short) 00);
+        child.begin(90, (short) 01);
+    }
+
+    private int receive() throws Exception {
+        child.update();
+        int got = 0;
+        rf24NetworkFrame frame;
+        while ((frame = child.readFrame()) != null) {
+            got++;
+            child.recycle(frame);
+        }
+        return got;
+    }
+
+    /** Multicast frame to level 1 with header.reserved as given, like a sender of another library */
+    private void send(short reserved, int value) throws Exception {
+        rf24NetworkHeader header = new rf24NetworkHeader((short) 0100, TYPE);
+        header.from_node = 00;
+        header.reserved = reserved;
+        master.write(header, new int[] {value}, (short) 1, master.levelToAddress((byte) 1));
+    }
+
+    @Test
+    public void sequencedFramesAreCountedAndDeduplicated() throws Exception {
+        build();
+        rf24NetworkHeader header = new rf24NetworkHeader((short) 0100, TYPE);
+        int got = 0;
+        for (int i = 0; i < 10; i++) {
+            master.multicast(header, new int[] {i}, (short) 1, (byte) 1);
+            got += receive();
+        }
+        assertEquals(10, got);
+        assertEquals(10, child.getMulticastReceived());
+        assertEquals(0, child.getMulticastGaps());
+
+        // the last frame again, as relayed by another node
+        send(header.reserved, 9);
+        assertEquals(0, receive());
+        assertEquals(1, child.getMulticastDuplicates());
+    }
+
+    @Test
+    public void unmarkedReservedIsNotASequenceNumber() throws Exception {
+        build();
+        int got = 0;
+        for (int i = 0; i < 5; i++) {
+            send((short) 5, i);
+            got += receive();
+        }
+        assertEquals(5, got);
+        assertEquals(0, child.getMulticastReceived());
+        assertEquals(0, child.getMulticastDuplicates());
+    }
+}
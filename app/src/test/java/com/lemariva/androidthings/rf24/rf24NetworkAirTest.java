@@ -0,0 +1,225 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24 and rf24Network on the simulated air medium (rf24Air), no hardware needed.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class rf24NetworkAirTest {
+
+    /** Master 00 and child 01 on channel 90 */
+    private static rf24Network[] pair(rf24Air air) throws Exception {
+        rf24 r0 = new rf24(new rf24Emulator(air));
+        rf24 r1 = new rf24(new rf24Emulator(air));
+        rf24Network n0 = new rf24Network(r0), n1 = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        n0.begin(90, (short) 00);
+        n1.begin(90, (short) 01);
+        return new rf24Network[] {n0, n1};
+    }
+
+    /** Master 00, child 01 and grandchild 011 on channel 90 */
+    private static rf24Network[] chain(rf24Air air) throws Exception {
+        rf24Network[] net = new rf24Network[3];
+        short[] addresses = {00, 01, 011};
+        for (int i = 0; i < net.length; i++) {
+            rf24 radio = new rf24(new rf24Emulator(air));
+            radio.begin();
+            net[i] = new rf24Network(radio);
+            net[i].begin(90, addresses[i]);
+        }
+        return net;
+    }
+
+    private static int drain(rf24Network network) {
+        int got = 0;
+        rf24NetworkFrame frame;
+        while ((frame = network.readFrame()) != null) {
+            got++;
+            network.recycle(frame);
+        }
+        return got;
+    }
+
+    @Test
+    public void deliversEveryMessageWithoutLoss() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24Network[] net = pair(air);
+        int ok = 0, got = 0;
+        for (int i = 0; i < 500; i++) {
+            if (net[1].write(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {i & 0xFF, 1, 2, 3}, (short) 4))
+                ok++;
+            net[0].update();
+            got += drain(net[0]);
+        }
+        assertEquals(500, ok);
+        assertEquals(500, got);
+        assertEquals(0, air.getLostCount());
+    }
+
+    @Test
+    public void retriesHideModerateLoss() throws Exception {
+        rf24Air air = new rf24Air(7);
+        air.setLossRate(0.1);
+        rf24Network[] net = pair(air);
+        int ok = 0, got = 0;
+        for (int i = 0; i < 300; i++) {
+            if (net[1].write(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {i & 0xFF}, (short) 1))
+                ok++;
+            net[0].update();
+            got += drain(net[0]);
+        }
+        assertTrue("lost packets " + air.getLostCount(), air.getLostCount() > 0);
+        assertTrue("acknowledged " + ok, ok > 290);
+        assertTrue("received " + got + " of " + ok + " acknowledged", got >= ok);
+    }
+
+    @Test
+    public void fragmentedMessagesArriveIntact() throws Exception {
+        rf24Air air = new rf24Air();
+        final rf24Network[] net = pair(air);
+        final AtomicLong good = new AtomicLong(), bad = new AtomicLong();
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        // the receiver runs on its own thread: the RX FIFO holds only 3 fragments
+        Thread receiver = new Thread(() -> {
+            try {
+                while (running.get()) {
+                    net[0].update();
+                    rf24NetworkFrame frame;
+                    while ((frame = net[0].readFrame()) != null) {
+                        boolean intact = frame.message_size == 100;
+                        for (int i = 1; i < 100 && intact; i++)
+                            intact = (frame.message_buffer[i] & 0xFF) == ((i * 7 + frame.message_buffer[0]) & 0xFF);
+                        (intact ? good : bad).incrementAndGet();
+                        net[0].recycle(frame);
+                    }
+                }
+            } catch (Exception e) {
+                bad.incrementAndGet();
+            }
+        });
+        receiver.start();
+
+        int ok = 0;
+        for (int m = 0; m < 50; m++) {
+            int[] message = new int[100];
+            message[0] = m;
+            for (int i = 1; i < 100; i++)
+                message[i] = (i * 7 + m) & 0xFF;
+            if (net[1].write(new rf24NetworkHeader((short) 00, (byte) 'G'), message, (short) 100))
+                ok++;
+        }
+        Thread.sleep(100);
+        running.set(false);
+        receiver.join();
+
+        assertEquals(0, bad.get());
+        assertTrue("received " + good.get() + " of " + ok, ok >= 35 && good.get() >= ok);
+    }
+
+    @Test
+    public void realTimeTransmissionDoesNotBlockOtherRadios() throws Exception {
+        final rf24Air air = new rf24Air();
+        air.setRealTime(true);
+        final rf24 sender = new rf24(new rf24Emulator(air));
+        rf24 other = new rf24(new rf24Emulator(air));
+        sender.begin();
+        other.begin();
+        // nobody listens: 15 retries of 4ms, about 60ms of air time
+        sender.setRetries(15, 15);
+        sender.openWritingPipe(new int[] {0x11, 0x22, 0x33, 0x44, 0x55});
+        sender.stopListening();
+
+        Thread tx = new Thread(() -> {
+            try {
+                sender.write(new int[] {1, 2, 3}, 3);
+            } catch (Exception ignored) {
+            }
+        });
+        tx.start();
+        long slowest = 0;
+        while (tx.isAlive()) {
+            long start = System.nanoTime();
+            assertTrue(other.isChipConnected());
+            slowest = Math.max(slowest, System.nanoTime() - start);
+        }
+        tx.join();
+        assertTrue("SPI of another radio blocked for " + slowest / 1000 + "us", slowest < 20000000L);
+    }
+
+    @Test
+    public void writeAsyncReturnsBeforeTheFirstHop() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24Network[] net = pair(air);
+        CompletableFuture<rf24TxResult> future =
+                net[1].writeAsync(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {1, 2, 3}, (short) 3);
+        assertFalse("completed by writeAsync()", future.isDone());
+        assertEquals(0, air.getPacketCount());
+
+        net[1].update();
+        net[0].update();
+        assertTrue(future.isDone());
+        assertTrue(future.get().isAcked());
+        assertEquals(1, drain(net[0]));
+    }
+
+    @Test
+    public void writeAsyncRoutesFragmentsAndWaitsForTheLastNetworkAck() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24Network[] net = chain(air);
+        int[] message = new int[100];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (i * 7) & 0xFF;
+        CompletableFuture<rf24TxResult> future =
+                net[0].writeAsync(new rf24NetworkHeader((short) 011, (byte) 'C'), message, (short) message.length);
+        assertFalse(future.isDone());
+
+        int got = 0;
+        for (int i = 0; i < 50 && !future.isDone(); i++) {
+            net[0].update();
+            net[1].update();
+            net[2].update();
+            rf24NetworkFrame frame;
+            while ((frame = net[2].readFrame()) != null) {
+                assertEquals(100, frame.message_size);
+                for (int k = 0; k < 100; k++)
+                    assertEquals(message[k], frame.message_buffer[k] & 0xFF);
+                got++;
+                net[2].recycle(frame);
+            }
+        }
+        assertEquals(1, got);
+        assertTrue(future.isDone());
+        assertEquals(rf24TxResult.ACKED, future.get().getStatus());
+        assertEquals(0, net[0].getPendingAcks());
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24RadioThread: errors on the radio thread and stopping it complete every future.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class rf24RadioThreadTest {
+
+    /** Transport throwing the error of the test on every period-th transfer once armed */
+    static class FaultyTransport extends rf24WarmBeginTest.CountingTransport {
+        volatile int period;
+        volatile RuntimeException exception;
+        volatile Error error;
+
+        FaultyTransport(rf24Transport _transport) {
+            super(_transport);
+        }
+
+        @Override
+        public void transfer(byte[] tx, byte[] rx, int len) throws IOException {
+            super.transfer(tx, rx, len);
+            if (period > 0 && transfers % period == 0) {
+                if (error != null)
+                    throw error;
+                if (exception != null)
+                    throw exception;
+                throw new IOException("SPI error");
+            }
+        }
+    }
+
+    private static rf24RadioThread start(rf24 radio, rf24Network network, rf24Mesh mesh) {
+        rf24RadioThread thread = new rf24RadioThread(radio, network, mesh);
+        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /** Wait for a future that must fail, return the cause */
+    private static Throwable failureOf(CompletableFuture<rf24TxResult> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("future completed normally");
+        return null;
+    }
+
+    @Test
+    public void keepsRunningAfterRuntimeException() throws Exception {
+        rf24Air air = new rf24Air();
+        FaultyTransport faulty = new FaultyTransport(new rf24Emulator(air));
+        rf24 r0 = new rf24(faulty), r1 = new rf24(new rf24Emulator(air));
+        rf24Network n0 = new rf24Network(r0), n1 = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        n0.begin(90, (short) 00);
+        n1.begin(90, (short) 01);
+
+        faulty.exception = new IllegalStateException("bug in update");
+        faulty.period = 97;
+        rf24RadioThread thread = start(r0, n0, null);
+        int got = 0;
+        for (int i = 0; i < 100; i++) {
+            n1.write(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {i}, (short) 1);
+            Thread.sleep(2);
+            rf24NetworkFrame frame;
+            while ((frame = thread.receive()) != null) {
+                got++;
+                thread.recycle(frame);
+            }
+        }
+        assertTrue(thread.isAlive());
+        assertTrue("received " + got + " of 100", got >= 50);
+        thread.quit();
+        thread.join();
+        assertNull(thread.getFailure());
+    }
+
+    @Test
+    public void quitFailsUndeliveredMessages() throws Exception {
+        rf24 radio = new rf24(new rf24Emulator(new rf24Air()));
+        rf24Network network = new rf24Network(radio);
+        radio.begin();
+        network.begin(90, (short) 00);
+        rf24RadioThread thread = start(radio, network, null);
+
+        // nobody listens on 01: the writes retry until quit()
+        ArrayList<CompletableFuture<rf24TxResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            futures.add(thread.write(new rf24NetworkHeader((short) 01, (byte) 'C'), new int[] {i}, (short) 1));
+        thread.quit();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+
+        for (CompletableFuture<rf24TxResult> future : futures) {
+            try {
+                assertFalse(future.get(5, TimeUnit.SECONDS).isAcked());
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertTrue(failureOf(thread.write(new rf24NetworkHeader((short) 01, (byte) 'C'), new int[] {1}, (short) 1))
+                instanceof IOException);
+    }
+
+    @Test
+    public void fatalErrorFailsPendingMessages() throws Exception {
+        FaultyTransport faulty = new FaultyTransport(new rf24Emulator(new rf24Air()));
+        rf24 radio = new rf24(faulty);
+        rf24Network network = new rf24Network(radio);
+        radio.begin();
+        network.begin(90, (short) 00);
+
+        Error error = new Error("bus gone");
+        faulty.error = error;
+        faulty.period = 200;
+        rf24RadioThread thread = start(radio, network, null);
+        ArrayList<CompletableFuture<rf24TxResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            futures.add(thread.write(new rf24NetworkHeader((short) 01, (byte) 'C'), new int[] {i}, (short) 1));
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(error, thread.getFailure());
+
+        for (CompletableFuture<rf24TxResult> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(future.isDone());
+        }
+        assertEquals(error, failureOf(thread.write(new rf24NetworkHeader((short) 01, (byte) 'C'), new int[] {1}, (short) 1))
+                .getCause());
+    }
+
+    @Test
+    public void failedBeginDoesNotStartTheLoop() throws Exception {
+        FaultyTransport faulty = new FaultyTransport(new rf24Emulator(new rf24Air()));
+        faulty.period = 1;
+        rf24 radio = new rf24(faulty);
+        rf24Network network = new rf24Network(radio);
+        rf24Mesh mesh = new rf24Mesh(radio, network, (DatabaseHandler) null);
+        mesh.setNodeID((byte) 1);
+
+        rf24RadioThread thread = start(radio, network, mesh);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNotNull(thread.getFailure());
+        assertTrue(failureOf(thread.write(new rf24NetworkHeader((short) 00, (byte) 'C'), new int[] {1}, (short) 1))
+                instanceof IOException);
+    }
+}
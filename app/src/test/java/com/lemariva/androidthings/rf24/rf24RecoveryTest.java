@@ -0,0 +1,72 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24 supervision: the chip resets (brown-out) during traffic and the driver recovers it.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class rf24RecoveryTest {
+
+    @Test
+    public void recoversFromChipResetDuringTraffic() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24Emulator chip = new rf24Emulator(air);
+        rf24 r0 = new rf24(chip), r1 = new rf24(new rf24Emulator(air));
+        rf24Network n0 = new rf24Network(r0), n1 = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        n0.enableAckPayloads();
+        n0.begin(90, (short) 00);
+        n1.begin(90, (short) 01);
+        r0.setSupervision(20);
+
+        int ok = 0, got = 0, ok_after = 0;
+        for (int i = 0; i < 400; i++) {
+            // brown-out: the chip loses its configuration but keeps power
+            if (i == 100 || i == 250)
+                chip.reset();
+            boolean acked = n1.write(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {i}, (short) 1);
+            if (acked)
+                ok++;
+            if (acked && i >= 110 && i < 250)
+                ok_after++;
+            n0.update();
+            rf24NetworkFrame frame;
+            while ((frame = n0.readFrame()) != null) {
+                got++;
+                n0.recycle(frame);
+            }
+            Thread.sleep(1);
+        }
+
+        assertTrue("recoveries " + r0.getRecoveries(), r0.getRecoveries() >= 2);
+        assertEquals(rf24.FAILURE_REGISTERS, r0.getLastFailure());
+        assertTrue(r0.verifyRegisters());
+        // traffic resumes within 10 rounds of a reset
+        assertEquals(140, ok_after);
+        assertTrue("acknowledged " + ok + " of 400", ok >= 390);
+        assertTrue("received " + got + " of " + ok, got >= ok);
+    }
+}
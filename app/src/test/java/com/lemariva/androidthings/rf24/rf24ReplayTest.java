@@ -0,0 +1,97 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24SpiRecorder and rf24ReplayTransport: a recorded session replays the same traffic offline.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class rf24ReplayTest {
+
+    @Test
+    public void replayReproducesRecordedSession() throws Exception {
+        rf24Air air = new rf24Air(11);
+        air.setLossRate(0.1);
+        rf24 r0 = new rf24(new rf24Emulator(air)), r1 = new rf24(new rf24Emulator(air));
+        rf24SpiRecorder recorder = new rf24SpiRecorder(200000);
+        r0.setSpiRecorder(recorder);
+        rf24Network n0 = new rf24Network(r0), n1 = new rf24Network(r1);
+        r0.begin();
+        r1.begin();
+        n0.begin(90, (short) 00);
+        n1.begin(90, (short) 01);
+
+        int got = 0, sum = 0, acked = 0;
+        for (int i = 0; i < 300; i++) {
+            n1.write(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {i & 0xFF, 2, 3}, (short) 3);
+            if (i % 10 == 0 && n0.write(new rf24NetworkHeader((short) 01, (byte) 'C'), new int[] {i & 0xFF}, (short) 1))
+                acked++;
+            n0.update();
+            rf24NetworkFrame frame;
+            while ((frame = n0.readFrame()) != null) {
+                got++;
+                sum += frame.message_buffer[0];
+                n0.recycle(frame);
+            }
+            n1.update();
+            while ((frame = n1.readFrame()) != null)
+                n1.recycle(frame);
+        }
+
+        File file = File.createTempFile("rf24", ".rec");
+        file.deleteOnExit();
+        recorder.dump(file);
+
+        // the same driver calls against the recording, no second radio
+        rf24ReplayTransport replay = rf24ReplayTransport.load(file);
+        assertEquals(recorder.size(), replay.getRecordCount());
+        rf24 radio = new rf24(replay);
+        rf24Network network = new rf24Network(radio);
+        radio.begin();
+        network.begin(90, (short) 00);
+
+        int replay_got = 0, replay_sum = 0, replay_acked = 0;
+        for (int i = 0; !replay.isFinished() && i < 100000; i++) {
+            if (i % 10 == 0 && i / 10 < 30
+                    && network.write(new rf24NetworkHeader((short) 01, (byte) 'C'), new int[] {i & 0xFF}, (short) 1))
+                replay_acked++;
+            network.update();
+            rf24NetworkFrame frame;
+            while ((frame = network.readFrame()) != null) {
+                replay_got++;
+                replay_sum += frame.message_buffer[0];
+                network.recycle(frame);
+            }
+        }
+
+        assertTrue(replay.isFinished());
+        assertEquals(0, replay.getMismatches());
+        assertEquals(0, replay.getSynthesized());
+        assertEquals(got, replay_got);
+        assertEquals(sum, replay_sum);
+        assertEquals(acked, replay_acked);
+    }
+}
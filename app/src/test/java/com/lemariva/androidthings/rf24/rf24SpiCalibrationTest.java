@@ -0,0 +1,69 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24.calibrateSpiSpeed() against emulated wiring that corrupts transfers above a clock limit.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class rf24SpiCalibrationTest {
+
+    /**
+     * Calibrate 1..10MHz on wiring reliable up to limit, then check the radio still works
+     * @param limit highest reliable SPI clock in Hz, 0 for no limit
+     * @return the clock chosen by calibrateSpiSpeed()
+     */
+    private static int calibrate(int limit) throws Exception {
+        rf24Emulator chip = new rf24Emulator(new rf24Air(3), 4000000);
+        chip.setSpiLimit(limit);
+        rf24 radio = new rf24(chip);
+        int hz = radio.calibrateSpiSpeed(1000000, 10000000);
+        assertEquals(hz == 0 ? 1000000 : hz, radio.getSpiSpeed());
+
+        chip.setSpiLimit(0);
+        radio.begin();
+        assertTrue(radio.verifyRegisters());
+        return hz;
+    }
+
+    @Test
+    public void keepsMarginBelowHighestPassingStep() throws Exception {
+        // 10MHz fails, 8MHz is the last step that passed
+        assertEquals(6000000, calibrate(9000000));
+        // 4MHz fails
+        assertEquals(1000000, calibrate(3000000));
+        // only min passes, no step below
+        assertEquals(1000000, calibrate(1500000));
+    }
+
+    @Test
+    public void keepsMarginWhenEveryStepPasses() throws Exception {
+        assertEquals(8000000, calibrate(0));
+    }
+
+    @Test
+    public void reportsUnreliableMinimum() throws Exception {
+        assertEquals(0, calibrate(500000));
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24Timer: hybrid park/spin waits and their statistics.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class rf24TimerTest {
+
+    @Test
+    public void interruptedThreadParksAndKeepsTheFlag() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Thread.currentThread().interrupt();
+        long cpu = bean.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        rf24Timer.delay(50);
+        long elapsed = System.nanoTime() - start;
+        cpu = bean.getCurrentThreadCpuTime() - cpu;
+
+        assertTrue("flag restored", Thread.interrupted());
+        assertTrue("waited " + elapsed / 1000 + "us", elapsed >= 50000000L);
+        // parked, not spinning the 50ms
+        assertTrue("CPU time " + cpu / 1000 + "us", cpu < 25000000L);
+    }
+
+    @Test
+    public void statisticsCountConcurrentWaits() throws Exception {
+        rf24Timer.resetStats();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50; i++)
+                        rf24Timer.delayMicroseconds(200);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(200, rf24Timer.getSampleCount());
+        assertTrue(rf24Timer.getMaxError() >= rf24Timer.getMeanError());
+    }
+}
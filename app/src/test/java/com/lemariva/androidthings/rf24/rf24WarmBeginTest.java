@@ -0,0 +1,147 @@
+/**
+ * Copyright [2017] [Mauro Riva <lemariva@mail.com> <lemariva.com>]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ *
+ * rf24.warmBegin(): taking over a running chip without the power-on delays.
+ */
+
+package com.lemariva.androidthings.rf24;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class rf24WarmBeginTest {
+
+    /** Transport counting the SPI transactions and register writes */
+    static class CountingTransport implements rf24Transport {
+        final rf24Transport transport;
+        int transfers;
+        int writes;
+
+        CountingTransport(rf24Transport _transport) {
+            transport = _transport;
+        }
+
+        @Override
+        public boolean open() {
+            return transport.open();
+        }
+
+        @Override
+        public void transfer(byte[] tx, byte[] rx, int len) throws IOException {
+            transfers++;
+            if ((tx[0] & 0xE0) == 0x20)
+                writes++;
+            transport.transfer(tx, rx, len);
+        }
+
+        @Override
+        public void ce(boolean level) {
+            transport.ce(level);
+        }
+
+        @Override
+        public int getSpeed() {
+            return transport.getSpeed();
+        }
+
+        @Override
+        public void setSpeed(int hz) throws IOException {
+            transport.setSpeed(hz);
+        }
+
+        @Override
+        public boolean openIrq(String pinName, Runnable onEdge) {
+            return transport.openIrq(pinName, onEdge);
+        }
+
+        @Override
+        public void closeIrq() {
+            transport.closeIrq();
+        }
+
+        @Override
+        public void close() throws IOException {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void warmBeginSkipsPowerOnDelays() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24Emulator chip = new rf24Emulator(air);
+        rf24 first = new rf24(chip);
+        first.begin();
+        new rf24Network(first).begin(90, (short) 01);
+
+        // restart of the service: new driver objects on the running chip
+        CountingTransport counting = new CountingTransport(chip);
+        rf24 radio = new rf24(counting);
+        long start = System.nanoTime();
+        assertTrue(radio.warmBegin());
+        new rf24Network(radio).begin(90, (short) 01);
+        long warm = System.nanoTime() - start;
+        int warm_writes = counting.writes;
+        assertTrue(radio.verifyRegisters());
+
+        counting.writes = 0;
+        start = System.nanoTime();
+        radio.begin();
+        new rf24Network(radio).begin(90, (short) 01);
+        long cold = System.nanoTime() - start;
+
+        assertTrue("warm " + warm / 1000 + "us, cold " + cold / 1000 + "us", warm < 20000000L && cold >= 100000000L);
+        assertTrue("warm writes " + warm_writes + ", cold writes " + counting.writes, warm_writes < counting.writes);
+    }
+
+    @Test
+    public void trafficWorksAfterWarmBegin() throws Exception {
+        rf24Air air = new rf24Air();
+        rf24Emulator chip = new rf24Emulator(air);
+        rf24 first = new rf24(chip);
+        first.begin();
+
+        rf24 master = new rf24(new rf24Emulator(air));
+        rf24Network n0 = new rf24Network(master);
+        master.begin();
+        n0.begin(90, (short) 00);
+
+        rf24 radio = new rf24(chip);
+        rf24Network n1 = new rf24Network(radio);
+        radio.warmBegin();
+        n1.begin(90, (short) 01);
+
+        int ok = 0, got = 0;
+        for (int i = 0; i < 20; i++) {
+            if (n1.write(new rf24NetworkHeader((short) 00, (byte) 'G'), new int[] {i}, (short) 1))
+                ok++;
+            n0.update();
+            rf24NetworkFrame frame;
+            while ((frame = n0.readFrame()) != null) {
+                got++;
+                n0.recycle(frame);
+            }
+        }
+        assertEquals(20, ok);
+        assertEquals(20, got);
+    }
+}